@@ -12,19 +12,21 @@ import java.util.Map;
 public class BasicMemoryBuffer<T>
         implements MemoryBuffer<T>
 {
-    private final int numMessagesToBuffer;
-    private final long millisecondsToBuffer;
+    private final FlushController flushController;
     private final List<T> buffer;
     private final List<T> bulkBuffer;
+    private final MemoryPool memoryPool;
     private long previousFlushTimeMillisecond;
-    private int totalBytes;
-    private long dataSizeToBuffer;
+    private long totalBytes;
 
-    public BasicMemoryBuffer(StreamConfig config)
+    /**
+     * The bytes of the buffered records, including the size of the bulk objects they point to, are reserved from
+     * the memory pool until the buffer is cleared. The flush thresholds are the current setpoints of the controller.
+     */
+    public BasicMemoryBuffer(FlushController flushController, MemoryPool memoryPool)
     {
-        numMessagesToBuffer = config.getMaxFlushRecords();
-        millisecondsToBuffer = config.getMaxFlushDuration().toMillis();
-        dataSizeToBuffer = config.getDataSize().toBytes();
+        this.flushController = flushController;
+        this.memoryPool = memoryPool;
         previousFlushTimeMillisecond = System.currentTimeMillis();
         this.buffer = new ArrayList<>(1000);
         this.bulkBuffer = new ArrayList<>(1000);
@@ -33,39 +35,62 @@ public class BasicMemoryBuffer<T>
 
     public long getNumRecordsToBuffer()
     {
-        return numMessagesToBuffer;
+        return flushController.getStreamFlushRecords();
     }
 
     public long getMillisecondsToBuffer()
     {
-        return millisecondsToBuffer;
+        return flushController.getStreamFlushDurationMillis();
     }
 
     public void consumeRecord(T record, long size)
     {
         buffer.add(record);
         totalBytes += size;
+        memoryPool.reserve(size);
     }
 
     public void consumeBatch(T record, long size)
     {
         bulkBuffer.add(record);
         totalBytes += size;
+        memoryPool.reserve(size);
     }
 
     public void clear()
     {
         buffer.clear();
         bulkBuffer.clear();
+        memoryPool.free(totalBytes);
+        totalBytes = 0;
         previousFlushTimeMillisecond = System.currentTimeMillis();
     }
 
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
     public boolean shouldFlush()
     {
-        long timelapseMillisecond = System.currentTimeMillis() - previousFlushTimeMillisecond;
-        return (buffer.size() >= getNumRecordsToBuffer())
-                || (timelapseMillisecond >= getMillisecondsToBuffer())
-                || totalBytes > dataSizeToBuffer;
+        return getFlushReason() != null;
+    }
+
+    public FlushReason getFlushReason()
+    {
+        if (buffer.size() >= getNumRecordsToBuffer()) {
+            return FlushReason.RECORDS;
+        }
+        if (totalBytes > flushController.getStreamFlushSize()) {
+            return FlushReason.SIZE;
+        }
+        if (System.currentTimeMillis() - previousFlushTimeMillisecond >= getMillisecondsToBuffer()) {
+            return FlushReason.TIME;
+        }
+        if (totalBytes > 0 && memoryPool.isFull()) {
+            return FlushReason.MEMORY;
+        }
+        return null;
     }
 
     public Map.Entry<List<T>, List<T>> getRecords()
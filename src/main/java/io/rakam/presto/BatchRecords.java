@@ -4,18 +4,31 @@
 
 package io.rakam.presto;
 
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Table;
 import io.rakam.presto.deserialization.TableData;
 
+import java.util.Map;
+import java.util.Set;
+
 public class BatchRecords
 {
     private final Table<String, String, TableData> table;
     private final Checkpointer checkpointer;
+    private final long logEntryId;
 
     public BatchRecords(Table<String, String, TableData> table, Checkpointer checkpointer)
+    {
+        this(table, checkpointer, -1);
+    }
+
+    public BatchRecords(Table<String, String, TableData> table, Checkpointer checkpointer, long logEntryId)
     {
         this.table = table;
         this.checkpointer = checkpointer;
+        this.logEntryId = logEntryId;
     }
 
     public Table<String, String, TableData> getTable()
@@ -23,6 +36,36 @@ public class BatchRecords
         return table;
     }
 
+    /**
+     * Returns the pages of the given tables in this batch.
+     */
+    public Table<String, String, TableData> filterTables(Set<SchemaTableName> tables)
+    {
+        Table<String, String, TableData> filtered = HashBasedTable.create();
+        if (tables.isEmpty()) {
+            return filtered;
+        }
+        for (Table.Cell<String, String, TableData> cell : table.cellSet()) {
+            if (tables.contains(new SchemaTableName(cell.getRowKey(), cell.getColumnKey()))) {
+                filtered.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+            }
+        }
+        return filtered;
+    }
+
+    public Checkpointer getCheckpointer()
+    {
+        return checkpointer;
+    }
+
+    /**
+     * Returns the id of the write-ahead log entry of the batch, or -1 if it's not logged.
+     */
+    public long getLogEntryId()
+    {
+        return logEntryId;
+    }
+
     public void checkpoint()
             throws CheckpointException
     {
@@ -32,6 +75,15 @@ public class BatchRecords
     public interface Checkpointer
     {
         void checkpoint() throws CheckpointException;
+
+        /**
+         * Returns the stream positions the checkpoint covers, e.g. the offset of every partition. They're written to
+         * the write-ahead log so that the records of the replayed batches can be skipped.
+         */
+        default Map<String, String> getPositions()
+        {
+            return ImmutableMap.of();
+        }
     }
 
     public static class CheckpointException
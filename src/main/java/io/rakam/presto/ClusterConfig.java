@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import io.airlift.configuration.Config;
+
+import javax.validation.constraints.Pattern;
+
+public class ClusterConfig
+{
+    private String instanceId;
+
+    @Pattern(regexp = "[A-Za-z0-9_-]+", message = "must only contain letters, digits, '-' and '_'")
+    public String getInstanceId()
+    {
+        return instanceId;
+    }
+
+    /**
+     * Identifies this collector when several collector processes share the same stream.
+     * The Raptor node id and data directory are derived from it so that the processes do not share local shards.
+     */
+    @Config("cluster.instance-id")
+    public ClusterConfig setInstanceId(String instanceId)
+    {
+        this.instanceId = instanceId;
+        return this;
+    }
+
+    public boolean isClustered()
+    {
+        return instanceId != null;
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.ImmutableMap;
+import io.airlift.stats.CounterStat;
+import io.airlift.stats.TimeStat;
+import io.rakam.presto.deserialization.LatencySamples;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import javax.inject.Inject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public class CollectorStats
+{
+    private final TimeStat pollTime = new TimeStat(MILLISECONDS);
+    private final TimeStat streamFlushTime = new TimeStat(MILLISECONDS);
+    private final TimeStat createPageTableTime = new TimeStat(MILLISECONDS);
+    private final TimeStat middlewareWaitTime = new TimeStat(MILLISECONDS);
+    private final TimeStat tableCommitTime = new TimeStat(MILLISECONDS);
+    private final TimeStat checkpointTime = new TimeStat(MILLISECONDS);
+    private final TimeStat memoryBlockedTime = new TimeStat(MILLISECONDS);
+
+    private final CounterStat consumedRecords = new CounterStat();
+    private final CounterStat consumedBytes = new CounterStat();
+    private final CounterStat committedRows = new CounterStat();
+
+    private final CounterStat streamFlushByRecords = new CounterStat();
+    private final CounterStat streamFlushByTime = new CounterStat();
+    private final CounterStat streamFlushBySize = new CounterStat();
+    private final CounterStat streamFlushByMemory = new CounterStat();
+    private final CounterStat middlewareFlushByRecords = new CounterStat();
+    private final CounterStat middlewareFlushByTime = new CounterStat();
+    private final CounterStat middlewareFlushBySize = new CounterStat();
+    private final CounterStat middlewareFlushByMemory = new CounterStat();
+
+    private final CounterStat conversionFailures = new CounterStat();
+    private final CounterStat commitFailures = new CounterStat();
+    private final CounterStat checkpointFailures = new CounterStat();
+    private final CounterStat discardedRecords = new CounterStat();
+    private final CounterStat spilledBytes = new CounterStat();
+    private final CounterStat replayedRecords = new CounterStat();
+
+    private final Map<SchemaTableName, TableLatency> tableLatencies = new ConcurrentHashMap<>();
+    private final long tableLatencyRetentionMillis;
+    private volatile TableLatency lastIntervalLatency = new TableLatency();
+
+    public CollectorStats()
+    {
+        this(new StatsConfig());
+    }
+
+    @Inject
+    public CollectorStats(StatsConfig config)
+    {
+        this.tableLatencyRetentionMillis = config.getTableLatencyRetention().toMillis();
+    }
+
+    public void recordConsumed(long records, long bytes)
+    {
+        consumedRecords.update(records);
+        consumedBytes.update(bytes);
+    }
+
+    public void recordStreamFlush(FlushReason reason)
+    {
+        switch (reason) {
+            case RECORDS:
+                streamFlushByRecords.update(1);
+                break;
+            case TIME:
+                streamFlushByTime.update(1);
+                break;
+            case SIZE:
+                streamFlushBySize.update(1);
+                break;
+            case MEMORY:
+                streamFlushByMemory.update(1);
+                break;
+        }
+    }
+
+    public void recordMiddlewareFlush(FlushReason reason)
+    {
+        switch (reason) {
+            case RECORDS:
+                middlewareFlushByRecords.update(1);
+                break;
+            case TIME:
+                middlewareFlushByTime.update(1);
+                break;
+            case SIZE:
+                middlewareFlushBySize.update(1);
+                break;
+            case MEMORY:
+                middlewareFlushByMemory.update(1);
+                break;
+        }
+    }
+
+    public void recordCommitLatency(SchemaTableName table, LatencySamples samples, long commitTime)
+    {
+        if (samples == null || samples.size() == 0) {
+            return;
+        }
+
+        // recorded under the lock of the entry so that an idle table is not evicted while it's updated
+        tableLatencies.compute(table, (key, latency) -> {
+            if (latency == null) {
+                latency = new TableLatency();
+            }
+            for (int i = 0; i < samples.size(); i++) {
+                long eventTime = samples.getEventTime(i);
+                if (eventTime != LatencySamples.UNKNOWN) {
+                    latency.eventToCommit.record(commitTime - eventTime);
+                }
+                long arrivalTime = samples.getArrivalTime(i);
+                if (arrivalTime != LatencySamples.UNKNOWN) {
+                    latency.arrivalToCommit.record(commitTime - arrivalTime);
+                }
+            }
+            latency.lastRecordMillis = System.currentTimeMillis();
+            return latency;
+        });
+    }
+
+    /**
+     * Returns the latencies recorded per table since the previous call and resets them.
+     * The merged result backs the JMX latency attributes until the next call. The tables
+     * that had no commits within the retention period are dropped.
+     */
+    public Map<SchemaTableName, TableLatency> snapshotCommitLatencies()
+    {
+        long evictBefore = System.currentTimeMillis() - tableLatencyRetentionMillis;
+        tableLatencies.keySet().forEach(table -> tableLatencies.computeIfPresent(table,
+                (key, latency) -> latency.lastRecordMillis < evictBefore ? null : latency));
+
+        ImmutableMap.Builder<SchemaTableName, TableLatency> builder = ImmutableMap.builder();
+        TableLatency total = new TableLatency();
+        for (Map.Entry<SchemaTableName, TableLatency> entry : tableLatencies.entrySet()) {
+            TableLatency snapshot = new TableLatency(
+                    entry.getValue().eventToCommit.snapshotAndReset(),
+                    entry.getValue().arrivalToCommit.snapshotAndReset());
+            total.eventToCommit.merge(snapshot.eventToCommit);
+            total.arrivalToCommit.merge(snapshot.arrivalToCommit);
+            builder.put(entry.getKey(), snapshot);
+        }
+        lastIntervalLatency = total;
+        return builder.build();
+    }
+
+    @Managed
+    public long getEventToCommitLatencyP50()
+    {
+        return lastIntervalLatency.eventToCommit.getPercentile(50);
+    }
+
+    @Managed
+    public long getEventToCommitLatencyP99()
+    {
+        return lastIntervalLatency.eventToCommit.getPercentile(99);
+    }
+
+    @Managed
+    public long getEventToCommitLatencyMax()
+    {
+        return lastIntervalLatency.eventToCommit.getMax();
+    }
+
+    @Managed
+    public long getArrivalToCommitLatencyP50()
+    {
+        return lastIntervalLatency.arrivalToCommit.getPercentile(50);
+    }
+
+    @Managed
+    public long getArrivalToCommitLatencyP99()
+    {
+        return lastIntervalLatency.arrivalToCommit.getPercentile(99);
+    }
+
+    @Managed
+    public long getArrivalToCommitLatencyMax()
+    {
+        return lastIntervalLatency.arrivalToCommit.getMax();
+    }
+
+    @Managed
+    @Nested
+    public TimeStat getPollTime()
+    {
+        return pollTime;
+    }
+
+    @Managed
+    @Nested
+    public TimeStat getStreamFlushTime()
+    {
+        return streamFlushTime;
+    }
+
+    @Managed
+    @Nested
+    public TimeStat getCreatePageTableTime()
+    {
+        return createPageTableTime;
+    }
+
+    @Managed
+    @Nested
+    public TimeStat getMiddlewareWaitTime()
+    {
+        return middlewareWaitTime;
+    }
+
+    @Managed
+    @Nested
+    public TimeStat getTableCommitTime()
+    {
+        return tableCommitTime;
+    }
+
+    @Managed
+    @Nested
+    public TimeStat getCheckpointTime()
+    {
+        return checkpointTime;
+    }
+
+    /**
+     * Time the consumers wait for the memory pool to be freed.
+     */
+    @Managed
+    @Nested
+    public TimeStat getMemoryBlockedTime()
+    {
+        return memoryBlockedTime;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getConsumedRecords()
+    {
+        return consumedRecords;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getConsumedBytes()
+    {
+        return consumedBytes;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCommittedRows()
+    {
+        return committedRows;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getStreamFlushByRecords()
+    {
+        return streamFlushByRecords;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getStreamFlushByTime()
+    {
+        return streamFlushByTime;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getStreamFlushBySize()
+    {
+        return streamFlushBySize;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getStreamFlushByMemory()
+    {
+        return streamFlushByMemory;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getMiddlewareFlushByRecords()
+    {
+        return middlewareFlushByRecords;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getMiddlewareFlushByTime()
+    {
+        return middlewareFlushByTime;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getMiddlewareFlushBySize()
+    {
+        return middlewareFlushBySize;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getMiddlewareFlushByMemory()
+    {
+        return middlewareFlushByMemory;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getConversionFailures()
+    {
+        return conversionFailures;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCommitFailures()
+    {
+        return commitFailures;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCheckpointFailures()
+    {
+        return checkpointFailures;
+    }
+
+    /**
+     * Records that were consumed but dropped without being committed because the shard or partition moved to another node,
+     * they are processed again by the new owner.
+     */
+    @Managed
+    @Nested
+    public CounterStat getDiscardedRecords()
+    {
+        return discardedRecords;
+    }
+
+    /**
+     * Bytes of the middleware buffer pages written to the spill file because the memory limit was exceeded.
+     */
+    @Managed
+    @Nested
+    public CounterStat getSpilledBytes()
+    {
+        return spilledBytes;
+    }
+
+    /**
+     * Records of the batches replayed from the write-ahead log on startup.
+     */
+    @Managed
+    @Nested
+    public CounterStat getReplayedRecords()
+    {
+        return replayedRecords;
+    }
+
+    @Managed
+    public int getTrackedTableCount()
+    {
+        return tableLatencies.size();
+    }
+
+    public static class TableLatency
+    {
+        private final LatencyHistogram eventToCommit;
+        private final LatencyHistogram arrivalToCommit;
+        private volatile long lastRecordMillis;
+
+        public TableLatency()
+        {
+            this(new LatencyHistogram(), new LatencyHistogram());
+        }
+
+        public TableLatency(LatencyHistogram eventToCommit, LatencyHistogram arrivalToCommit)
+        {
+            this.eventToCommit = eventToCommit;
+            this.arrivalToCommit = arrivalToCommit;
+        }
+
+        public LatencyHistogram getEventToCommit()
+        {
+            return eventToCommit;
+        }
+
+        public LatencyHistogram getArrivalToCommit()
+        {
+            return arrivalToCommit;
+        }
+    }
+}
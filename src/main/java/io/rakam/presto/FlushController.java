@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.Table;
+import io.airlift.log.Logger;
+import io.rakam.presto.deserialization.TableData;
+import org.weakref.jmx.Managed;
+
+import javax.inject.Inject;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Scales the flush thresholds of the stream and middleware buffers from the observed flushes, AIMD style. The
+ * configured thresholds are multiplied by the scale, which is halved when the commits fall behind (a record waits
+ * longer than the freshness limit, the committer is busy for most of the time, a table gets much more data per
+ * flush than the target or the memory pool is close to full) and increased by a step while the tables get less
+ * data per flush than the target.
+ * <p>
+ * The data of a table per flush is the size of its uncompressed pages. It stands in for the size of the shards,
+ * which are not reported back by the connector and are smaller once they're written as ORC.
+ * <p>
+ * Only the flushes triggered by the thresholds of the middleware buffer are recorded; the commits of the replayed,
+ * revoked and drained batches don't follow the thresholds and would skew the interval between the flushes.
+ * <p>
+ * When the controller is disabled the scale stays at 1, so the configured thresholds are used as they are.
+ */
+public class FlushController
+{
+    private static final Logger log = Logger.get(FlushController.class);
+    private static final double DECREASE_FACTOR = 0.5;
+    // the buffers are shrunk before the memory pool is full and the consumers are paused
+    private static final double MEMORY_PRESSURE_RATIO = 0.8;
+
+    private final FlushControllerConfig config;
+    private final StreamConfig streamConfig;
+    private final MiddlewareConfig middlewareConfig;
+    private final MemoryPool memoryPool;
+    private volatile double scale = 1;
+    private volatile long lastCommitLatencyMillis;
+    private volatile long lastTableFlushSize;
+    private long lastCommitMillis = System.currentTimeMillis();
+
+    @Inject
+    public FlushController(FlushControllerConfig config, StreamConfig streamConfig, MiddlewareConfig middlewareConfig, MemoryPool memoryPool)
+    {
+        this.config = config;
+        this.streamConfig = streamConfig;
+        this.middlewareConfig = middlewareConfig;
+        this.memoryPool = memoryPool;
+    }
+
+    /**
+     * Returns a controller that always uses the configured thresholds.
+     */
+    public static FlushController fixed(StreamConfig streamConfig, MiddlewareConfig middlewareConfig)
+    {
+        return new FlushController(new FlushControllerConfig(), streamConfig, middlewareConfig, new MemoryPool(Long.MAX_VALUE));
+    }
+
+    /**
+     * Records the commit of a threshold flush of the middleware buffer and adjusts the scale. The tables that could
+     * not be committed are left out.
+     */
+    public void recordFlush(Iterable<Table<String, String, TableData>> batches, Set<SchemaTableName> failedTables, long commitMillis)
+    {
+        Set<SchemaTableName> committedTables = new HashSet<>();
+        long pageBytes = 0;
+        for (Table<String, String, TableData> batch : batches) {
+            for (Table.Cell<String, String, TableData> cell : batch.cellSet()) {
+                SchemaTableName table = new SchemaTableName(cell.getRowKey(), cell.getColumnKey());
+                if (!failedTables.contains(table)) {
+                    committedTables.add(table);
+                    pageBytes += cell.getValue().page.getSizeInBytes();
+                }
+            }
+        }
+        recordCommit(committedTables.size(), pageBytes, commitMillis, System.currentTimeMillis());
+    }
+
+    // package private so that the tests control the interval between the flushes
+    synchronized void recordCommit(int tables, long pageBytes, long commitMillis, long now)
+    {
+        long interval = now - lastCommitMillis;
+        lastCommitMillis = now;
+        if (tables == 0) {
+            return;
+        }
+
+        long tableFlushSize = pageBytes / tables;
+        lastTableFlushSize = tableFlushSize;
+        lastCommitLatencyMillis = commitMillis;
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        // a record can wait for a stream flush and a middleware flush before it's committed
+        long freshness = interval + getStreamFlushDurationMillis();
+        double utilization = interval == 0 ? 1 : Math.min(1, commitMillis / (double) interval);
+        long targetTableFlushSize = config.getTargetTableFlushSize().toBytes();
+
+        double previous = scale;
+        // a busy committer is backed off as well: the records wait behind the commits, so larger flushes only make
+        // them wait longer and hold more memory
+        if (freshness > config.getMaxFreshness().toMillis() || utilization > config.getMaxCommitUtilization()
+                || tableFlushSize > targetTableFlushSize * 2
+                || memoryPool.getReservedBytes() > memoryPool.getMaxBytes() * MEMORY_PRESSURE_RATIO) {
+            scale = Math.max(config.getMinScale(), scale * DECREASE_FACTOR);
+        }
+        else if (tableFlushSize < targetTableFlushSize) {
+            scale = Math.min(config.getMaxScale(), scale + config.getScaleStep());
+        }
+
+        if (scale != previous) {
+            log.debug("Flush scale is changed from %.2f to %.2f (table flush size %d bytes, commit utilization %.2f, freshness %dms)",
+                    previous, scale, tableFlushSize, utilization, freshness);
+        }
+    }
+
+    @Managed
+    public double getScale()
+    {
+        return scale;
+    }
+
+    @Managed
+    public long getLastCommitLatencyMillis()
+    {
+        return lastCommitLatencyMillis;
+    }
+
+    @Managed
+    public long getLastTableFlushSize()
+    {
+        return lastTableFlushSize;
+    }
+
+    @Managed
+    public int getStreamFlushRecords()
+    {
+        return scale(streamConfig.getMaxFlushRecords());
+    }
+
+    @Managed
+    public long getStreamFlushSize()
+    {
+        return scale(streamConfig.getDataSize().toBytes());
+    }
+
+    @Managed
+    public long getStreamFlushDurationMillis()
+    {
+        return scale(streamConfig.getMaxFlushDuration().toMillis());
+    }
+
+    @Managed
+    public int getMiddlewareFlushRecords()
+    {
+        return scale(middlewareConfig.getMaxFlushRecords());
+    }
+
+    @Managed
+    public long getMiddlewareFlushSize()
+    {
+        return scale(middlewareConfig.getMaxSize().toBytes());
+    }
+
+    @Managed
+    public long getMiddlewareFlushDurationMillis()
+    {
+        return scale(middlewareConfig.getMaxFlushDuration().toMillis());
+    }
+
+    private int scale(int value)
+    {
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(value * scale));
+    }
+
+    private long scale(long value)
+    {
+        return Math.round(value * scale);
+    }
+}
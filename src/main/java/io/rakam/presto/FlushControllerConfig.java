@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import io.airlift.configuration.Config;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.airlift.units.DataSize.Unit.MEGABYTE;
+
+public class FlushControllerConfig
+{
+    private boolean enabled;
+    private DataSize targetTableFlushSize = DataSize.succinctDataSize(64, MEGABYTE);
+    private Duration maxFreshness = Duration.succinctDuration(5, TimeUnit.MINUTES);
+    private double maxCommitUtilization = 0.5;
+    private double minScale = 0.25;
+    private double maxScale = 4;
+    private double scaleStep = 0.25;
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Scales the flush thresholds of the stream and middleware buffers with the observed commits instead of
+     * using the configured values as they are.
+     */
+    @Config("flush-controller.enabled")
+    public FlushControllerConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public DataSize getTargetTableFlushSize()
+    {
+        return targetTableFlushSize;
+    }
+
+    /**
+     * The uncompressed size of the pages a table gets per middleware flush that the controller aims for, the shards
+     * written from them are smaller.
+     */
+    @Config("flush-controller.target-table-flush-size")
+    public FlushControllerConfig setTargetTableFlushSize(DataSize targetTableFlushSize)
+    {
+        this.targetTableFlushSize = targetTableFlushSize;
+        return this;
+    }
+
+    public Duration getMaxFreshness()
+    {
+        return maxFreshness;
+    }
+
+    /**
+     * The longest time a record may wait in the buffers before it's committed.
+     */
+    @Config("flush-controller.max-freshness")
+    public FlushControllerConfig setMaxFreshness(Duration maxFreshness)
+    {
+        this.maxFreshness = maxFreshness;
+        return this;
+    }
+
+    @DecimalMin("0.0")
+    @DecimalMax("1.0")
+    public double getMaxCommitUtilization()
+    {
+        return maxCommitUtilization;
+    }
+
+    /**
+     * The share of the time the committer may spend committing before the flush thresholds are lowered.
+     */
+    @Config("flush-controller.max-commit-utilization")
+    public FlushControllerConfig setMaxCommitUtilization(double maxCommitUtilization)
+    {
+        this.maxCommitUtilization = maxCommitUtilization;
+        return this;
+    }
+
+    @DecimalMin("0.0")
+    public double getMinScale()
+    {
+        return minScale;
+    }
+
+    @Config("flush-controller.min-scale")
+    public FlushControllerConfig setMinScale(double minScale)
+    {
+        this.minScale = minScale;
+        return this;
+    }
+
+    public double getMaxScale()
+    {
+        return maxScale;
+    }
+
+    @Config("flush-controller.max-scale")
+    public FlushControllerConfig setMaxScale(double maxScale)
+    {
+        this.maxScale = maxScale;
+        return this;
+    }
+
+    public double getScaleStep()
+    {
+        return scaleStep;
+    }
+
+    /**
+     * The scale is increased by this step and halved when the commits fall behind.
+     */
+    @Config("flush-controller.scale-step")
+    public FlushControllerConfig setScaleStep(double scaleStep)
+    {
+        this.scaleStep = scaleStep;
+        return this;
+    }
+}
@@ -0,0 +1,10 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+public enum FlushReason
+{
+    RECORDS, TIME, SIZE, MEMORY
+}
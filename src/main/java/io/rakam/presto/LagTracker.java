@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.google.common.collect.ImmutableMap;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+import org.weakref.jmx.Managed;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LagTracker
+{
+    private static final Logger log = Logger.get(LagTracker.class);
+
+    private final String source;
+    private final String unit;
+    private final Aggregation aggregation;
+    private final double maxGrowthRate;
+    private final long windowMillis;
+    private final Map<String, Long> lags = new ConcurrentHashMap<>();
+
+    private long windowStartMillis;
+    private long windowStartLag = -1;
+    private volatile double lastGrowthRate;
+
+    public LagTracker(String source, String unit, Aggregation aggregation, double maxGrowthRate, Duration window)
+    {
+        this.source = source;
+        this.unit = unit;
+        this.aggregation = aggregation;
+        this.maxGrowthRate = maxGrowthRate;
+        this.windowMillis = window.toMillis();
+    }
+
+    public void update(String key, long lag)
+    {
+        lags.put(key, lag);
+        evaluate(System.currentTimeMillis());
+    }
+
+    public void replaceAll(Map<String, Long> lags)
+    {
+        this.lags.keySet().retainAll(lags.keySet());
+        this.lags.putAll(lags);
+        evaluate(System.currentTimeMillis());
+    }
+
+    public void remove(String key)
+    {
+        lags.remove(key);
+    }
+
+    private synchronized void evaluate(long now)
+    {
+        long lag = getLag();
+        if (windowStartLag < 0) {
+            windowStartLag = lag;
+            windowStartMillis = now;
+            return;
+        }
+
+        long elapsed = now - windowStartMillis;
+        if (elapsed < windowMillis) {
+            return;
+        }
+
+        lastGrowthRate = (lag - windowStartLag) * 1000.0 / elapsed;
+        if (lastGrowthRate > maxGrowthRate) {
+            log.warn("%s lag grew from %d to %d %s in %dms (%.1f %s/s), the collector is falling behind. Limit is %.1f %s/s",
+                    source, windowStartLag, lag, unit, elapsed, lastGrowthRate, unit, maxGrowthRate, unit);
+        }
+
+        windowStartLag = lag;
+        windowStartMillis = now;
+    }
+
+    public Map<String, Long> getLags()
+    {
+        return ImmutableMap.copyOf(lags);
+    }
+
+    @Managed
+    public long getLag()
+    {
+        return aggregation == Aggregation.SUM ? getTotalLag() : getMaxLag();
+    }
+
+    @Managed
+    public long getTotalLag()
+    {
+        return lags.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Managed
+    public long getMaxLag()
+    {
+        return lags.values().stream().mapToLong(Long::longValue).max().orElse(0);
+    }
+
+    @Managed
+    public double getLastGrowthRate()
+    {
+        return lastGrowthRate;
+    }
+
+    @Managed
+    public int getTrackedCount()
+    {
+        return lags.size();
+    }
+
+    public enum Aggregation
+    {
+        SUM, MAX
+    }
+}
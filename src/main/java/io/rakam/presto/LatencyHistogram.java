@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of millisecond values in the spirit of HdrHistogram: every power of two
+ * is split into {@value #SUB_BUCKET_COUNT} linear buckets, which bounds the relative error to ~3%.
+ * Recording is lock-free and does not allocate.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 2^40 ms is roughly 35 years, anything above is clamped to the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long value)
+    {
+        counts.incrementAndGet(bucketIndex(value));
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the lower bound of the bucket containing the given percentile, or 0 if the histogram is empty.
+     */
+    public long getPercentile(double percentile)
+    {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return bucketLowerBound(i);
+            }
+        }
+        return bucketLowerBound(BUCKET_COUNT - 1);
+    }
+
+    public long getMax()
+    {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return bucketLowerBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Moves the recorded values to a new histogram and resets this one. Values recorded concurrently
+     * end up in exactly one of the two histograms.
+     */
+    public LatencyHistogram snapshotAndReset()
+    {
+        LatencyHistogram snapshot = new LatencyHistogram();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.getAndSet(i, 0);
+            if (count > 0) {
+                snapshot.counts.set(i, count);
+            }
+        }
+        return snapshot;
+    }
+
+    public void merge(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKET_COUNT) {
+            // negative values come from clock skew between producers and the collector
+            return (int) Math.max(0, value);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketLowerBound(int index)
+    {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket)) << shift;
+    }
+}
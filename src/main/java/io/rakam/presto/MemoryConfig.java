@@ -0,0 +1,27 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import io.airlift.configuration.Config;
+import io.airlift.units.DataSize;
+
+public class MemoryConfig
+{
+    private DataSize maxSize = DataSize.succinctBytes((long) (Runtime.getRuntime().maxMemory() * 0.7));
+
+    /**
+     * The memory the stream and middleware buffers of this node may reserve in total, 70% of the heap by default.
+     */
+    @Config("memory.max-size")
+    public void setMaxSize(DataSize maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    public DataSize getMaxSize()
+    {
+        return maxSize;
+    }
+}
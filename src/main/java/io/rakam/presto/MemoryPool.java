@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.weakref.jmx.Managed;
+
+import javax.inject.Inject;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Node-wide memory pool the buffers reserve from, in the style of the Presto memory pool. A reservation always
+ * succeeds since the data is already in memory when it's accounted; the returned future completes once the pool
+ * has free memory again, and the consumers stop reading from the stream until it does.
+ */
+public class MemoryPool
+{
+    private static final ListenableFuture<?> NOT_BLOCKED = Futures.immediateFuture(null);
+
+    private final long maxBytes;
+    private long reservedBytes;
+    private SettableFuture<?> future;
+
+    @Inject
+    public MemoryPool(MemoryConfig config)
+    {
+        this(config.getMaxSize().toBytes());
+    }
+
+    public MemoryPool(long maxBytes)
+    {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserves the bytes and returns a future that completes when the pool is not full.
+     */
+    public synchronized ListenableFuture<?> reserve(long bytes)
+    {
+        checkArgument(bytes >= 0, "bytes is negative");
+        reservedBytes += bytes;
+        return getNotFullFuture();
+    }
+
+    public void free(long bytes)
+    {
+        checkArgument(bytes >= 0, "bytes is negative");
+        SettableFuture<?> unblocked = null;
+        synchronized (this) {
+            reservedBytes -= bytes;
+            if (reservedBytes < maxBytes && future != null) {
+                unblocked = future;
+                future = null;
+            }
+        }
+        // the listeners are not run while the pool is locked
+        if (unblocked != null) {
+            unblocked.set(null);
+        }
+    }
+
+    public synchronized ListenableFuture<?> getNotFullFuture()
+    {
+        if (reservedBytes < maxBytes) {
+            return NOT_BLOCKED;
+        }
+        if (future == null) {
+            future = SettableFuture.create();
+        }
+        return future;
+    }
+
+    public synchronized boolean isFull()
+    {
+        return reservedBytes >= maxBytes;
+    }
+
+    @Managed
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    @Managed
+    public synchronized long getReservedBytes()
+    {
+        return reservedBytes;
+    }
+
+    @Managed
+    public synchronized long getFreeBytes()
+    {
+        return maxBytes - reservedBytes;
+    }
+}
@@ -4,50 +4,519 @@
 
 package io.rakam.presto;
 
+import com.facebook.presto.execution.buffer.SerializedPage;
+import com.facebook.presto.spi.ColumnMetadata;
 import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.block.Block;
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Table;
+import io.airlift.log.Logger;
+import io.rakam.presto.deserialization.LatencySamples;
+import io.rakam.presto.deserialization.TableData;
 
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 public class MiddlewareBuffer
 {
-    private final List<BatchRecords> batches;
+    private static final Logger log = Logger.get(MiddlewareBuffer.class);
+    // blocks that retain more than this multiple of their size are copied before they are buffered
+    private static final double COMPACTION_RATIO = 1.5;
+
+    private final List<BufferedBatch> batches;
     private final MiddlewareConfig config;
-    private long previousFlushTimeMillisecond;
+    private final CollectorStats stats;
+    private volatile long previousFlushTimeMillisecond;
     private AtomicLong bufferRecordCount = new AtomicLong();
     private AtomicLong bufferSize = new AtomicLong();
+    private AtomicLong memorySize = new AtomicLong();
+    private final MiddlewarePageSerde pageSerde;
+    private final WriteAheadLog writeAheadLog;
+    private final MemoryPool memoryPool;
+    private final FlushController flushController;
+    private MiddlewareSpillFile spillFile;
+
+    public MiddlewareBuffer(MiddlewareConfig middlewareConfig, CollectorStats stats)
+    {
+        this(middlewareConfig, stats, new MemoryPool(Long.MAX_VALUE));
+    }
+
+    public MiddlewareBuffer(MiddlewareConfig middlewareConfig, CollectorStats stats, MemoryPool memoryPool)
+    {
+        this(middlewareConfig, stats, memoryPool, FlushController.fixed(new StreamConfig(), middlewareConfig));
+    }
+
+    public MiddlewareBuffer(MiddlewareConfig middlewareConfig, CollectorStats stats, MemoryPool memoryPool, FlushController flushController)
+    {
+        this(middlewareConfig, stats, memoryPool, flushController, null);
+    }
 
-    public MiddlewareBuffer(MiddlewareConfig middlewareConfig)
+    /**
+     * The pages kept in memory are reserved from the memory pool until they're flushed or spilled. The flush
+     * thresholds are the current setpoints of the controller. The page serde is shared by the buffers of the node,
+     * a standalone one is created if it's not given and the pages are serialized.
+     */
+    public MiddlewareBuffer(MiddlewareConfig middlewareConfig, CollectorStats stats, MemoryPool memoryPool, FlushController flushController,
+            @Nullable MiddlewarePageSerde pageSerde)
     {
         batches = new ArrayList<>();
         this.config = middlewareConfig;
+        this.stats = stats;
+        this.memoryPool = memoryPool;
+        this.flushController = flushController;
+        this.previousFlushTimeMillisecond = System.currentTimeMillis();
+        if (middlewareConfig.isCompressPages() || middlewareConfig.getSpillDirectory() != null
+                || middlewareConfig.getWriteAheadLogDirectory() != null) {
+            this.pageSerde = pageSerde != null ? pageSerde : MiddlewarePageSerde.createStandalone();
+        }
+        else {
+            this.pageSerde = null;
+        }
+
+        if (middlewareConfig.getWriteAheadLogDirectory() != null) {
+            try {
+                this.writeAheadLog = new WriteAheadLog(middlewareConfig.getWriteAheadLogDirectory(), pageSerde,
+                        middlewareConfig.getWriteAheadLogSyncInterval(), middlewareConfig.getWriteAheadLogSegmentSize());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Unable to open the write-ahead log", e);
+            }
+        }
+        else {
+            this.writeAheadLog = null;
+        }
     }
 
+    /**
+     * Adds the pages after copying the blocks that retain much more memory than they use, such as the over-allocated
+     * arrays of the block builders, to exact size arrays since the pages wait in the buffer until the next flush.
+     * When the pages are compressed they're serialized instead and deserialized when they're flushed.
+     * The buffer size is the retained size of the pages or the size of the serialized pages.
+     * <p>
+     * When a spill directory is configured and the pages in memory exceed the memory limit or the memory pool is
+     * full, the oldest batches are moved to the spill file. The spilled pages still count towards the buffer size, so the flush policy
+     * is the same; a spike costs disk bandwidth instead of a flush with small shards.
+     * <p>
+     * When the write-ahead log is enabled the pages are logged before they're buffered, the batch is released from
+     * the log with {@link #release(Iterable)} once it's committed.
+     * <p>
+     * The pages are logged, copied and serialized by the calling thread, the buffer is only locked to publish the
+     * batch, so that the other shards don't wait for the disk.
+     */
     public void add(BatchRecords records)
     {
-        batches.add(records);
-        bufferRecordCount.addAndGet(records.getTable().cellSet().stream()
-                .map(Table.Cell::getValue).map(e -> e.page).mapToLong(Page::getSizeInBytes).sum());
-        bufferSize.addAndGet(records.getTable().cellSet().stream()
-                .map(Table.Cell::getValue).map(e -> e.page).mapToLong(Page::getPositionCount).sum());
+        long logEntryId = -1;
+        if (writeAheadLog != null) {
+            try {
+                logEntryId = writeAheadLog.append(records.getCheckpointer().getPositions(), records.getTable());
+            }
+            catch (IOException e) {
+                // the records are read from the stream again if the process dies before the batch is checkpointed
+                log.error(e, "Unable to write the batch to the write-ahead log");
+            }
+        }
+
+        Table<String, String, TableData> table = HashBasedTable.create();
+        Table<String, String, SerializedTableData> serializedTable = HashBasedTable.create();
+        long recordCount = 0;
+        long size = 0;
+        for (Table.Cell<String, String, TableData> cell : records.getTable().cellSet()) {
+            TableData data = cell.getValue();
+            recordCount += data.page.getPositionCount();
+            if (config.isCompressPages()) {
+                SerializedPage page = pageSerde.serialize(data.page);
+                serializedTable.put(cell.getRowKey(), cell.getColumnKey(), new SerializedTableData(page, data));
+                size += page.getSizeInBytes();
+            }
+            else {
+                Page page = compact(data.page);
+                table.put(cell.getRowKey(), cell.getColumnKey(), page == data.page ? data : new TableData(page, data.metadata, data.latencySamples));
+                size += getRetainedSizeInBytes(page);
+            }
+        }
+
+        BufferedBatch batch = new BufferedBatch(records.getCheckpointer(), logEntryId, table, serializedTable, System.currentTimeMillis(), recordCount, size);
+        synchronized (this) {
+            batches.add(batch);
+            bufferRecordCount.addAndGet(recordCount);
+            bufferSize.addAndGet(size);
+            updateMemorySize(size);
+
+            if (config.getSpillDirectory() != null) {
+                spill(config.getMaxMemory().toBytes());
+            }
+        }
+    }
+
+    private void spill(long maxMemory)
+    {
+        for (BufferedBatch batch : batches) {
+            if (memorySize.get() <= maxMemory && !memoryPool.isFull()) {
+                return;
+            }
+            if (batch.memorySize == 0) {
+                continue;
+            }
+
+            try {
+                if (spillFile == null) {
+                    spillFile = new MiddlewareSpillFile(config.getSpillDirectory());
+                }
+
+                long spilledBytes = 0;
+                for (Table.Cell<String, String, TableData> cell : batch.table.cellSet()) {
+                    SpilledTableData data = new SpilledTableData(spillFile.append(pageSerde.serialize(cell.getValue().page)),
+                            cell.getValue().metadata, cell.getValue().latencySamples);
+                    batch.spilledTable.put(cell.getRowKey(), cell.getColumnKey(), data);
+                    spilledBytes += data.region.getLength();
+                }
+                for (Table.Cell<String, String, SerializedTableData> cell : batch.serializedTable.cellSet()) {
+                    SpilledTableData data = new SpilledTableData(spillFile.append(cell.getValue().page),
+                            cell.getValue().metadata, cell.getValue().latencySamples);
+                    batch.spilledTable.put(cell.getRowKey(), cell.getColumnKey(), data);
+                    spilledBytes += data.region.getLength();
+                }
+                batch.table.clear();
+                batch.serializedTable.clear();
+                updateMemorySize(-batch.memorySize);
+                batch.memorySize = 0;
+                stats.getSpilledBytes().update(spilledBytes);
+            }
+            catch (IOException e) {
+                // the pages that are already written are kept in memory as well, they're skipped when the batch is read
+                batch.spilledTable.clear();
+                log.error(e, "Unable to spill the middleware buffer to %s, keeping the pages in memory", config.getSpillDirectory());
+                return;
+            }
+        }
+    }
+
+    private void updateMemorySize(long delta)
+    {
+        memorySize.addAndGet(delta);
+        if (delta > 0) {
+            memoryPool.reserve(delta);
+        }
+        else {
+            memoryPool.free(-delta);
+        }
+    }
+
+    static Page compact(Page page)
+    {
+        Block[] blocks = null;
+        for (int channel = 0; channel < page.getChannelCount(); channel++) {
+            Block block = page.getBlock(channel);
+            if (block.getRetainedSizeInBytes() > block.getSizeInBytes() * COMPACTION_RATIO) {
+                if (blocks == null) {
+                    blocks = new Block[page.getChannelCount()];
+                    for (int i = 0; i < blocks.length; i++) {
+                        blocks[i] = page.getBlock(i);
+                    }
+                }
+                blocks[channel] = block.copyRegion(0, block.getPositionCount());
+            }
+        }
+        return blocks == null ? page : new Page(page.getPositionCount(), blocks);
+    }
+
+    static long getRetainedSizeInBytes(Page page)
+    {
+        long size = 0;
+        for (int channel = 0; channel < page.getChannelCount(); channel++) {
+            size += page.getBlock(channel).getRetainedSizeInBytes();
+        }
+        return size;
     }
 
     public boolean shouldFlush()
     {
-        long size = bufferRecordCount.get();
-        long timelapseMillisecond = System.currentTimeMillis() - previousFlushTimeMillisecond;
-        return ((size >= config.getMaxFlushRecords()) || (timelapseMillisecond >= config.getMaxFlushDuration().toMillis()))
-                || bufferSize.get() > config.getMaxSize().toBytes();
+        return getFlushReason() != null;
+    }
+
+    public FlushReason getFlushReason()
+    {
+        if (bufferRecordCount.get() >= flushController.getMiddlewareFlushRecords()) {
+            return FlushReason.RECORDS;
+        }
+        if (bufferSize.get() > flushController.getMiddlewareFlushSize()) {
+            return FlushReason.SIZE;
+        }
+        if (System.currentTimeMillis() - previousFlushTimeMillisecond >= flushController.getMiddlewareFlushDurationMillis()) {
+            return FlushReason.TIME;
+        }
+        if (memorySize.get() > 0 && memoryPool.isFull()) {
+            return FlushReason.MEMORY;
+        }
+        return null;
+    }
+
+    public long getBufferRecordCount()
+    {
+        return bufferRecordCount.get();
+    }
+
+    public long getBufferSize()
+    {
+        return bufferSize.get();
+    }
+
+    public long getMemorySize()
+    {
+        return memorySize.get();
     }
 
     public synchronized List<BatchRecords> flush()
     {
-        ImmutableList<BatchRecords> flushed = ImmutableList.copyOf(batches);
+        long now = System.currentTimeMillis();
+        ImmutableList.Builder<BatchRecords> flushed = ImmutableList.builder();
+        for (BufferedBatch batch : batches) {
+            stats.getMiddlewareWaitTime().add(now - batch.addedAt, TimeUnit.MILLISECONDS);
+            flushed.add(toBatchRecords(batch));
+        }
         batches.clear();
-        previousFlushTimeMillisecond = System.currentTimeMillis();
-        return flushed;
+        bufferRecordCount.set(0);
+        bufferSize.set(0);
+        updateMemorySize(-memorySize.get());
+        previousFlushTimeMillisecond = now;
+        closeSpillFileIfEmpty();
+        return flushed.build();
+    }
+
+    /**
+     * Removes and returns only the batches whose checkpointer matches the filter, e.g. the ones that belong to revoked
+     * partitions. The flush clock is not reset since the remaining batches are still waiting.
+     */
+    public synchronized List<BatchRecords> flush(Predicate<BatchRecords.Checkpointer> filter)
+    {
+        long now = System.currentTimeMillis();
+        ImmutableList.Builder<BatchRecords> flushed = ImmutableList.builder();
+        Iterator<BufferedBatch> iterator = batches.iterator();
+        while (iterator.hasNext()) {
+            BufferedBatch batch = iterator.next();
+            if (filter.test(batch.checkpointer)) {
+                stats.getMiddlewareWaitTime().add(now - batch.addedAt, TimeUnit.MILLISECONDS);
+                flushed.add(toBatchRecords(batch));
+                bufferRecordCount.addAndGet(-batch.recordCount);
+                bufferSize.addAndGet(-batch.size);
+                updateMemorySize(-batch.memorySize);
+                iterator.remove();
+            }
+        }
+        closeSpillFileIfEmpty();
+        return flushed.build();
+    }
+
+    private BatchRecords toBatchRecords(BufferedBatch batch)
+    {
+        Table<String, String, TableData> table = HashBasedTable.create(batch.table);
+        for (Table.Cell<String, String, SerializedTableData> cell : batch.serializedTable.cellSet()) {
+            SerializedTableData data = cell.getValue();
+            table.put(cell.getRowKey(), cell.getColumnKey(),
+                    new TableData(pageSerde.deserialize(data.page), data.metadata, data.latencySamples));
+        }
+        for (Table.Cell<String, String, SpilledTableData> cell : batch.spilledTable.cellSet()) {
+            SpilledTableData data = cell.getValue();
+            try {
+                table.put(cell.getRowKey(), cell.getColumnKey(),
+                        new TableData(pageSerde.deserialize(spillFile.read(data.region)), data.metadata, data.latencySamples));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Unable to read the spilled pages of " + cell.getRowKey() + "." + cell.getColumnKey(), e);
+            }
+        }
+        return new BatchRecords(table, batch.checkpointer, batch.logEntryId);
+    }
+
+    /**
+     * Removes the flushed batches from the write-ahead log. The batches are released once they're committed and
+     * checkpointed, or when their tables are buffered again, or handed off to another node, since they're not
+     * replayed by this node in that case.
+     */
+    public void release(Iterable<BatchRecords> flushed)
+    {
+        if (writeAheadLog == null) {
+            return;
+        }
+
+        for (BatchRecords batch : flushed) {
+            if (batch.getLogEntryId() < 0) {
+                continue;
+            }
+            try {
+                writeAheadLog.release(batch.getLogEntryId());
+            }
+            catch (IOException e) {
+                log.warn(e, "Unable to release the batch from the write-ahead log");
+            }
+        }
+    }
+
+    /**
+     * Writes the tables of the batch that can't be committed to the dead-letter file of the write-ahead log and
+     * releases the batch, so that the given up records are neither replayed nor lost when the stream moves past them.
+     */
+    public void giveUp(BatchRecords batch, Table<String, String, TableData> failed)
+    {
+        if (writeAheadLog == null) {
+            return;
+        }
+
+        try {
+            writeAheadLog.appendDeadLetter(batch.getCheckpointer().getPositions(), failed);
+        }
+        catch (IOException e) {
+            // the batch stays in the log and is replayed by the next process
+            log.error(e, "Unable to write the given up batch to the dead-letter file");
+            return;
+        }
+        release(ImmutableList.of(batch));
+    }
+
+    /**
+     * Commits the batches that were logged by the previous process but not checkpointed, and returns their stream
+     * positions so that the workers skip the records of the replayed batches. The tables that can't be committed
+     * are buffered again with the checkpointer created from the positions of their batch, so they're logged again,
+     * retried with the next flushes and given up like the other batches.
+     */
+    public List<Map<String, String>> recover(TargetConnectorCommitter committer, Function<Map<String, String>, BatchRecords.Checkpointer> replayedCheckpointer)
+    {
+        if (writeAheadLog == null) {
+            return ImmutableList.of();
+        }
+
+        try {
+            List<WriteAheadLog.Entry> entries = writeAheadLog.readRecovered();
+            if (!entries.isEmpty()) {
+                long records = 0;
+                for (WriteAheadLog.Entry entry : entries) {
+                    records += entry.getTable().values().stream().mapToLong(data -> data.page.getPositionCount()).sum();
+                }
+                log.info("Replaying %d batches with %d records from the write-ahead log", entries.size(), records);
+
+                Set<SchemaTableName> failedTables = committer.process(Iterables.transform(entries, WriteAheadLog.Entry::getTable));
+                for (WriteAheadLog.Entry entry : entries) {
+                    Table<String, String, TableData> failed = HashBasedTable.create();
+                    for (Table.Cell<String, String, TableData> cell : entry.getTable().cellSet()) {
+                        if (failedTables.contains(new SchemaTableName(cell.getRowKey(), cell.getColumnKey()))) {
+                            failed.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+                        }
+                    }
+                    if (!failed.isEmpty()) {
+                        add(new BatchRecords(failed, replayedCheckpointer.apply(entry.getPositions())));
+                    }
+                }
+                stats.getReplayedRecords().update(records);
+            }
+            writeAheadLog.deleteRecovered();
+            return entries.stream().map(WriteAheadLog.Entry::getPositions).collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to replay the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Syncs and closes the write-ahead log, the batches that are not committed yet are replayed by the next process.
+     */
+    public void close()
+    {
+        if (writeAheadLog == null) {
+            return;
+        }
+
+        try {
+            writeAheadLog.close();
+        }
+        catch (IOException e) {
+            log.warn(e, "Unable to close the write-ahead log");
+        }
+    }
+
+    /**
+     * The spill file is only appended to, the space of the flushed batches is reclaimed once none of the batches are spilled.
+     */
+    private void closeSpillFileIfEmpty()
+    {
+        if (spillFile == null || batches.stream().anyMatch(batch -> !batch.spilledTable.isEmpty())) {
+            return;
+        }
+
+        try {
+            spillFile.close();
+        }
+        catch (IOException e) {
+            log.warn(e, "Unable to delete the spill file");
+        }
+        spillFile = null;
+    }
+
+    private static class BufferedBatch
+    {
+        private final BatchRecords.Checkpointer checkpointer;
+        private final long logEntryId;
+        private final Table<String, String, TableData> table;
+        private final Table<String, String, SerializedTableData> serializedTable;
+        private final Table<String, String, SpilledTableData> spilledTable = HashBasedTable.create();
+        private final long addedAt;
+        private final long recordCount;
+        private final long size;
+        private long memorySize;
+
+        private BufferedBatch(BatchRecords.Checkpointer checkpointer, long logEntryId, Table<String, String, TableData> table,
+                Table<String, String, SerializedTableData> serializedTable, long addedAt, long recordCount, long size)
+        {
+            this.checkpointer = checkpointer;
+            this.logEntryId = logEntryId;
+            this.table = table;
+            this.serializedTable = serializedTable;
+            this.addedAt = addedAt;
+            this.recordCount = recordCount;
+            this.size = size;
+            this.memorySize = size;
+        }
+    }
+
+    private static class SerializedTableData
+    {
+        private final SerializedPage page;
+        private final List<ColumnMetadata> metadata;
+        private final LatencySamples latencySamples;
+
+        private SerializedTableData(SerializedPage page, TableData data)
+        {
+            this.page = page;
+            this.metadata = data.metadata;
+            this.latencySamples = data.latencySamples;
+        }
+    }
+
+    private static class SpilledTableData
+    {
+        private final MiddlewareSpillFile.Region region;
+        private final List<ColumnMetadata> metadata;
+        private final LatencySamples latencySamples;
+
+        private SpilledTableData(MiddlewareSpillFile.Region region, List<ColumnMetadata> metadata, LatencySamples latencySamples)
+        {
+            this.region = region;
+            this.metadata = metadata;
+            this.latencySamples = latencySamples;
+        }
     }
 }
@@ -5,14 +5,26 @@
 package io.rakam.presto;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 import io.airlift.units.DataSize;
 import io.airlift.units.Duration;
 
+import javax.annotation.Nullable;
+
+import java.io.File;
+
 public class MiddlewareConfig
 {
     private Duration maxFlushDuration = Duration.valueOf("60s");
     private int maxFlushRecords = 150_000;
     private DataSize maxSize = DataSize.succinctDataSize(350, DataSize.Unit.MEGABYTE);
+    private boolean compressPages;
+    private File spillDirectory;
+    // below max-size, otherwise the buffer is flushed before anything is spilled
+    private DataSize maxMemory = DataSize.succinctDataSize(128, DataSize.Unit.MEGABYTE);
+    private File writeAheadLogDirectory;
+    private Duration writeAheadLogSyncInterval = Duration.valueOf("1s");
+    private DataSize writeAheadLogSegmentSize = DataSize.succinctDataSize(64, DataSize.Unit.MEGABYTE);
 
     @Config("middleware.max-flush-duration")
     public void setMaxFlushDuration(Duration maxFlushDuration)
@@ -27,11 +39,83 @@ public class MiddlewareConfig
     }
 
     @Config("middleware.max-size")
+    @ConfigDescription("The buffered pages are flushed once their size exceeds this, spilled pages included")
     public void setMaxSize(DataSize maxSize)
     {
         this.maxSize = maxSize;
     }
 
+    @Config("middleware.compress-pages")
+    public void setCompressPages(boolean compressPages)
+    {
+        this.compressPages = compressPages;
+    }
+
+    public boolean isCompressPages()
+    {
+        return compressPages;
+    }
+
+    @Config("middleware.spill-directory")
+    @ConfigDescription("Pages beyond middleware.max-memory are spilled to this directory, nothing is spilled when it's not set")
+    public void setSpillDirectory(File spillDirectory)
+    {
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Nullable
+    public File getSpillDirectory()
+    {
+        return spillDirectory;
+    }
+
+    @Config("middleware.max-memory")
+    @ConfigDescription("Only used with middleware.spill-directory, the oldest pages are spilled once the pages in memory exceed this. " +
+            "It should be below middleware.max-size since the buffer is flushed at max-size")
+    public void setMaxMemory(DataSize maxMemory)
+    {
+        this.maxMemory = maxMemory;
+    }
+
+    public DataSize getMaxMemory()
+    {
+        return maxMemory;
+    }
+
+    @Config("middleware.wal-directory")
+    public void setWriteAheadLogDirectory(File writeAheadLogDirectory)
+    {
+        this.writeAheadLogDirectory = writeAheadLogDirectory;
+    }
+
+    @Nullable
+    public File getWriteAheadLogDirectory()
+    {
+        return writeAheadLogDirectory;
+    }
+
+    @Config("middleware.wal-sync-interval")
+    public void setWriteAheadLogSyncInterval(Duration writeAheadLogSyncInterval)
+    {
+        this.writeAheadLogSyncInterval = writeAheadLogSyncInterval;
+    }
+
+    public Duration getWriteAheadLogSyncInterval()
+    {
+        return writeAheadLogSyncInterval;
+    }
+
+    @Config("middleware.wal-segment-size")
+    public void setWriteAheadLogSegmentSize(DataSize writeAheadLogSegmentSize)
+    {
+        this.writeAheadLogSegmentSize = writeAheadLogSegmentSize;
+    }
+
+    public DataSize getWriteAheadLogSegmentSize()
+    {
+        return writeAheadLogSegmentSize;
+    }
+
     public DataSize getMaxSize()
     {
         return maxSize;
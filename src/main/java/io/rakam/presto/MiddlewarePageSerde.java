@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.block.BlockEncodingManager;
+import com.facebook.presto.execution.buffer.PagesSerde;
+import com.facebook.presto.execution.buffer.PagesSerdeFactory;
+import com.facebook.presto.execution.buffer.SerializedPage;
+import com.facebook.presto.metadata.FunctionRegistry;
+import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.block.BlockEncodingSerde;
+import com.facebook.presto.spi.type.Type;
+import com.facebook.presto.spi.type.TypeManager;
+import com.facebook.presto.sql.analyzer.FeaturesConfig;
+import com.facebook.presto.type.TypeRegistry;
+
+import javax.inject.Inject;
+
+import static com.facebook.presto.spi.type.TypeSignature.parseTypeSignature;
+
+/**
+ * Serializes the pages waiting in the middleware buffer with the Presto exchange format, compressed with LZ4.
+ * The block encodings are the ones of the target connector, so the nested types resolve to the types the
+ * pages are committed with; a single serde is shared by the buffers of the node.
+ * <p>
+ * The LZ4 compressor of a serde keeps its hash table between the calls, so every thread gets its own serde; the
+ * pages are serialized by the stream threads without holding the lock of the middleware buffer.
+ */
+public class MiddlewarePageSerde
+{
+    private final TypeManager typeManager;
+    private final ThreadLocal<PagesSerde> pagesSerde;
+
+    @Inject
+    public MiddlewarePageSerde(TypeManager typeManager, BlockEncodingSerde blockEncodingSerde)
+    {
+        this.typeManager = typeManager;
+        PagesSerdeFactory pagesSerdeFactory = new PagesSerdeFactory(blockEncodingSerde, true);
+        this.pagesSerde = ThreadLocal.withInitial(pagesSerdeFactory::createPagesSerde);
+    }
+
+    /**
+     * Creates a serde with its own type registry, it's used when the buffer is created without the target connector.
+     */
+    public static MiddlewarePageSerde createStandalone()
+    {
+        TypeRegistry typeRegistry = new TypeRegistry();
+        BlockEncodingManager blockEncodingManager = new BlockEncodingManager(typeRegistry);
+        // the block encodings of the nested types need the functions of their types
+        new FunctionRegistry(typeRegistry, blockEncodingManager, new FeaturesConfig());
+        return new MiddlewarePageSerde(typeRegistry, blockEncodingManager);
+    }
+
+    public SerializedPage serialize(Page page)
+    {
+        return pagesSerde.get().serialize(page);
+    }
+
+    public Page deserialize(SerializedPage page)
+    {
+        return pagesSerde.get().deserialize(page);
+    }
+
+    public Type getType(String signature)
+    {
+        return typeManager.getType(parseTypeSignature(signature));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.execution.buffer.SerializedPage;
+import io.airlift.slice.BasicSliceInput;
+import io.airlift.slice.DynamicSliceOutput;
+import io.airlift.slice.Slices;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.facebook.presto.execution.buffer.PagesSerdeUtil.readSerializedPages;
+import static com.facebook.presto.execution.buffer.PagesSerdeUtil.writeSerializedPage;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append only file of the pages spilled from the middleware buffer. The pages are written sequentially and read back
+ * through a memory mapping of their region when their batch is flushed. The file is deleted when it's closed.
+ */
+public class MiddlewareSpillFile
+        implements Closeable
+{
+    private final File file;
+    private final FileChannel channel;
+    private long size;
+
+    public MiddlewareSpillFile(File directory)
+            throws IOException
+    {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spill directory " + directory);
+        }
+        this.file = File.createTempFile("middleware-", ".spill", directory);
+        this.file.deleteOnExit();
+        this.channel = FileChannel.open(file.toPath(), READ, WRITE);
+    }
+
+    /**
+     * Appends the page and returns the region it's written to.
+     */
+    public Region append(SerializedPage page)
+            throws IOException
+    {
+        DynamicSliceOutput output = new DynamicSliceOutput(page.getSizeInBytes() + 64);
+        writeSerializedPage(output, page);
+        ByteBuffer buffer = output.slice().toByteBuffer();
+
+        Region region = new Region(size, buffer.remaining());
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer, size);
+        }
+        return region;
+    }
+
+    public SerializedPage read(Region region)
+            throws IOException
+    {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, region.offset, region.length);
+        return readSerializedPages(new BasicSliceInput(Slices.wrappedBuffer(buffer))).next();
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            channel.close();
+        }
+        finally {
+            if (!file.delete()) {
+                throw new IOException("Unable to delete spill file " + file);
+            }
+        }
+    }
+
+    public static class Region
+    {
+        private final long offset;
+        private final int length;
+
+        private Region(long offset, int length)
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength()
+        {
+            return length;
+        }
+    }
+}
@@ -31,6 +31,7 @@ public class RetryDriver
     private final Duration maxRetryTime;
     private final Function<Throwable, Throwable> exceptionMapper;
     private final List<Class<? extends Exception>> exceptionWhiteList;
+    private final List<Class<? extends Exception>> retryableExceptions;
     private final Optional<Runnable> retryRunnable;
 
     private RetryDriver(
@@ -41,6 +42,7 @@ public class RetryDriver
             Duration maxRetryTime,
             Function<Throwable, Throwable> exceptionMapper,
             List<Class<? extends Exception>> exceptionWhiteList,
+            List<Class<? extends Exception>> retryableExceptions,
             Optional<Runnable> retryRunnable)
     {
         this.maxAttempts = maxAttempts;
@@ -50,6 +52,7 @@ public class RetryDriver
         this.maxRetryTime = maxRetryTime;
         this.exceptionMapper = exceptionMapper;
         this.exceptionWhiteList = exceptionWhiteList;
+        this.retryableExceptions = retryableExceptions;
         this.retryRunnable = retryRunnable;
     }
 
@@ -62,6 +65,7 @@ public class RetryDriver
                 DEFAULT_MAX_RETRY_TIME,
                 Function.identity(),
                 ImmutableList.of(),
+                ImmutableList.of(),
                 Optional.empty());
     }
 
@@ -72,22 +76,22 @@ public class RetryDriver
 
     public final RetryDriver maxAttempts(int maxAttempts)
     {
-        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, retryRunnable);
+        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, retryableExceptions, retryRunnable);
     }
 
     public final RetryDriver exponentialBackoff(Duration minSleepTime, Duration maxSleepTime, Duration maxRetryTime, double scaleFactor)
     {
-        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, retryRunnable);
+        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, retryableExceptions, retryRunnable);
     }
 
     public final RetryDriver onRetry(Runnable retryRunnable)
     {
-        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, Optional.ofNullable(retryRunnable));
+        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, retryableExceptions, Optional.ofNullable(retryRunnable));
     }
 
     public final RetryDriver exceptionMapper(Function<Throwable, Throwable> exceptionMapper)
     {
-        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, retryRunnable);
+        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, retryableExceptions, retryRunnable);
     }
 
     @SafeVarargs
@@ -99,7 +103,22 @@ public class RetryDriver
                 .addAll(Arrays.asList(classes))
                 .build();
 
-        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptions, retryRunnable);
+        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptions, retryableExceptions, retryRunnable);
+    }
+
+    /**
+     * Retries only the given exceptions, the others are thrown without retrying.
+     */
+    @SafeVarargs
+    public final RetryDriver retryOnlyOn(Class<? extends Exception>... classes)
+    {
+        Objects.requireNonNull(classes, "classes is null");
+        List<Class<? extends Exception>> exceptions = ImmutableList.<Class<? extends Exception>>builder()
+                .addAll(retryableExceptions)
+                .addAll(Arrays.asList(classes))
+                .build();
+
+        return new RetryDriver(maxAttempts, minSleepTime, maxSleepTime, scaleFactor, maxRetryTime, exceptionMapper, exceptionWhiteList, exceptions, retryRunnable);
     }
 
     public RetryDriver stopOnIllegalExceptions()
@@ -127,10 +146,8 @@ public class RetryDriver
             }
             catch (Throwable e) {
                 e = exceptionMapper.apply(e);
-                for (Class<? extends Exception> clazz : exceptionWhiteList) {
-                    if (clazz.isInstance(e)) {
-                        throw new RuntimeException(e);
-                    }
+                if (isInstance(exceptionWhiteList, e) || (!retryableExceptions.isEmpty() && !isInstance(retryableExceptions, e))) {
+                    throw new RuntimeException(e);
                 }
                 if (attempt >= maxAttempts || Duration.nanosSince(startTime).compareTo(maxRetryTime) >= 0) {
                     throw new RuntimeException(e);
@@ -142,4 +159,14 @@ public class RetryDriver
             }
         }
     }
+
+    private static boolean isInstance(List<Class<? extends Exception>> classes, Throwable e)
+    {
+        for (Class<? extends Exception> clazz : classes) {
+            if (clazz.isInstance(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -13,14 +13,19 @@ import io.airlift.log.Logger;
 import io.rakam.presto.connector.raptor.RaptorModule;
 import io.rakam.presto.kafka.KafkaStreamSourceModule;
 import io.rakam.presto.kinesis.KinesisStreamSourceModule;
+import org.weakref.jmx.guice.MBeanModule;
+
+import javax.management.MBeanServer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.util.Properties;
 
 import static io.airlift.configuration.ConfigBinder.configBinder;
 import static io.rakam.presto.ConditionalModule.installIfPropertyEquals;
+import static org.weakref.jmx.guice.ExportBinder.newExporter;
 
 public final class ServiceStarter
 {
@@ -65,6 +70,8 @@ public final class ServiceStarter
         }
 
         Bootstrap app = new Bootstrap(
+                new MBeanModule(),
+                binder -> binder.bind(MBeanServer.class).toInstance(ManagementFactory.getPlatformMBeanServer()),
                 new StreamSourceModule(),
                 new LogModule(),
                 new RaptorModule());
@@ -85,6 +92,18 @@ public final class ServiceStarter
             configBinder(binder).bindConfig(FieldNameConfig.class);
             configBinder(binder).bindConfig(S3MiddlewareConfig.class);
             configBinder(binder).bindConfig(MiddlewareConfig.class);
+            configBinder(binder).bindConfig(StatsConfig.class);
+            configBinder(binder).bindConfig(ClusterConfig.class);
+            configBinder(binder).bindConfig(MemoryConfig.class);
+            binder.bind(MemoryPool.class).in(Scopes.SINGLETON);
+            newExporter(binder).export(MemoryPool.class).withGeneratedName();
+            configBinder(binder).bindConfig(FlushControllerConfig.class);
+            binder.bind(FlushController.class).in(Scopes.SINGLETON);
+            newExporter(binder).export(FlushController.class).withGeneratedName();
+            binder.bind(CollectorStats.class).in(Scopes.SINGLETON);
+            newExporter(binder).export(CollectorStats.class).withGeneratedName();
+            binder.bind(StatsReporter.class).asEagerSingleton();
+            binder.bind(MiddlewarePageSerde.class).in(Scopes.SINGLETON);
             binder.bind(StreamWorkerContext.class).in(Scopes.SINGLETON);
             binder.bind(TargetConnectorCommitter.class).in(Scopes.SINGLETON);
 
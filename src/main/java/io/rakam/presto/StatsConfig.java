@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+public class StatsConfig
+{
+    private Duration logInterval = Duration.succinctDuration(1, TimeUnit.MINUTES);
+    private Duration tableLatencyRetention = Duration.succinctDuration(10, TimeUnit.MINUTES);
+
+    @Config("stats.log-interval")
+    public StatsConfig setLogInterval(Duration logInterval)
+    {
+        this.logInterval = logInterval;
+        return this;
+    }
+
+    public Duration getLogInterval()
+    {
+        return logInterval;
+    }
+
+    @Config("stats.table-latency-retention")
+    @ConfigDescription("The latency histograms of a table are dropped once nothing is committed to it for this long")
+    public StatsConfig setTableLatencyRetention(Duration tableLatencyRetention)
+    {
+        this.tableLatencyRetention = tableLatencyRetention;
+        return this;
+    }
+
+    public Duration getTableLatencyRetention()
+    {
+        return tableLatencyRetention;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.airlift.stats.TimeDistribution;
+import io.airlift.stats.TimeStat;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+public class StatsReporter
+{
+    private static final Logger log = Logger.get(StatsReporter.class);
+
+    private final CollectorStats stats;
+    private final StatsConfig config;
+    private final ScheduledExecutorService executor;
+
+    @Inject
+    public StatsReporter(CollectorStats stats, StatsConfig config)
+    {
+        this.stats = stats;
+        this.config = config;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("stats-reporter")
+                .setDaemon(true)
+                .build());
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        long interval = config.getLogInterval().toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                report();
+            }
+            catch (Throwable e) {
+                log.warn(e, "Unable to report collector stats");
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        executor.shutdownNow();
+    }
+
+    public void report()
+    {
+        log.info("Throughput: %.1f records/s, %.1f bytes/s, %.1f committed rows/s",
+                stats.getConsumedRecords().getOneMinute().getRate(),
+                stats.getConsumedBytes().getOneMinute().getRate(),
+                stats.getCommittedRows().getOneMinute().getRate());
+        log.info("Stage latency (ms, p50/p99): poll %s, stream flush %s, createPageTable %s, middleware wait %s, table commit %s, checkpoint %s",
+                summary(stats.getPollTime()),
+                summary(stats.getStreamFlushTime()),
+                summary(stats.getCreatePageTableTime()),
+                summary(stats.getMiddlewareWaitTime()),
+                summary(stats.getTableCommitTime()),
+                summary(stats.getCheckpointTime()));
+        log.info("Flush triggers (records/time/size/memory): stream %d/%d/%d/%d, middleware %d/%d/%d/%d",
+                stats.getStreamFlushByRecords().getTotalCount(),
+                stats.getStreamFlushByTime().getTotalCount(),
+                stats.getStreamFlushBySize().getTotalCount(),
+                stats.getStreamFlushByMemory().getTotalCount(),
+                stats.getMiddlewareFlushByRecords().getTotalCount(),
+                stats.getMiddlewareFlushByTime().getTotalCount(),
+                stats.getMiddlewareFlushBySize().getTotalCount(),
+                stats.getMiddlewareFlushByMemory().getTotalCount());
+        log.info("Failures: conversion %d, commit %d, checkpoint %d",
+                stats.getConversionFailures().getTotalCount(),
+                stats.getCommitFailures().getTotalCount(),
+                stats.getCheckpointFailures().getTotalCount());
+
+        for (Map.Entry<SchemaTableName, CollectorStats.TableLatency> entry : stats.snapshotCommitLatencies().entrySet()) {
+            LatencyHistogram eventToCommit = entry.getValue().getEventToCommit();
+            LatencyHistogram arrivalToCommit = entry.getValue().getArrivalToCommit();
+            if (eventToCommit.getCount() == 0 && arrivalToCommit.getCount() == 0) {
+                continue;
+            }
+            log.info("Freshness of %s (ms, p50/p99/max): event to commit %s, arrival to commit %s",
+                    entry.getKey(), summary(eventToCommit), summary(arrivalToCommit));
+        }
+    }
+
+    private static String summary(TimeStat stat)
+    {
+        TimeDistribution distribution = stat.getOneMinute();
+        return format("%.0f/%.0f", distribution.getP50(), distribution.getP99());
+    }
+
+    private static String summary(LatencyHistogram histogram)
+    {
+        return format("%d/%d/%d", histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax());
+    }
+}
@@ -6,7 +6,8 @@ package io.rakam.presto;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.Table;
-import io.rakam.presto.deserialization.MessageEventTransformer;
+import io.airlift.stats.TimeStat;
+import io.rakam.presto.deserialization.PageTableTransformer;
 import io.rakam.presto.deserialization.TableData;
 
 import javax.inject.Inject;
@@ -15,14 +16,21 @@ import java.io.IOException;
 
 public class StreamWorkerContext<T>
 {
-    private final MessageEventTransformer transformer;
-    private final StreamConfig streamConfig;
+    private final PageTableTransformer transformer;
+    private final FlushController flushController;
+    private final CollectorStats stats;
+    private final MemoryPool memoryPool;
+    private final MiddlewarePageSerde pageSerde;
 
     @Inject
-    public StreamWorkerContext(MessageEventTransformer transformer, StreamConfig streamConfig)
+    public StreamWorkerContext(PageTableTransformer transformer, FlushController flushController, CollectorStats stats, MemoryPool memoryPool,
+            MiddlewarePageSerde pageSerde)
     {
         this.transformer = transformer;
-        this.streamConfig = streamConfig;
+        this.flushController = flushController;
+        this.stats = stats;
+        this.memoryPool = memoryPool;
+        this.pageSerde = pageSerde;
     }
 
     public void shutdown()
@@ -33,18 +41,39 @@ public class StreamWorkerContext<T>
             throws IOException
     {
         Table<String, String, TableData> pages;
-        try {
+        try (TimeStat.BlockTimer ignored = stats.getCreatePageTableTime().time()) {
             pages = transformer.createPageTable(records, bulkRecords);
         }
         catch (IOException e) {
+            stats.getConversionFailures().update(1);
             throw Throwables.propagate(e);
         }
 
         return pages;
     }
 
-    public BasicMemoryBuffer createBuffer()
+    public BasicMemoryBuffer<T> createBuffer()
     {
-        return new BasicMemoryBuffer(streamConfig);
+        return new BasicMemoryBuffer<>(flushController, memoryPool);
+    }
+
+    public MemoryPool getMemoryPool()
+    {
+        return memoryPool;
+    }
+
+    public MiddlewarePageSerde getPageSerde()
+    {
+        return pageSerde;
+    }
+
+    public FlushController getFlushController()
+    {
+        return flushController;
+    }
+
+    public CollectorStats getStats()
+    {
+        return stats;
     }
 }
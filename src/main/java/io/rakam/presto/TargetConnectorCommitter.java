@@ -12,13 +12,18 @@ import com.facebook.presto.spi.block.BlockBuilder;
 import com.facebook.presto.spi.block.BlockBuilderStatus;
 import com.google.common.collect.Table;
 import io.airlift.log.Logger;
+import io.airlift.stats.TimeStat;
 import io.airlift.units.Duration;
+import io.rakam.presto.deserialization.LatencySamples;
 import io.rakam.presto.deserialization.TableData;
 
 import javax.inject.Inject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.StreamSupport;
@@ -27,19 +32,25 @@ public class TargetConnectorCommitter
 {
     private static final Logger log = Logger.get(TargetConnectorCommitter.class);
     private final DatabaseHandler databaseHandler;
+    private final CollectorStats stats;
 
     @Inject
-    public TargetConnectorCommitter(DatabaseHandler databaseHandler)
+    public TargetConnectorCommitter(DatabaseHandler databaseHandler, CollectorStats stats)
     {
         this.databaseHandler = databaseHandler;
+        this.stats = stats;
     }
 
-    public void process(Iterable<Table<String, String, TableData>> batches)
+    /**
+     * Commits the batches table by table and returns the tables that could not be committed after retrying.
+     */
+    public Set<SchemaTableName> process(Iterable<Table<String, String, TableData>> batches)
     {
+        Set<SchemaTableName> failedTables = new HashSet<>();
         StreamSupport.stream(batches.spliterator(), false).flatMap(t -> t.cellSet().stream()
                 .map(b -> new SchemaTableName(b.getRowKey(), b.getColumnKey()))).distinct().forEach(table -> {
 
-            try {
+            try (TimeStat.BlockTimer ignored = stats.getTableCommitTime().time()) {
                 RetryDriver.retry().maxAttempts(5)
                         .stopOn(InterruptedException.class)
                         .exponentialBackoff(
@@ -50,9 +61,12 @@ public class TargetConnectorCommitter
                         .run("middlewareConnector", () -> commit(batches, table).join());
             }
             catch (Exception e) {
+                stats.getCommitFailures().update(1);
+                failedTables.add(table);
                 log.error(e, "Unable to commit table %s.", table);
             }
         });
+        return failedTables;
     }
 
     private CompletableFuture<Void> commit(Iterable<Table<String, String, TableData>> batches, SchemaTableName table)
@@ -60,6 +74,8 @@ public class TargetConnectorCommitter
         List<ColumnMetadata> columns = databaseHandler.getColumns(table.getSchemaName(), table.getTableName());
 
         DatabaseHandler.Inserter insert = databaseHandler.insert(table.getSchemaName(), table.getTableName());
+        long rows = 0;
+        List<LatencySamples> samples = new ArrayList<>();
 
         for (Table<String, String, TableData> batch : batches) {
             TableData tableData = batch.get(table.getSchemaName(), table.getTableName());
@@ -80,9 +96,20 @@ public class TargetConnectorCommitter
                 }
 
                 insert.addPage(page);
+                rows += page.getPositionCount();
+                if (tableData.latencySamples != null) {
+                    samples.add(tableData.latencySamples);
+                }
             }
         }
 
-        return insert.commit();
+        long committedRows = rows;
+        return insert.commit().thenRun(() -> {
+            stats.getCommittedRows().update(committedRows);
+            long commitTime = System.currentTimeMillis();
+            for (LatencySamples sample : samples) {
+                stats.recordCommitLatency(table, sample, commitTime);
+            }
+        });
     }
 }
@@ -0,0 +1,494 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.Page;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Table;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.airlift.slice.BasicSliceInput;
+import io.airlift.slice.DynamicSliceOutput;
+import io.airlift.slice.Slice;
+import io.airlift.slice.SliceInput;
+import io.airlift.slice.SliceOutput;
+import io.airlift.slice.Slices;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+import io.rakam.presto.deserialization.TableData;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static com.facebook.presto.execution.buffer.PagesSerdeUtil.readSerializedPages;
+import static com.facebook.presto.execution.buffer.PagesSerdeUtil.writeSerializedPage;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append only log of the converted pages of the batches waiting in the middleware buffer, together with the stream
+ * positions they cover. An entry is released once its batch is committed and checkpointed, and a segment file is
+ * deleted (or truncated if it's still written to) when all of its entries are released. Until then, a release is
+ * written to the segment of the entry as a tombstone that refers to the offset of the entry, so that the entries
+ * that are already committed are not replayed. The segments that exist when the log is opened belong to a previous
+ * process and are read back with {@link #readRecovered()}.
+ * <p>
+ * The writes are synced at most once per sync interval, and at the end of the interval if nothing is written after
+ * them, so the interval bounds the writes that are lost with the machine. An entry that is lost because the process
+ * died before the sync is not checkpointed either, so its records are read from the stream again. A lost tombstone replays an entry
+ * that is already committed, same as a checkpoint that is lost.
+ * <p>
+ * The batches that are given up are written to {@value #DEAD_LETTER_NAME} in the same directory, which is not
+ * replayed and is kept until an operator handles it.
+ */
+public class WriteAheadLog
+        implements Closeable
+{
+    private static final Logger log = Logger.get(WriteAheadLog.class);
+    private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d+)\\.log");
+    public static final String DEAD_LETTER_NAME = "dead-letter.log";
+    // length and checksum of the record
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    // the first byte of the record body
+    private static final byte ENTRY = 0;
+    private static final byte TOMBSTONE = 1;
+
+    private final File directory;
+    private final MiddlewarePageSerde pageSerde;
+    private final long syncIntervalMillis;
+    private final long segmentSize;
+    private final List<File> recoveredSegments;
+    private final Map<Long, Location> entries = new HashMap<>();
+    private final Set<Segment> unsynced = new HashSet<>();
+    private final ScheduledExecutorService syncExecutor;
+    private long nextSegmentId;
+    private long nextEntryId;
+    private long lastSyncMillis;
+    private Segment segment;
+    private FileChannel deadLetters;
+    private boolean closed;
+
+    public WriteAheadLog(File directory, MiddlewarePageSerde pageSerde, Duration syncInterval, DataSize segmentSize)
+            throws IOException
+    {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create write-ahead log directory " + directory);
+        }
+        this.directory = directory;
+        this.pageSerde = pageSerde;
+        this.syncIntervalMillis = syncInterval.toMillis();
+        this.segmentSize = segmentSize.toBytes();
+
+        File[] files = directory.listFiles((dir, name) -> SEGMENT_NAME.matcher(name).matches());
+        Arrays.sort(files, (first, second) -> Long.compare(getSegmentId(first), getSegmentId(second)));
+        this.recoveredSegments = ImmutableList.copyOf(files);
+        this.nextSegmentId = files.length == 0 ? 0 : getSegmentId(files[files.length - 1]) + 1;
+
+        if (syncIntervalMillis > 0) {
+            this.syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("write-ahead-log-sync")
+                    .setDaemon(true)
+                    .build());
+            syncExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                }
+                catch (IOException e) {
+                    log.warn(e, "Unable to sync the write-ahead log");
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            // every write is synced right away
+            this.syncExecutor = null;
+        }
+    }
+
+    /**
+     * Appends the pages and the positions of the batch and returns the id that releases the entry. The pages are
+     * serialized before the log is locked, only the write itself is serialized between the threads.
+     */
+    public long append(Map<String, String> positions, Table<String, String, TableData> table)
+            throws IOException
+    {
+        Slice body = serialize(positions, table);
+        synchronized (this) {
+            if (segment == null) {
+                segment = new Segment(nextSegmentId++);
+            }
+            else if (segment.size >= segmentSize) {
+                // the previous segment is deleted when the rest of its entries are released
+                segment.channel.force(false);
+                segment = new Segment(nextSegmentId++);
+            }
+            long offset = segment.size;
+            segment.size += write(segment.channel, offset, body);
+            written(segment);
+
+            long entryId = nextEntryId++;
+            entries.put(entryId, new Location(segment, offset));
+            segment.pending++;
+            return entryId;
+        }
+    }
+
+    /**
+     * Marks the entry as committed and checkpointed.
+     */
+    public synchronized void release(long entryId)
+            throws IOException
+    {
+        Location location = entries.remove(entryId);
+        if (location == null) {
+            return;
+        }
+
+        Segment released = location.segment;
+        if (--released.pending > 0) {
+            SliceOutput tombstone = new DynamicSliceOutput(1 + Long.BYTES);
+            tombstone.writeByte(TOMBSTONE);
+            tombstone.writeLong(location.offset);
+            released.size += write(released.channel, released.size, tombstone.slice());
+            written(released);
+        }
+        else if (released == segment) {
+            released.channel.truncate(0);
+            released.size = 0;
+        }
+        else {
+            unsynced.remove(released);
+            released.delete();
+        }
+    }
+
+    /**
+     * Writes the pages and the positions of a batch that is given up to the dead-letter file. The file is synced
+     * right away since the batch is released from the log afterwards.
+     */
+    public void appendDeadLetter(Map<String, String> positions, Table<String, String, TableData> table)
+            throws IOException
+    {
+        Slice body = serialize(positions, table);
+        synchronized (this) {
+            if (deadLetters == null) {
+                deadLetters = FileChannel.open(new File(directory, DEAD_LETTER_NAME).toPath(), CREATE, READ, WRITE);
+            }
+            write(deadLetters, deadLetters.size(), body);
+            deadLetters.force(false);
+        }
+    }
+
+    /**
+     * Reads the batches that were written to the dead-letter file, including the ones of the previous processes.
+     */
+    public List<Entry> readDeadLetters()
+            throws IOException
+    {
+        File file = new File(directory, DEAD_LETTER_NAME);
+        if (!file.exists()) {
+            return ImmutableList.of();
+        }
+        return ImmutableList.copyOf(read(file).values());
+    }
+
+    /**
+     * Reads the entries of the segments that were left by the previous process, except the ones that were released.
+     * A segment is read up to its first incomplete or corrupt record, which is the write that was in flight when the
+     * process died.
+     */
+    public List<Entry> readRecovered()
+            throws IOException
+    {
+        ImmutableList.Builder<Entry> recovered = ImmutableList.builder();
+        for (File file : recoveredSegments) {
+            recovered.addAll(read(file).values());
+        }
+        return recovered.build();
+    }
+
+    /**
+     * Deletes the segments of the previous process once their entries are committed.
+     */
+    public void deleteRecovered()
+            throws IOException
+    {
+        for (File file : recoveredSegments) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to delete write-ahead log segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Syncs and closes the segments without deleting them, the entries that are not released are recovered by the
+     * next process.
+     */
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+
+        Set<Segment> segments = new HashSet<>();
+        entries.values().forEach(location -> segments.add(location.segment));
+        if (segment != null) {
+            segments.add(segment);
+        }
+        for (Segment open : segments) {
+            open.channel.force(false);
+            open.channel.close();
+        }
+        if (deadLetters != null) {
+            deadLetters.close();
+        }
+    }
+
+    private void written(Segment written)
+            throws IOException
+    {
+        unsynced.add(written);
+        if (System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis) {
+            sync();
+        }
+    }
+
+    /**
+     * Syncs the segments written since the last sync. It's called by the writes once the interval has passed and
+     * by the sync executor for the writes that are not followed by another one.
+     */
+    private synchronized void sync()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        for (Segment written : unsynced) {
+            written.channel.force(false);
+        }
+        unsynced.clear();
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    private static int write(FileChannel channel, long position, Slice body)
+            throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        checksum.update(body.toByteBuffer());
+
+        // the header is read back with the little endian order of the slices
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + body.length()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(body.length());
+        buffer.putInt((int) checksum.getValue());
+        buffer.put(body.toByteBuffer());
+        buffer.flip();
+
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * Returns the entries of the file by their offset, without the ones that have a tombstone.
+     */
+    private Map<Long, Entry> read(File file)
+            throws IOException
+    {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            Slice slice = Slices.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            int offset = 0;
+            while (offset + HEADER_SIZE <= slice.length()) {
+                int length = slice.getInt(offset);
+                int expectedChecksum = slice.getInt(offset + Integer.BYTES);
+                if (length <= 0 || (long) offset + HEADER_SIZE + length > slice.length()) {
+                    log.warn("Write-ahead log file %s ends with an incomplete record at %d", file, offset);
+                    break;
+                }
+
+                Slice body = slice.slice(offset + HEADER_SIZE, length);
+                CRC32 checksum = new CRC32();
+                checksum.update(body.toByteBuffer());
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    log.warn("Write-ahead log file %s has a corrupt record at %d", file, offset);
+                    break;
+                }
+
+                SliceInput input = new BasicSliceInput(body);
+                byte type = input.readByte();
+                if (type == TOMBSTONE) {
+                    entries.remove(input.readLong());
+                }
+                else {
+                    entries.put((long) offset, deserialize(input));
+                }
+                offset += HEADER_SIZE + length;
+            }
+        }
+        return entries;
+    }
+
+    private Slice serialize(Map<String, String> positions, Table<String, String, TableData> table)
+    {
+        SliceOutput output = new DynamicSliceOutput(1024);
+        output.writeByte(ENTRY);
+        output.writeInt(positions.size());
+        positions.forEach((key, value) -> {
+            writeString(output, key);
+            writeString(output, value);
+        });
+
+        output.writeInt(table.size());
+        for (Table.Cell<String, String, TableData> cell : table.cellSet()) {
+            writeString(output, cell.getRowKey());
+            writeString(output, cell.getColumnKey());
+            List<ColumnMetadata> metadata = cell.getValue().metadata;
+            output.writeInt(metadata.size());
+            for (ColumnMetadata column : metadata) {
+                writeString(output, column.getName());
+                writeString(output, column.getType().getTypeSignature().toString());
+            }
+            writeSerializedPage(output, pageSerde.serialize(cell.getValue().page));
+        }
+        return output.slice();
+    }
+
+    private Entry deserialize(SliceInput input)
+    {
+        ImmutableMap.Builder<String, String> positions = ImmutableMap.builder();
+        int positionCount = input.readInt();
+        for (int i = 0; i < positionCount; i++) {
+            positions.put(readString(input), readString(input));
+        }
+
+        Table<String, String, TableData> table = HashBasedTable.create();
+        int tableCount = input.readInt();
+        for (int i = 0; i < tableCount; i++) {
+            String schema = readString(input);
+            String tableName = readString(input);
+            int columnCount = input.readInt();
+            ImmutableList.Builder<ColumnMetadata> metadata = ImmutableList.builder();
+            for (int j = 0; j < columnCount; j++) {
+                metadata.add(new ColumnMetadata(readString(input), pageSerde.getType(readString(input))));
+            }
+            Page page = pageSerde.deserialize(readSerializedPages(input).next());
+            table.put(schema, tableName, new TableData(page, metadata.build()));
+        }
+        return new Entry(positions.build(), table);
+    }
+
+    private static void writeString(SliceOutput output, String value)
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.writeBytes(bytes);
+    }
+
+    private static String readString(SliceInput input)
+    {
+        return input.readSlice(input.readInt()).toStringUtf8();
+    }
+
+    private static long getSegmentId(File file)
+    {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a write-ahead log segment: " + file);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private class Segment
+    {
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private int pending;
+
+        private Segment(long id)
+                throws IOException
+        {
+            this.file = new File(directory, String.format("wal-%020d.log", id));
+            this.channel = FileChannel.open(file.toPath(), CREATE_NEW, READ, WRITE);
+        }
+
+        private void delete()
+                throws IOException
+        {
+            try {
+                channel.close();
+            }
+            finally {
+                if (!file.delete()) {
+                    throw new IOException("Unable to delete write-ahead log segment " + file);
+                }
+            }
+        }
+    }
+
+    private static class Location
+    {
+        private final Segment segment;
+        private final long offset;
+
+        private Location(Segment segment, long offset)
+        {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    public static class Entry
+    {
+        private final Map<String, String> positions;
+        private final Table<String, String, TableData> table;
+
+        private Entry(Map<String, String> positions, Table<String, String, TableData> table)
+        {
+            this.positions = positions;
+            this.table = table;
+        }
+
+        public Map<String, String> getPositions()
+        {
+            return positions;
+        }
+
+        public Table<String, String, TableData> getTable()
+        {
+            return table;
+        }
+    }
+}
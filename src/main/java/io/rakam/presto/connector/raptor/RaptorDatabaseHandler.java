@@ -6,10 +6,8 @@ package io.rakam.presto.connector.raptor;
 
 import com.facebook.presto.PagesIndexPageSorter;
 import com.facebook.presto.Session;
-import com.facebook.presto.block.BlockEncodingManager;
 import com.facebook.presto.client.NodeVersion;
 import com.facebook.presto.connector.ConnectorId;
-import com.facebook.presto.metadata.FunctionRegistry;
 import com.facebook.presto.metadata.PrestoNode;
 import com.facebook.presto.metadata.SessionPropertyManager;
 import com.facebook.presto.operator.PagesIndex;
@@ -38,16 +36,15 @@ import com.facebook.presto.spi.security.Identity;
 import com.facebook.presto.spi.type.TypeManager;
 import com.facebook.presto.spi.type.TypeSignature;
 import com.facebook.presto.spi.type.TypeSignatureParameter;
-import com.facebook.presto.sql.analyzer.FeaturesConfig;
 import com.facebook.presto.sql.gen.JoinCompiler;
 import com.facebook.presto.sql.gen.OrderingCompiler;
-import com.facebook.presto.type.TypeRegistry;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.inject.Module;
 import io.airlift.slice.Slice;
+import io.rakam.presto.ClusterConfig;
 import io.rakam.presto.DatabaseHandler;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.rakam.analysis.JDBCPoolDataSource;
@@ -62,6 +59,7 @@ import org.skife.jdbi.v2.DBI;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -94,8 +92,16 @@ public class RaptorDatabaseHandler
     private final PrestoRakamRaptorMetastore metastore;
 
     @Inject
-    public RaptorDatabaseHandler(RaptorConfig config, S3BackupConfig s3BackupConfig)
+    public RaptorDatabaseHandler(RaptorConfig config, S3BackupConfig s3BackupConfig, ClusterConfig clusterConfig, TypeManager typeManager)
     {
+        String nodeIdentifier = config.getNodeIdentifier();
+        File dataDirectory = config.getDataDirectory();
+        if (clusterConfig.isClustered()) {
+            // every collector process writes its own shards, Raptor assigns them to the node that created them
+            nodeIdentifier = nodeIdentifier + "-" + clusterConfig.getInstanceId();
+            dataDirectory = new File(dataDirectory, clusterConfig.getInstanceId());
+        }
+
         RaptorConnectorFactory raptorConnectorFactory = new RaptorConnectorFactory(
                 RAKAM_RAPTOR_CONNECTOR,
                 new DatabaseMetadataModule(),
@@ -107,7 +113,7 @@ public class RaptorDatabaseHandler
                 .put("aws.s3-bucket", s3BackupConfig.getS3Bucket())
                 .put("aws.region", s3BackupConfig.getAWSRegion().getName())
                 .put("metadata.db.url", config.getMetadataUrl())
-                .put("storage.data-directory", config.getDataDirectory().getAbsolutePath())
+                .put("storage.data-directory", dataDirectory.getAbsolutePath())
                 .put("metadata.db.connections.max", "200")
                 .put("storage.compaction-enabled", "false")
                 .put("storage.max-recovery-threads", "1")
@@ -129,17 +135,13 @@ public class RaptorDatabaseHandler
 
         ImmutableMap<String, String> properties = props.build();
 
-        NodeManager nodeManager = new SingleNodeManager(config.getNodeIdentifier());
+        NodeManager nodeManager = new SingleNodeManager(nodeIdentifier);
 
         PagesIndexPageSorter pageSorter = new PagesIndexPageSorter(
                 new PagesIndex.DefaultFactory(new OrderingCompiler(), new JoinCompiler()));
 
-        TypeRegistry typeRegistry = new TypeRegistry();
-        BlockEncodingManager blockEncodingManager = new BlockEncodingManager(typeRegistry);
-        new FunctionRegistry(typeRegistry, blockEncodingManager, new FeaturesConfig());
-
         Connector connector = raptorConnectorFactory.create(RAKAM_RAPTOR_CONNECTOR, properties,
-                new ProxyConnectorContext(nodeManager, typeRegistry, pageSorter));
+                new ProxyConnectorContext(nodeManager, typeManager, pageSorter));
 
         connectorTransactionHandle = connector.beginTransaction(READ_COMMITTED, false);
 
@@ -245,13 +247,13 @@ public class RaptorDatabaseHandler
             implements ConnectorContext
     {
         private final NodeManager nodeManager;
-        private final TypeRegistry typeRegistry;
+        private final TypeManager typeManager;
         private final PagesIndexPageSorter pageSorter;
 
-        public ProxyConnectorContext(NodeManager nodeManager, TypeRegistry typeRegistry, PagesIndexPageSorter pageSorter)
+        public ProxyConnectorContext(NodeManager nodeManager, TypeManager typeManager, PagesIndexPageSorter pageSorter)
         {
             this.nodeManager = nodeManager;
-            this.typeRegistry = typeRegistry;
+            this.typeManager = typeManager;
             this.pageSorter = pageSorter;
         }
 
@@ -262,7 +264,7 @@ public class RaptorDatabaseHandler
 
         public TypeManager getTypeManager()
         {
-            return typeRegistry;
+            return typeManager;
         }
 
         public PageSorter getPageSorter()
@@ -4,6 +4,12 @@
 
 package io.rakam.presto.connector.raptor;
 
+import com.facebook.presto.block.BlockEncodingManager;
+import com.facebook.presto.metadata.FunctionRegistry;
+import com.facebook.presto.spi.block.BlockEncodingSerde;
+import com.facebook.presto.spi.type.TypeManager;
+import com.facebook.presto.sql.analyzer.FeaturesConfig;
+import com.facebook.presto.type.TypeRegistry;
 import com.google.inject.Binder;
 import io.airlift.configuration.AbstractConfigurationAwareModule;
 import io.airlift.configuration.ConfigBinder;
@@ -18,5 +24,12 @@ public class RaptorModule
         ConfigBinder.configBinder(binder).bindConfig(RaptorConfig.class);
         ConfigBinder.configBinder(binder).bindConfig(S3BackupConfig.class);
         binder.bind(DatabaseHandler.class).to(RaptorDatabaseHandler.class);
+
+        // the types and block encodings of the connector are shared with the middleware buffer that serializes the pages
+        TypeRegistry typeRegistry = new TypeRegistry();
+        BlockEncodingManager blockEncodingManager = new BlockEncodingManager(typeRegistry);
+        new FunctionRegistry(typeRegistry, blockEncodingManager, new FeaturesConfig());
+        binder.bind(TypeManager.class).toInstance(typeRegistry);
+        binder.bind(BlockEncodingSerde.class).toInstance(blockEncodingManager);
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.deserialization;
+
+import com.facebook.presto.spi.block.Block;
+import com.facebook.presto.spi.block.BlockBuilder;
+import com.facebook.presto.spi.block.BlockBuilderStatus;
+import com.facebook.presto.spi.block.DictionaryBlock;
+import io.airlift.slice.Slice;
+
+import javax.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+
+/**
+ * Dictionary encodes the VARCHAR blocks of low cardinality columns such as event names, countries and platforms
+ * when the page is built, so the pages waiting in the middleware buffer keep each distinct value once and
+ * the ORC writer gets the dictionary for free. Columns with many distinct values are given up on early.
+ */
+public final class DictionaryEncoder
+{
+    private static final double MAX_DISTINCT_RATIO = 0.25;
+    private static final int MIN_POSITIONS = 128;
+    // the ratio of the first positions decides whether the rest of the block is encoded
+    private static final int SAMPLE_POSITIONS = 1024;
+
+    private DictionaryEncoder()
+    {
+    }
+
+    /**
+     * Returns the dictionary encoded block or null when the block has too many distinct values.
+     */
+    @Nullable
+    public static Block tryEncode(Block block)
+    {
+        int positionCount = block.getPositionCount();
+        if (positionCount < MIN_POSITIONS) {
+            return null;
+        }
+
+        int maxDistinctValues = (int) (positionCount * MAX_DISTINCT_RATIO);
+        int sampleSize = Math.min(positionCount, SAMPLE_POSITIONS);
+        int maxSampleDistinctValues = (int) (sampleSize * MAX_DISTINCT_RATIO);
+
+        Dictionary dictionary = new Dictionary(Math.min(maxSampleDistinctValues, 64));
+
+        // the sample is checked before the ids are allocated, the high cardinality columns such as ids and URLs
+        // are given up on without allocating anything for the whole block
+        for (int position = 0; position < sampleSize; position++) {
+            if (dictionary.getId(block, position, maxSampleDistinctValues) < 0) {
+                return null;
+            }
+        }
+
+        // the values of the sample are in the dictionary already
+        int[] ids = new int[positionCount];
+        for (int position = 0; position < positionCount; position++) {
+            ids[position] = dictionary.getId(block, position, maxDistinctValues);
+            if (ids[position] < 0) {
+                return null;
+            }
+        }
+
+        return new DictionaryBlock(positionCount, dictionary.values.build(), ids);
+    }
+
+    private static class Dictionary
+    {
+        private final Map<Slice, Integer> idsByValue = new HashMap<>();
+        private final BlockBuilder values;
+        private int nullId = -1;
+
+        private Dictionary(int expectedEntries)
+        {
+            this.values = VARCHAR.createBlockBuilder(new BlockBuilderStatus(), expectedEntries);
+        }
+
+        /**
+         * Returns the id of the value at the position, adding it to the dictionary if it's new, or -1 when the
+         * dictionary already has the maximum number of distinct values.
+         */
+        private int getId(Block block, int position, int maxDistinctValues)
+        {
+            if (block.isNull(position)) {
+                if (nullId == -1) {
+                    nullId = values.getPositionCount();
+                    values.appendNull();
+                }
+                return nullId;
+            }
+
+            // the value is a view of the block, which outlives the map
+            Slice value = VARCHAR.getSlice(block, position);
+            Integer id = idsByValue.get(value);
+            if (id == null) {
+                if (idsByValue.size() >= maxDistinctValues) {
+                    return -1;
+                }
+                id = values.getPositionCount();
+                VARCHAR.writeSlice(values, value);
+                idsByValue.put(value, id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.deserialization;
+
+/**
+ * Bounded sample of (event time, arrival time) pairs collected while a page is built.
+ * When the buffer is full every other sample is dropped and the sampling stride doubles,
+ * so the samples stay evenly spread over the page without allocating per record.
+ */
+public class LatencySamples
+{
+    public static final long UNKNOWN = Long.MIN_VALUE;
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final long[] eventTimes;
+    private final long[] arrivalTimes;
+    private int size;
+    private int stride = 1;
+    private long seen;
+
+    public LatencySamples()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LatencySamples(int capacity)
+    {
+        this.eventTimes = new long[capacity];
+        this.arrivalTimes = new long[capacity];
+    }
+
+    public void add(long eventTime, long arrivalTime)
+    {
+        if (seen++ % stride != 0) {
+            return;
+        }
+
+        if (size == eventTimes.length) {
+            for (int i = 0; i < size / 2; i++) {
+                eventTimes[i] = eventTimes[i * 2];
+                arrivalTimes[i] = arrivalTimes[i * 2];
+            }
+            size /= 2;
+            stride *= 2;
+            if ((seen - 1) % stride != 0) {
+                return;
+            }
+        }
+
+        eventTimes[size] = eventTime;
+        arrivalTimes[size] = arrivalTime;
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long getEventTime(int index)
+    {
+        return eventTimes[index];
+    }
+
+    public long getArrivalTime(int index)
+    {
+        return arrivalTimes[index];
+    }
+
+    public void clear()
+    {
+        size = 0;
+        stride = 1;
+        seen = 0;
+    }
+}
@@ -20,17 +20,27 @@ import io.rakam.presto.FieldNameConfig;
 import javax.annotation.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.facebook.presto.spi.StandardErrorCode.NOT_FOUND;
 
 public abstract class MessageEventTransformer<T, C>
+        implements PageTableTransformer<T>
 {
     static final Logger LOGGER = Logger.get(MessageEventTransformer.class);
+    // readers of the tables that did not receive records in this many flushes are released
+    private static final long MAX_IDLE_FLUSHES = 100;
 
     private final DatabaseHandler databaseHandler;
     private final FieldNameConfig fieldNameConfig;
+    private final TableSizeHistory sizeHistory = new TableSizeHistory();
+    // the page readers are reused across flushes, their block builders are reset with the capacity of the previous flush
+    private final Map<SchemaTableName, PageReader> pageReaders = new ConcurrentHashMap<>();
+    private final Map<SchemaTableName, Long> pageReaderLastFlush = new ConcurrentHashMap<>();
+    private long flushCount;
 
     public MessageEventTransformer(FieldNameConfig fieldNameConfig, DatabaseHandler databaseHandler)
     {
@@ -41,8 +51,20 @@ public abstract class MessageEventTransformer<T, C>
     public abstract SchemaTableName extractCollection(T message, @Nullable C decoder)
             throws IOException;
 
-    public abstract byte[] getData(T record);
+    /**
+     * Returns the payload of the record without copying it, the payload is between the position and the limit of the buffer.
+     */
+    public abstract ByteBuffer getData(T record);
 
+    /**
+     * Returns the time the record reached the broker in milliseconds, used to sample ingestion latency.
+     */
+    public long getArrivalTime(T record)
+    {
+        return LatencySamples.UNKNOWN;
+    }
+
+    @Override
     public abstract Table<String, String, TableData> createPageTable(Iterable<T> records, Iterable<T> bulkRecords)
             throws IOException;
 
@@ -65,19 +87,49 @@ public abstract class MessageEventTransformer<T, C>
                     String.format("Source table '%s.%s' not found", project, collection));
         }
 
-        return createPageReader(rakamSchema);
+        SchemaTableName table = new SchemaTableName(project, collection);
+        PageReader pageReader = pageReaders.get(table);
+        // a reader is created again when the schema of the table is changed by another collector
+        if (pageReader != null && pageReader.getExpectedSchema().equals(rakamSchema)) {
+            // the previous page of the reader is either built or discarded because the conversion failed
+            pageReader.reset();
+            return pageReader;
+        }
+
+        pageReader = createPageReader(rakamSchema, sizeHistory.getEstimate(table));
+        pageReader.setEventTimeColumn(fieldNameConfig.getTimeField());
+        pageReaders.put(table, pageReader);
+        pageReaderLastFlush.put(table, flushCount);
+        return pageReader;
     }
 
-    public abstract PageReader<C> createPageReader(List<ColumnMetadata> metadata);
+    /**
+     * Creates the page reader of a table, the estimate of the previous flushes is used to presize the page when it's given.
+     */
+    public abstract PageReader<C> createPageReader(List<ColumnMetadata> metadata, @Nullable TableSizeHistory.Estimate estimate);
 
     protected Table<String, String, TableData> buildTable(Map<SchemaTableName, PageReader> builderMap)
     {
         Table<String, String, TableData> table = HashBasedTable.create();
         for (Map.Entry<SchemaTableName, PageReader> entry : builderMap.entrySet()) {
             SchemaTableName key = entry.getKey();
+            PageReader pageReader = entry.getValue();
             table.put(key.getSchemaName(), key.getTableName(),
-                    new TableData(entry.getValue().getPage(), entry.getValue().getExpectedSchema()));
+                    new TableData(pageReader.getPage(), pageReader.getExpectedSchema(), pageReader.getLatencySamples()));
+            sizeHistory.record(key, pageReader.getPageColumns(), pageReader.getPageBuilder());
+        }
+
+        long flush = ++flushCount;
+        for (SchemaTableName key : builderMap.keySet()) {
+            pageReaderLastFlush.put(key, flush);
         }
+        pageReaderLastFlush.entrySet().removeIf(entry -> {
+            if (entry.getValue() < flush - MAX_IDLE_FLUSHES) {
+                pageReaders.remove(entry.getKey());
+                return true;
+            }
+            return false;
+        });
 
         return table;
     }
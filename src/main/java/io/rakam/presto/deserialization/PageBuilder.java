@@ -8,10 +8,12 @@ import com.facebook.presto.spi.Page;
 import com.facebook.presto.spi.block.Block;
 import com.facebook.presto.spi.block.BlockBuilder;
 import com.facebook.presto.spi.block.BlockBuilderStatus;
+import com.facebook.presto.spi.block.DictionaryBlock;
 import com.facebook.presto.spi.block.PageBuilderStatus;
+import com.facebook.presto.spi.block.RunLengthEncodedBlock;
 import com.facebook.presto.spi.type.FixedWidthType;
 import com.facebook.presto.spi.type.Type;
-import com.google.common.collect.ImmutableList;
+import com.facebook.presto.spi.type.VarcharType;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,8 +28,14 @@ import static java.util.Objects.requireNonNull;
 
 public class PageBuilder
 {
-    private final BlockBuilder[] blockBuilders;
+    // upper bound of a presized block, a single wrong estimate should not allocate an unbounded array
+    private static final long MAX_PRESIZED_BLOCK_SIZE_IN_BYTES = 64 * 1024 * 1024;
+
     private final List<Type> types;
+    private BlockBuilder[] blockBuilders;
+    // number of leading positions of each channel that are null and not written to its block builder,
+    // columns added while the page is built start with the positions declared before them
+    private int[] nullPrefixes;
     private PageBuilderStatus pageBuilderStatus;
     private int declaredPositions;
 
@@ -41,30 +49,83 @@ public class PageBuilder
         this(initialExpectedEntries, types, Optional.empty(), 0);
     }
 
-    public PageBuilder newPageBuilderWithType(Type type)
+    /**
+     * Creates the block builders with room for the expected number of entries, using the given size of an entry
+     * for each channel instead of the default guess for variable width types, so that the blocks are not
+     * grown by copying while the page is built. See {@link TableSizeHistory}.
+     */
+    public PageBuilder(int expectedEntries, List<? extends Type> types, int[] expectedBytesPerEntry)
     {
-        int newLength = types.size() + 1;
-        BlockBuilder[] newBlockBuilders = new BlockBuilder[newLength];
+        this.types = new ArrayList<>(requireNonNull(types, "types is null"));
+        checkArgument(expectedBytesPerEntry.length == types.size(), "Size of expected entry sizes and types should match");
+        checkArgument(expectedEntries > 0, "Expected entries must be positive");
+
+        long maxBlockSizeInBytes = DEFAULT_MAX_BLOCK_SIZE_IN_BYTES;
+        for (int i = 0; i < expectedBytesPerEntry.length; i++) {
+            maxBlockSizeInBytes = Math.max(maxBlockSizeInBytes, (long) expectedEntries * getEntrySize(types.get(i), expectedBytesPerEntry[i]));
+        }
+        maxBlockSizeInBytes = Math.min(maxBlockSizeInBytes, MAX_PRESIZED_BLOCK_SIZE_IN_BYTES);
+
+        // the blocks are bounded by the estimate, not by the page size
+        pageBuilderStatus = new PageBuilderStatus(Integer.MAX_VALUE, (int) maxBlockSizeInBytes);
+        blockBuilders = new BlockBuilder[types.size()];
+        nullPrefixes = new int[types.size()];
         for (int i = 0; i < blockBuilders.length; i++) {
-            newBlockBuilders[i] = blockBuilders[i];
+            blockBuilders[i] = types.get(i).createBlockBuilder(
+                    pageBuilderStatus.createBlockBuilderStatus(),
+                    expectedEntries,
+                    getEntrySize(types.get(i), expectedBytesPerEntry[i]));
         }
+    }
 
-        BlockBuilder blockBuilder = type.createBlockBuilder(new BlockBuilderStatus(), declaredPositions * 2);
-        newBlockBuilders[newBlockBuilders.length - 1] = blockBuilder;
-        int oldIterations = declaredPositions - 1;
-        for (int i = 0; i < oldIterations; i++) {
-            blockBuilder.appendNull();
+    /**
+     * Adds a column that is null in the positions declared before the current one. The nulls are not written to the
+     * block builder of the column, they're added when the page is built, so a new column costs the same regardless of
+     * the number of positions in the page.
+     */
+    public void appendColumn(Type type)
+    {
+        int channel = types.size();
+        if (channel == blockBuilders.length) {
+            blockBuilders = Arrays.copyOf(blockBuilders, Math.max(channel * 2, 1));
+            nullPrefixes = Arrays.copyOf(nullPrefixes, blockBuilders.length);
         }
 
-        PageBuilder pageBuilder = new PageBuilder(Integer.MAX_VALUE,
-                ImmutableList.<Type>builder().addAll(types).add(type).build(),
-                Optional.of(newBlockBuilders), declaredPositions);
+        types.add(type);
+        blockBuilders[channel] = type.createBlockBuilder(new BlockBuilderStatus(), 1);
+        nullPrefixes[channel] = Math.max(declaredPositions - 1, 0);
+    }
+
+    /**
+     * Creates a page builder with the given columns at the current position. Each column is taken from
+     * the channel given for it in this page builder, columns without a channel ({@code -1}) are null in all positions.
+     */
+    public PageBuilder newPageBuilderWithChannels(List<? extends Type> newTypes, int[] sourceChannels)
+    {
+        checkArgument(newTypes.size() == sourceChannels.length, "Size of channels and types should match");
+
+        BlockBuilder[] newBlockBuilders = new BlockBuilder[newTypes.size()];
+        int[] newNullPrefixes = new int[newTypes.size()];
+        for (int i = 0; i < newBlockBuilders.length; i++) {
+            int channel = sourceChannels[i];
+            if (channel == -1) {
+                newBlockBuilders[i] = newTypes.get(i).createBlockBuilder(new BlockBuilderStatus(), 1);
+                newNullPrefixes[i] = declaredPositions;
+            }
+            else {
+                newBlockBuilders[i] = blockBuilders[channel];
+                newNullPrefixes[i] = nullPrefixes[channel];
+            }
+        }
+
+        PageBuilder pageBuilder = new PageBuilder(declaredPositions, newTypes, Optional.of(newBlockBuilders), declaredPositions);
+        pageBuilder.nullPrefixes = newNullPrefixes;
         return pageBuilder;
     }
 
     public PageBuilder(int initialExpectedEntries, List<? extends Type> types, Optional<BlockBuilder[]> templateBlockBuilders, Integer declaredPositions)
     {
-        this.types = unmodifiableList(new ArrayList<>(requireNonNull(types, "types is null")));
+        this.types = new ArrayList<>(requireNonNull(types, "types is null"));
 
         int maxBlockSizeInBytes;
         if (!types.isEmpty()) {
@@ -76,8 +137,9 @@ public class PageBuilder
         }
         pageBuilderStatus = new PageBuilderStatus(DEFAULT_MAX_PAGE_SIZE_IN_BYTES, maxBlockSizeInBytes);
         blockBuilders = new BlockBuilder[types.size()];
+        nullPrefixes = new int[types.size()];
 
-        if(declaredPositions != null) {
+        if (declaredPositions != null) {
             this.declaredPositions = declaredPositions;
         }
 
@@ -120,6 +182,7 @@ public class PageBuilder
 
         for (int i = 0; i < types.size(); i++) {
             blockBuilders[i] = blockBuilders[i].newBlockBuilderLike(pageBuilderStatus.createBlockBuilderStatus());
+            nullPrefixes[i] = 0;
         }
     }
 
@@ -128,11 +191,38 @@ public class PageBuilder
         return blockBuilders[channel];
     }
 
+    public int getChannelCount()
+    {
+        return types.size();
+    }
+
+    /**
+     * Returns the number of positions of the channel including the leading nulls that are not in its block builder.
+     */
+    public int getPositionCount(int channel)
+    {
+        return nullPrefixes[channel] + blockBuilders[channel].getPositionCount();
+    }
+
+    /**
+     * Returns the number of leading null positions of the channel that are not in its block builder,
+     * position {@code p} of the channel is position {@code p - getNullPrefix(channel)} of the block builder.
+     */
+    public int getNullPrefix(int channel)
+    {
+        return nullPrefixes[channel];
+    }
+
     public Type getType(int channel)
     {
         return types.get(channel);
     }
 
+    public List<Type> getTypes()
+    {
+        return unmodifiableList(types);
+    }
+
     public void declarePosition()
     {
         declaredPositions++;
@@ -165,18 +255,18 @@ public class PageBuilder
 
     public long getRetainedSizeInBytes()
     {
-        return Stream.of(blockBuilders).mapToLong(BlockBuilder::getRetainedSizeInBytes).sum();
+        return Stream.of(blockBuilders).limit(types.size()).mapToLong(BlockBuilder::getRetainedSizeInBytes).sum();
     }
 
     public Page build()
     {
-        if (blockBuilders.length == 0) {
+        if (types.isEmpty()) {
             return new Page(declaredPositions);
         }
 
-        Block[] blocks = new Block[blockBuilders.length];
+        Block[] blocks = new Block[types.size()];
         for (int i = 0; i < blocks.length; i++) {
-            blocks[i] = blockBuilders[i].build();
+            blocks[i] = buildBlock(i);
             if (blocks[i].getPositionCount() != declaredPositions) {
                 throw new IllegalStateException(String.format("Declared positions (%s) does not match block %s's number of entries (%s)", declaredPositions, i, blocks[i].getPositionCount()));
             }
@@ -185,6 +275,48 @@ public class PageBuilder
         return new Page(blocks);
     }
 
+    private Block buildBlock(int channel)
+    {
+        int nullPrefix = nullPrefixes[channel];
+        if (nullPrefix == 0) {
+            Block block = blockBuilders[channel].build();
+            if (types.get(channel) instanceof VarcharType) {
+                Block dictionaryBlock = DictionaryEncoder.tryEncode(block);
+                return dictionaryBlock == null ? block : dictionaryBlock;
+            }
+            return block;
+        }
+        if (nullPrefix == declaredPositions) {
+            return RunLengthEncodedBlock.create(types.get(channel), null, declaredPositions);
+        }
+
+        // the dictionary is the written positions followed by a null entry that the leading positions point to; it's
+        // a copy so that the builder is not changed and the page can be built again
+        Type type = types.get(channel);
+        Block written = blockBuilders[channel].build();
+        int writtenPositions = written.getPositionCount();
+        BlockBuilder dictionary = type.createBlockBuilder(new BlockBuilderStatus(), writtenPositions + 1);
+        for (int i = 0; i < writtenPositions; i++) {
+            type.appendTo(written, i, dictionary);
+        }
+        dictionary.appendNull();
+
+        int[] ids = new int[nullPrefix + writtenPositions];
+        Arrays.fill(ids, 0, nullPrefix, writtenPositions);
+        for (int i = 0; i < writtenPositions; i++) {
+            ids[nullPrefix + i] = i;
+        }
+        return new DictionaryBlock(ids.length, dictionary.build(), ids);
+    }
+
+    private static int getEntrySize(Type type, int expectedBytesPerEntry)
+    {
+        if (type instanceof FixedWidthType) {
+            return Math.max(((FixedWidthType) type).getFixedSize(), 1);
+        }
+        return Math.max(expectedBytesPerEntry, 1);
+    }
+
     private static void checkArgument(boolean expression, String errorMessage)
     {
         if (!expression) {
@@ -7,9 +7,12 @@ package io.rakam.presto.deserialization;
 import com.facebook.presto.spi.ColumnMetadata;
 import com.facebook.presto.spi.Page;
 import com.facebook.presto.spi.block.Block;
+import com.facebook.presto.spi.block.BlockBuilder;
 import com.facebook.presto.spi.block.RunLengthEncodedBlock;
 import com.facebook.presto.spi.type.Type;
 
+import javax.annotation.Nullable;
+
 import java.io.IOException;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -18,23 +21,47 @@ import static com.facebook.presto.spi.type.TimestampType.TIMESTAMP;
 
 public abstract class PageReader<T>
 {
+    private static final int DEFAULT_VARIABLE_WIDTH_ENTRY_SIZE = 32;
+
     private final PageReaderDeserializer<T> datumReader;
     private final String checkpointColumn;
     private List<ColumnMetadata> expectedSchema;
     private List<ColumnMetadata> actualSchema;
     private PageBuilder pageBuilder;
+    private LatencySamples latencySamples = new LatencySamples();
+    private String eventTimeColumn;
+    private List<ColumnMetadata> eventTimeSchema;
+    private int eventTimeChannel = -1;
 
     public PageReader(String checkpointColumn, List<ColumnMetadata> actualSchema, List<ColumnMetadata> expectedSchema)
     {
-        List<Type> prestoSchema = expectedSchema.stream()
-                .filter(a -> !a.getName().startsWith("$") && !a.getName().equals(checkpointColumn))
-                .map(field -> field.getType())
-                .collect(Collectors.toList());
+        this(checkpointColumn, actualSchema, expectedSchema, null);
+    }
 
+    /**
+     * The page builder is presized from the estimate of the previous flushes of the table when it's given.
+     */
+    public PageReader(String checkpointColumn, List<ColumnMetadata> actualSchema, List<ColumnMetadata> expectedSchema, @Nullable TableSizeHistory.Estimate estimate)
+    {
         this.checkpointColumn = checkpointColumn;
         this.expectedSchema = expectedSchema;
         this.actualSchema = actualSchema;
-        this.pageBuilder = new PageBuilder(prestoSchema);
+
+        List<ColumnMetadata> pageColumns = getPageColumns();
+        List<Type> prestoSchema = pageColumns.stream()
+                .map(field -> field.getType())
+                .collect(Collectors.toList());
+
+        if (estimate == null) {
+            this.pageBuilder = new PageBuilder(prestoSchema);
+        }
+        else {
+            int[] expectedBytesPerEntry = new int[pageColumns.size()];
+            for (int i = 0; i < expectedBytesPerEntry.length; i++) {
+                expectedBytesPerEntry[i] = estimate.getExpectedBytesPerEntry(pageColumns.get(i).getName(), DEFAULT_VARIABLE_WIDTH_ENTRY_SIZE);
+            }
+            this.pageBuilder = new PageBuilder(estimate.getExpectedEntries(), prestoSchema, expectedBytesPerEntry);
+        }
         this.datumReader = createReader();
     }
 
@@ -50,6 +77,16 @@ public abstract class PageReader<T>
 
     public abstract PageReaderDeserializer<T> createReader();
 
+    /**
+     * Prepares the reader for the next page. The block builders are replaced with empty ones sized like the previous
+     * page since the built page still references their contents, the latency samples are handed off with the page.
+     */
+    public void reset()
+    {
+        pageBuilder.reset();
+        latencySamples = new LatencySamples();
+    }
+
     public Page getPage()
     {
         int shardTimeIdx = -1;
@@ -78,6 +115,17 @@ public abstract class PageReader<T>
         return build;
     }
 
+    public void setEventTimeColumn(String eventTimeColumn)
+    {
+        this.eventTimeColumn = eventTimeColumn;
+        this.eventTimeSchema = null;
+    }
+
+    public LatencySamples getLatencySamples()
+    {
+        return latencySamples;
+    }
+
     public List<ColumnMetadata> getActualSchema()
     {
         return actualSchema;
@@ -89,6 +137,60 @@ public abstract class PageReader<T>
         datumReader.read(decoder);
     }
 
+    public void read(T decoder, long arrivalTime)
+            throws IOException
+    {
+        datumReader.read(decoder);
+        sampleLatency(arrivalTime);
+    }
+
+    private void sampleLatency(long arrivalTime)
+    {
+        if (eventTimeColumn == null) {
+            return;
+        }
+
+        if (eventTimeSchema != expectedSchema) {
+            eventTimeSchema = expectedSchema;
+            eventTimeChannel = -1;
+            int channel = 0;
+            for (ColumnMetadata column : expectedSchema) {
+                if (column.getName().startsWith("$") || column.getName().equals(checkpointColumn)) {
+                    continue;
+                }
+                if (column.getName().equals(eventTimeColumn) && column.getType().equals(TIMESTAMP)) {
+                    eventTimeChannel = channel;
+                    break;
+                }
+                channel++;
+            }
+        }
+
+        long eventTime = LatencySamples.UNKNOWN;
+        int position = pageBuilder.getPositionCount() - 1;
+        if (eventTimeChannel >= 0 && position >= 0) {
+            BlockBuilder blockBuilder = pageBuilder.getBlockBuilder(eventTimeChannel);
+            position -= pageBuilder.getNullPrefix(eventTimeChannel);
+            if (position >= 0 && position < blockBuilder.getPositionCount() && !blockBuilder.isNull(position)) {
+                eventTime = TIMESTAMP.getLong(blockBuilder, position);
+            }
+        }
+
+        if (eventTime != LatencySamples.UNKNOWN || arrivalTime != LatencySamples.UNKNOWN) {
+            latencySamples.add(eventTime, arrivalTime);
+        }
+    }
+
+    /**
+     * Returns the columns of the channels of the page builder, the checkpoint column is added when the page is built.
+     */
+    public List<ColumnMetadata> getPageColumns()
+    {
+        return expectedSchema.stream()
+                .filter(a -> !a.getName().startsWith("$") && !a.getName().equals(checkpointColumn))
+                .collect(Collectors.toList());
+    }
+
     public List<ColumnMetadata> getExpectedSchema()
     {
         return expectedSchema;
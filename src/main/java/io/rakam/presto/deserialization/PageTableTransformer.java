@@ -0,0 +1,18 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.deserialization;
+
+import com.google.common.collect.Table;
+
+import java.io.IOException;
+
+/**
+ * Converts a batch of records to a page per table, the tables are keyed by schema and table name.
+ */
+public interface PageTableTransformer<T>
+{
+    Table<String, String, TableData> createPageTable(Iterable<T> records, Iterable<T> bulkRecords)
+            throws IOException;
+}
@@ -13,10 +13,17 @@ public class TableData
 {
     public final Page page;
     public final List<ColumnMetadata> metadata;
+    public final LatencySamples latencySamples;
 
     public TableData(Page page, List<ColumnMetadata> metadata)
+    {
+        this(page, metadata, null);
+    }
+
+    public TableData(Page page, List<ColumnMetadata> metadata, LatencySamples latencySamples)
     {
         this.page = page;
         this.metadata = metadata;
+        this.latencySamples = latencySamples;
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.deserialization;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps moving averages of the number of rows and the size of a value of each column in the previous flushes of
+ * each table, so that the page builders of the next flush are created large enough and are not grown by copying.
+ */
+public class TableSizeHistory
+{
+    // weight of the latest flush in the moving averages
+    private static final double ALPHA = 0.3;
+    // room given on top of the average so that a flush slightly larger than the average does not grow the blocks
+    private static final double HEADROOM = 1.2;
+    private static final int MAX_EXPECTED_ENTRIES = 1_000_000;
+
+    private final Map<SchemaTableName, Estimate> estimates = new ConcurrentHashMap<>();
+
+    @Nullable
+    public Estimate getEstimate(SchemaTableName table)
+    {
+        return estimates.get(table);
+    }
+
+    /**
+     * Records the size of a flush, the columns are the columns of the channels of the page builder.
+     */
+    public void record(SchemaTableName table, List<ColumnMetadata> columns, PageBuilder pageBuilder)
+    {
+        int positionCount = pageBuilder.getPositionCount();
+        if (positionCount == 0) {
+            return;
+        }
+
+        Map<String, Double> bytesPerEntry = new HashMap<>();
+        int channelCount = Math.min(columns.size(), pageBuilder.getChannelCount());
+        for (int channel = 0; channel < channelCount; channel++) {
+            bytesPerEntry.put(columns.get(channel).getName(), pageBuilder.getBlockBuilder(channel).getSizeInBytes() / (double) positionCount);
+        }
+
+        estimates.merge(table, new Estimate(positionCount, bytesPerEntry), Estimate::update);
+    }
+
+    public void clear()
+    {
+        estimates.clear();
+    }
+
+    public static class Estimate
+    {
+        private final double rows;
+        private final Map<String, Double> bytesPerEntry;
+
+        private Estimate(double rows, Map<String, Double> bytesPerEntry)
+        {
+            this.rows = rows;
+            this.bytesPerEntry = ImmutableMap.copyOf(bytesPerEntry);
+        }
+
+        public int getExpectedEntries()
+        {
+            return (int) Math.max(1, Math.min(Math.ceil(rows * HEADROOM), MAX_EXPECTED_ENTRIES));
+        }
+
+        public int getExpectedBytesPerEntry(String column, int defaultValue)
+        {
+            Double bytes = bytesPerEntry.get(column);
+            return bytes == null ? defaultValue : (int) Math.max(1, Math.ceil(bytes * HEADROOM));
+        }
+
+        private static Estimate update(Estimate previous, Estimate latest)
+        {
+            // columns that are missing in the latest flush keep their previous average
+            Map<String, Double> bytesPerEntry = new HashMap<>(previous.bytesPerEntry);
+            latest.bytesPerEntry.forEach((column, bytes) -> bytesPerEntry.merge(column, bytes, (old, value) -> old * (1 - ALPHA) + value * ALPHA));
+            return new Estimate(previous.rows * (1 - ALPHA) + latest.rows * ALPHA, bytesPerEntry);
+        }
+    }
+}
@@ -18,10 +18,14 @@ import io.rakam.presto.FieldNameConfig;
 import io.rakam.presto.deserialization.MessageEventTransformer;
 import io.rakam.presto.deserialization.PageReader;
 import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.deserialization.TableSizeHistory;
 import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DecoderFactory;
 
+import javax.annotation.Nullable;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,7 +56,7 @@ public abstract class AvroMessageEventTransformer<T>
         Map<SchemaTableName, PageReader> builderMap = new HashMap<>();
 
         for (T record : records) {
-            decoder = DecoderFactory.get().binaryDecoder(getData(record), decoder);
+            decoder = AvroUtil.binaryDecoder(getData(record), decoder);
             decoder.skipFixed(1);
 
             SchemaTableName collection = extractCollection(record, decoder);
@@ -63,7 +67,7 @@ public abstract class AvroMessageEventTransformer<T>
             }
 
             try {
-                pageBuilder.read(decoder);
+                pageBuilder.read(decoder, getArrivalTime(record));
             }
             catch (Exception e) {
                 LOGGER.error(e, "Unable to parse message in broker.");
@@ -75,8 +79,10 @@ public abstract class AvroMessageEventTransformer<T>
             String bulkKey = null;
             S3Object object = null;
             try {
-                byte[] data = getData(record);
-                bulkKey = new String(data, 9, data.length - 9, UTF_8);
+                ByteBuffer data = getData(record).duplicate();
+                // the type (1 byte) and the size of the bulk object (8 bytes) are followed by the key
+                data.position(data.position() + 9);
+                bulkKey = UTF_8.decode(data).toString();
                 object = getBulkObject(bulkKey);
                 InputStreamSliceInput input = new InputStreamSliceInput(object.getObjectContent());
 
@@ -117,9 +123,10 @@ public abstract class AvroMessageEventTransformer<T>
                     pageBuilder.setActualSchema(build);
                 }
 
+                long arrivalTime = getArrivalTime(record);
                 int recordCount = decoder.readInt();
                 for (int i = 0; i < recordCount; i++) {
-                    pageBuilder.read(decoder);
+                    pageBuilder.read(decoder, arrivalTime);
                 }
             }
             catch (Exception e) {
@@ -135,9 +142,9 @@ public abstract class AvroMessageEventTransformer<T>
     }
 
     @Override
-    public PageReader<BinaryDecoder> createPageReader(List<ColumnMetadata> metadata)
+    public PageReader<BinaryDecoder> createPageReader(List<ColumnMetadata> metadata, @Nullable TableSizeHistory.Estimate estimate)
     {
-        return new AvroPageReader(checkpointColumn, metadata);
+        return new AvroPageReader(checkpointColumn, metadata, estimate);
     }
 
     protected abstract S3Object getBulkObject(String bulkKey);
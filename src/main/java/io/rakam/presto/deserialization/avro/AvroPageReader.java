@@ -7,9 +7,12 @@ package io.rakam.presto.deserialization.avro;
 import com.facebook.presto.spi.ColumnMetadata;
 import io.rakam.presto.deserialization.PageReader;
 import io.rakam.presto.deserialization.PageReaderDeserializer;
+import io.rakam.presto.deserialization.TableSizeHistory;
 import org.apache.avro.io.AvroPageDatumReader;
 import org.apache.avro.io.BinaryDecoder;
 
+import javax.annotation.Nullable;
+
 import java.util.List;
 
 import static io.rakam.presto.deserialization.avro.AvroUtil.convertAvroSchema;
@@ -20,7 +23,12 @@ public class AvroPageReader extends PageReader<BinaryDecoder>
 
     public AvroPageReader(String checkpointColumn, List<ColumnMetadata> rakamSchema)
     {
-        super(checkpointColumn, rakamSchema, rakamSchema);
+        this(checkpointColumn, rakamSchema, null);
+    }
+
+    public AvroPageReader(String checkpointColumn, List<ColumnMetadata> rakamSchema, @Nullable TableSizeHistory.Estimate estimate)
+    {
+        super(checkpointColumn, rakamSchema, rakamSchema, estimate);
         this.checkpointColumn = checkpointColumn;
     }
 
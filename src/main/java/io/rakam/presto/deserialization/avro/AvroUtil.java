@@ -10,9 +10,12 @@ import com.facebook.presto.spi.type.TypeSignature;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
 import org.codehaus.jackson.node.NullNode;
 
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -50,6 +53,19 @@ public class AvroUtil
         }
     }
 
+    /**
+     * Creates a decoder that reads the remaining bytes of the buffer in place when it is backed by an array.
+     */
+    public static BinaryDecoder binaryDecoder(ByteBuffer data, BinaryDecoder reuse)
+    {
+        if (data.hasArray()) {
+            return DecoderFactory.get().binaryDecoder(data.array(), data.arrayOffset() + data.position(), data.remaining(), reuse);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return DecoderFactory.get().binaryDecoder(bytes, reuse);
+    }
+
     public static Schema convertAvroSchema(Collection<ColumnMetadata> fields, String checkpointColumn)
     {
         List<Schema.Field> avroFields = fields.stream()
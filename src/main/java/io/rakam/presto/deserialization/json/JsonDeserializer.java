@@ -7,7 +7,6 @@ package io.rakam.presto.deserialization.json;
 import com.facebook.presto.spi.ColumnMetadata;
 import com.facebook.presto.spi.SchemaTableName;
 import com.facebook.presto.spi.block.BlockBuilder;
-import com.facebook.presto.spi.block.BlockBuilderStatus;
 import com.facebook.presto.spi.type.DateType;
 import com.facebook.presto.spi.type.DoubleType;
 import com.facebook.presto.spi.type.TypeSignature;
@@ -16,8 +15,8 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.fasterxml.jackson.databind.util.TokenBuffer;
-import com.google.common.collect.ImmutableList;
 import io.rakam.presto.DatabaseHandler;
 import io.rakam.presto.deserialization.PageBuilder;
 import io.rakam.presto.deserialization.PageReader;
@@ -27,10 +26,10 @@ import org.rakam.util.DateTimeUtils;
 import org.rakam.util.JsonHelper;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 import static com.facebook.presto.spi.type.BigintType.BIGINT;
@@ -55,6 +54,8 @@ public class JsonDeserializer
 {
     private static final JsonFactory READER = new ObjectMapper().getFactory();
     private final DatabaseHandler databaseHandler;
+    private final boolean deferSchemaChanges;
+    private final List<ColumnMetadata> pendingColumns = new ArrayList<>();
 
     private String project;
     private String collection;
@@ -62,17 +63,73 @@ public class JsonDeserializer
     TokenBuffer propertiesBuffer = null;
 
     public JsonDeserializer(DatabaseHandler databaseHandler)
+    {
+        this(databaseHandler, false);
+    }
+
+    /**
+     * @param deferSchemaChanges the new fields are kept in the schema of the reader but not added to the table,
+     * they're added with {@link #applyPendingColumns(PageReader)} so that the schema changes are made on a single thread.
+     */
+    public JsonDeserializer(DatabaseHandler databaseHandler, boolean deferSchemaChanges)
     {
         this.databaseHandler = databaseHandler;
+        this.deferSchemaChanges = deferSchemaChanges;
     }
 
-    public void setData(byte[] data)
+    /**
+     * Adds the new fields of the records that are read by a deserializer that defers the schema changes to the table.
+     */
+    public void applyPendingColumns(PageReader pageReader)
+    {
+        if (pendingColumns.isEmpty()) {
+            return;
+        }
+        addColumns(pageReader, pageReader.getActualSchema(), new ArrayList<>(pendingColumns));
+        pendingColumns.clear();
+    }
+
+    public void setData(ByteBuffer data)
             throws IOException
     {
         project = null;
         collection = null;
         propertiesBuffer = null;
-        this.jp = READER.createParser(data);
+        if (data.hasArray()) {
+            this.jp = READER.createParser(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        else {
+            this.jp = READER.createParser(new ByteBufferBackedInputStream(data.duplicate()));
+        }
+    }
+
+    /**
+     * Used when the table is known from the metadata of the record. The project and collection fields of the
+     * event are skipped and the parser is moved to the properties, so they are never buffered.
+     */
+    public void setData(ByteBuffer data, SchemaTableName table)
+            throws IOException
+    {
+        setData(data);
+        // the names are lowercased by SchemaTableName, they are validated as the names in the payload are
+        project = checkCollectionValid(table.getSchemaName());
+        collection = checkCollectionValid(table.getTableName());
+
+        if (jp.nextToken() != START_OBJECT) {
+            throw new IllegalArgumentException();
+        }
+        for (JsonToken t = jp.nextToken(); t == JsonToken.FIELD_NAME; t = jp.nextToken()) {
+            String fieldName = jp.getCurrentName();
+            t = jp.nextToken();
+            if (fieldName.equals("properties")) {
+                if (t != START_OBJECT) {
+                    throw new IllegalArgumentException("properties must be an object");
+                }
+                return;
+            }
+            jp.skipChildren();
+        }
+        throw new IllegalArgumentException("properties field is missing");
     }
 
     public SchemaTableName getTable()
@@ -170,17 +227,15 @@ public class JsonDeserializer
                 if (type != null) {
                     if (newFields == null) {
                         newFields = new ArrayList<>();
+                        // the schema of the reader is copied once per record, the new fields are added to the copy
+                        columns = new ArrayList<>(columns);
+                        pageReader.setActualSchema(columns);
                     }
 
                     ColumnMetadata newField = new ColumnMetadata(fieldName, toType(type));
 
-                    pageBuilder = pageBuilder.newPageBuilderWithType(toType(type));
-                    pageReader.setPageBuilder(pageBuilder);
-                    columns = ImmutableList.<ColumnMetadata>builder()
-                            .addAll(columns)
-                            .add(newField)
-                            .build();
-                    pageReader.setActualSchema(columns);
+                    pageBuilder.appendColumn(newField.getType());
+                    columns.add(newField);
 
                     newFields.add(newField);
                     idx = columns.size() - 1;
@@ -207,54 +262,26 @@ public class JsonDeserializer
                         .filter(param -> param.getKind() == TYPE)
                         .map(param -> param.getTypeSignature().getBase()).iterator();
 
-                BlockBuilder blockBuilder = pageBuilder.getBlockBuilder(idx);
-                if(currentPosition == blockBuilder.getPositionCount()) {
+                if (currentPosition == pageBuilder.getPositionCount(idx)) {
                     jp.skipChildren();
                 } else  {
-                    getValue(blockBuilder, jp, fieldType, columnMetadata, false);
+                    getValue(pageBuilder.getBlockBuilder(idx), jp, fieldType, columnMetadata, false);
                 }
             }
         }
 
         for (int i = 0; i < columns.size(); i++) {
-            BlockBuilder blockBuilder = pageBuilder.getBlockBuilder(i);
-            if (blockBuilder.getPositionCount() != currentPosition) {
-                blockBuilder.appendNull();
+            if (pageBuilder.getPositionCount(i) != currentPosition) {
+                pageBuilder.getBlockBuilder(i).appendNull();
             }
         }
 
         if (newFields != null) {
-            List<ColumnMetadata> newColumns = databaseHandler.addColumns(project, collection, newFields);
-
-            if (!columns.equals(newColumns)) {
-                BlockBuilder[] blockBuilders = new BlockBuilder[newColumns.size()];
-
-                for (int i = 0; i < newColumns.size(); i++) {
-                    ColumnMetadata newColumn = newColumns.get(i);
-
-                    for (int i1 = 0; i1 < columns.size(); i1++) {
-                        if (columns.get(i1).getName().equals(newColumn.getName())) {
-                            blockBuilders[i] = pageBuilder.getBlockBuilder(i1);
-                            break;
-                        }
-                    }
-                }
-
-                for (int i = 0; i < blockBuilders.length; i++) {
-                    if (blockBuilders[i] == null) {
-                        BlockBuilder blockBuilder = newColumns.get(i).getType().createBlockBuilder(new BlockBuilderStatus(), pageBuilder.getPositionCount());
-                        for (int i1 = 0; i1 < pageBuilder.getPositionCount(); i1++) {
-                            blockBuilder.appendNull();
-                        }
-                    }
-                }
-
-                pageBuilder = new PageBuilder(pageBuilder.getPositionCount(),
-                        newColumns.stream().map(e -> e.getType()).collect(Collectors.toList()),
-                        Optional.ofNullable(blockBuilders), pageBuilder.getPositionCount());
-
-                pageReader.setPageBuilder(pageBuilder);
-                pageReader.setActualSchema(newColumns);
+            if (deferSchemaChanges) {
+                pendingColumns.addAll(newFields);
+            }
+            else {
+                addColumns(pageReader, columns, newFields);
             }
         }
 
@@ -268,6 +295,31 @@ public class JsonDeserializer
         }
     }
 
+    private void addColumns(PageReader pageReader, List<ColumnMetadata> columns, List<ColumnMetadata> newFields)
+    {
+        List<ColumnMetadata> newColumns = databaseHandler.addColumns(project, collection, newFields);
+
+        if (!columns.equals(newColumns)) {
+            // columns added by other collectors are null in the rows of this page
+            int[] channels = new int[newColumns.size()];
+            for (int i = 0; i < newColumns.size(); i++) {
+                channels[i] = -1;
+                for (int i1 = 0; i1 < columns.size(); i1++) {
+                    if (columns.get(i1).getName().equals(newColumns.get(i).getName())) {
+                        channels[i] = i1;
+                        break;
+                    }
+                }
+            }
+
+            PageBuilder pageBuilder = pageReader.getPageBuilder().newPageBuilderWithChannels(
+                    newColumns.stream().map(e -> e.getType()).collect(Collectors.toList()), channels);
+
+            pageReader.setPageBuilder(pageBuilder);
+            pageReader.setActualSchema(newColumns);
+        }
+    }
+
     public static String checkCollectionValid(String collection)
     {
         checkArgument(collection != null, "collection is null");
@@ -6,7 +6,6 @@ package io.rakam.presto.deserialization.json;
 
 import com.facebook.presto.spi.ColumnMetadata;
 import com.facebook.presto.spi.SchemaTableName;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 import io.airlift.log.Logger;
 import io.rakam.presto.DatabaseHandler;
@@ -14,24 +13,59 @@ import io.rakam.presto.FieldNameConfig;
 import io.rakam.presto.deserialization.MessageEventTransformer;
 import io.rakam.presto.deserialization.PageReader;
 import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.deserialization.TableSizeHistory;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 
 public abstract class JsonMessageEventTransformer<T>
         extends MessageEventTransformer<T, JsonDeserializer>
 {
     static final Logger LOGGER = Logger.get(JsonMessageEventTransformer.class);
     private final JsonDeserializer jsonDecoder;
+    private final DatabaseHandler database;
     private final String checkpointColumn;
+    private final ExecutorService conversionExecutor;
 
     public JsonMessageEventTransformer(FieldNameConfig fieldNameConfig, DatabaseHandler database)
+    {
+        this(fieldNameConfig, database, null);
+    }
+
+    /**
+     * @param conversionExecutor converts the records of different tables in parallel when their tables
+     * are known without parsing them, see {@link #getTableFromMetadata(Object)}. It's shut down with the transformer.
+     */
+    public JsonMessageEventTransformer(FieldNameConfig fieldNameConfig, DatabaseHandler database, @Nullable ExecutorService conversionExecutor)
     {
         super(fieldNameConfig, database);
         jsonDecoder = new JsonDeserializer(database);
+        this.database = database;
         this.checkpointColumn = fieldNameConfig.getCheckpointField();
+        this.conversionExecutor = conversionExecutor;
+    }
+
+    /**
+     * Returns the table of the record if it can be found without parsing the payload, or null if the payload
+     * needs to be parsed to find it.
+     */
+    @Nullable
+    protected SchemaTableName getTableFromMetadata(T record)
+    {
+        return null;
     }
 
     @Override
@@ -39,8 +73,19 @@ public abstract class JsonMessageEventTransformer<T>
             throws IOException
     {
         Map<SchemaTableName, PageReader> builderMap = new HashMap<>();
+        Map<SchemaTableName, List<T>> recordsByTable = new LinkedHashMap<>();
+        Set<SchemaTableName> failedTables = new HashSet<>();
         for (T record : records) {
+            SchemaTableName table = getTableFromMetadata(record);
+            if (table != null) {
+                recordsByTable.computeIfAbsent(table, key -> new ArrayList<>()).add(record);
+                continue;
+            }
+
             SchemaTableName collection = extractCollection(record, jsonDecoder);
+            if (failedTables.contains(collection)) {
+                continue;
+            }
 
             PageReader pageBuilder = getReader(builderMap, collection);
             if (pageBuilder == null) {
@@ -48,20 +93,100 @@ public abstract class JsonMessageEventTransformer<T>
             }
 
             try {
-                pageBuilder.read(jsonDecoder);
+                pageBuilder.read(jsonDecoder, getArrivalTime(record));
             }
             catch (Exception e) {
-                LOGGER.error(e, "Unable to parse message in broker.");
-                return HashBasedTable.create();
+                // the row may be partially written, the page of the table is discarded
+                discard(builderMap, collection, e);
+                failedTables.add(collection);
             }
         }
 
+        if (!recordsByTable.isEmpty()) {
+            readByTable(builderMap, recordsByTable);
+        }
+
         return buildTable(builderMap);
     }
 
+    /**
+     * Stops the conversion threads, the executor is owned by the transformer.
+     */
+    @PreDestroy
+    public void shutdown()
+    {
+        if (conversionExecutor != null) {
+            conversionExecutor.shutdownNow();
+        }
+    }
+
+    private void readByTable(Map<SchemaTableName, PageReader> builderMap, Map<SchemaTableName, List<T>> recordsByTable)
+    {
+        Map<SchemaTableName, CompletableFuture<JsonDeserializer>> futures = new HashMap<>();
+        for (Map.Entry<SchemaTableName, List<T>> entry : recordsByTable.entrySet()) {
+            SchemaTableName table = entry.getKey();
+            // the readers are created on this thread since creating them may create the table
+            PageReader pageReader = getReader(builderMap, table);
+            if (pageReader == null) {
+                continue;
+            }
+
+            if (conversionExecutor == null) {
+                try {
+                    read(pageReader, jsonDecoder, table, entry.getValue());
+                }
+                catch (Exception e) {
+                    discard(builderMap, table, e);
+                }
+            }
+            else {
+                futures.put(table, CompletableFuture.supplyAsync(() -> {
+                    JsonDeserializer decoder = new JsonDeserializer(database, true);
+                    try {
+                        read(pageReader, decoder, table, entry.getValue());
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return decoder;
+                }, conversionExecutor));
+            }
+        }
+
+        // a table that can't be converted doesn't fail the pages of the other tables,
+        // the new fields are added to the tables on this thread so the schema changes are not made concurrently
+        for (Map.Entry<SchemaTableName, CompletableFuture<JsonDeserializer>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().join().applyPendingColumns(builderMap.get(entry.getKey()));
+            }
+            catch (CompletionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                discard(builderMap, entry.getKey(), cause);
+            }
+            catch (Exception e) {
+                discard(builderMap, entry.getKey(), e);
+            }
+        }
+    }
+
+    private static void discard(Map<SchemaTableName, PageReader> builderMap, SchemaTableName table, Throwable e)
+    {
+        LOGGER.error(e, "Unable to parse message in broker, skipping the records of table %s in this batch.", table);
+        builderMap.remove(table);
+    }
+
+    private void read(PageReader pageReader, JsonDeserializer decoder, SchemaTableName table, List<T> records)
+            throws IOException
+    {
+        for (T record : records) {
+            decoder.setData(getData(record), table);
+            pageReader.read(decoder, getArrivalTime(record));
+        }
+    }
+
     @Override
-    public PageReader<JsonDeserializer> createPageReader(List<ColumnMetadata> metadata)
+    public PageReader<JsonDeserializer> createPageReader(List<ColumnMetadata> metadata, @Nullable TableSizeHistory.Estimate estimate)
     {
-        return new JsonPageReader(checkpointColumn, metadata);
+        return new JsonPageReader(checkpointColumn, metadata, estimate);
     }
 }
@@ -7,6 +7,9 @@ package io.rakam.presto.deserialization.json;
 import com.facebook.presto.spi.ColumnMetadata;
 import io.rakam.presto.deserialization.PageReader;
 import io.rakam.presto.deserialization.PageReaderDeserializer;
+import io.rakam.presto.deserialization.TableSizeHistory;
+
+import javax.annotation.Nullable;
 
 import java.io.IOException;
 import java.util.List;
@@ -16,7 +19,12 @@ public class JsonPageReader
 {
     public JsonPageReader(String checkpointColumn, List<ColumnMetadata> rakamSchema)
     {
-        super(checkpointColumn, rakamSchema, rakamSchema);
+        this(checkpointColumn, rakamSchema, null);
+    }
+
+    public JsonPageReader(String checkpointColumn, List<ColumnMetadata> rakamSchema, @Nullable TableSizeHistory.Estimate estimate)
+    {
+        super(checkpointColumn, rakamSchema, rakamSchema, estimate);
     }
 
     @Override
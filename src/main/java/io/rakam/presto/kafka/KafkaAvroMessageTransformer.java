@@ -8,14 +8,16 @@ import com.amazonaws.services.s3.model.S3Object;
 import com.facebook.presto.spi.SchemaTableName;
 import io.rakam.presto.DatabaseHandler;
 import io.rakam.presto.FieldNameConfig;
+import io.rakam.presto.deserialization.LatencySamples;
 import io.rakam.presto.deserialization.avro.AvroMessageEventTransformer;
+import io.rakam.presto.deserialization.avro.AvroUtil;
 import org.apache.avro.io.BinaryDecoder;
-import org.apache.avro.io.DecoderFactory;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 
 import javax.inject.Inject;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class KafkaAvroMessageTransformer
         extends AvroMessageEventTransformer<ConsumerRecord<byte[], byte[]>>
@@ -31,20 +33,21 @@ public class KafkaAvroMessageTransformer
     public SchemaTableName extractCollection(ConsumerRecord<byte[], byte[]> message, BinaryDecoder decoder)
             throws IOException
     {
-        byte[] array = message.value();
+        ByteBuffer data = getData(message);
 
         String partitionKey = message.topic();
         int splitterIndex = partitionKey.indexOf('.');
         String project = partitionKey.substring(0, splitterIndex);
         String collection;
 
-        byte dataFormatType = array[0];
+        byte dataFormatType = data.get(data.position());
         if (dataFormatType == 0 || dataFormatType == 1) {
             collection = partitionKey.substring(splitterIndex + 1);
         }
         else {
             if (decoder == null) {
-                decoder = DecoderFactory.get().binaryDecoder(array, decoder);
+                decoder = AvroUtil.binaryDecoder(data, decoder);
+                decoder.skipFixed(1);
             }
             collection = decoder.readString();
         }
@@ -53,9 +56,15 @@ public class KafkaAvroMessageTransformer
     }
 
     @Override
-    public byte[] getData(ConsumerRecord<byte[], byte[]> record)
+    public ByteBuffer getData(ConsumerRecord<byte[], byte[]> record)
     {
-        return record.value();
+        return ByteBuffer.wrap(record.value());
+    }
+
+    @Override
+    public long getArrivalTime(ConsumerRecord<byte[], byte[]> record)
+    {
+        return record.timestamp() < 0 ? LatencySamples.UNKNOWN : record.timestamp();
     }
 
     @Override
@@ -8,10 +8,13 @@ import com.facebook.presto.spi.HostAddress;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import io.airlift.configuration.Config;
+import io.airlift.units.Duration;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.Size;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.collect.Iterables.transform;
 
@@ -20,8 +23,15 @@ public class KafkaConfig
     private static final int KAFKA_DEFAULT_PORT = 9092;
     private static final int ZOOKEEPER_DEFAULT_PORT = 2181;
 
-    private Set<HostAddress> nodes;
+    private Set<HostAddress> nodes = ImmutableSet.of(toKafkaHostAddress("127.0.0.1"));
     private Set<HostAddress> zkNodes;
+    private String topicPattern = ".*";
+    private String groupId = "presto_streaming";
+    private DataFormat dataFormat = DataFormat.JSON;
+    private TableSource tableSource = TableSource.BODY;
+    private int conversionThreads = Runtime.getRuntime().availableProcessors();
+    private Duration lagCheckInterval = Duration.succinctDuration(30, TimeUnit.SECONDS);
+    private double lagWarnGrowthRate = 1000;
 
     @Size(min = 1)
     public Set<HostAddress> getNodes()
@@ -61,6 +71,116 @@ public class KafkaConfig
         return this;
     }
 
+    public String getTopicPattern()
+    {
+        return topicPattern;
+    }
+
+    @Config("kafka.topic-pattern")
+    public KafkaConfig setTopicPattern(String topicPattern)
+    {
+        this.topicPattern = topicPattern;
+        return this;
+    }
+
+    public String getGroupId()
+    {
+        return groupId;
+    }
+
+    @Config("kafka.group-id")
+    public KafkaConfig setGroupId(String groupId)
+    {
+        this.groupId = groupId;
+        return this;
+    }
+
+    public DataFormat getDataFormat()
+    {
+        return dataFormat;
+    }
+
+    @Config("kafka.data-format")
+    public KafkaConfig setDataFormat(DataFormat dataFormat)
+    {
+        this.dataFormat = dataFormat;
+        return this;
+    }
+
+    public TableSource getTableSource()
+    {
+        return tableSource;
+    }
+
+    @Config("kafka.table-source")
+    public KafkaConfig setTableSource(TableSource tableSource)
+    {
+        this.tableSource = tableSource;
+        return this;
+    }
+
+    @Min(1)
+    public int getConversionThreads()
+    {
+        return conversionThreads;
+    }
+
+    @Config("kafka.conversion-threads")
+    public KafkaConfig setConversionThreads(int conversionThreads)
+    {
+        this.conversionThreads = conversionThreads;
+        return this;
+    }
+
+    public Duration getLagCheckInterval()
+    {
+        return lagCheckInterval;
+    }
+
+    @Config("kafka.lag-check-interval")
+    public KafkaConfig setLagCheckInterval(Duration lagCheckInterval)
+    {
+        this.lagCheckInterval = lagCheckInterval;
+        return this;
+    }
+
+    public double getLagWarnGrowthRate()
+    {
+        return lagWarnGrowthRate;
+    }
+
+    @Config("kafka.lag-warn-growth-rate")
+    public KafkaConfig setLagWarnGrowthRate(double lagWarnGrowthRate)
+    {
+        this.lagWarnGrowthRate = lagWarnGrowthRate;
+        return this;
+    }
+
+    public enum DataFormat
+    {
+        JSON, AVRO,
+        /**
+         * Picks the format of every record from its first byte, Avro records start with the type of the payload.
+         */
+        AUTO
+    }
+
+    public enum TableSource
+    {
+        /**
+         * The project and collection fields of the JSON event.
+         */
+        BODY,
+        /**
+         * The topic name, in project.collection format.
+         */
+        TOPIC,
+        /**
+         * The record key, in project.collection format. Records without a valid key fall back to the body.
+         */
+        KEY
+    }
+
     private static HostAddress toKafkaHostAddress(String value)
     {
         return HostAddress.fromString(value).withDefaultPort(KAFKA_DEFAULT_PORT);
@@ -5,8 +5,10 @@
 package io.rakam.presto.kafka;
 
 import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.rakam.presto.DatabaseHandler;
 import io.rakam.presto.FieldNameConfig;
+import io.rakam.presto.deserialization.LatencySamples;
 import io.rakam.presto.deserialization.json.JsonDeserializer;
 import io.rakam.presto.deserialization.json.JsonMessageEventTransformer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
@@ -15,27 +17,86 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class KafkaJsonMessageTransformer
         extends JsonMessageEventTransformer<ConsumerRecord<byte[], byte[]>>
 {
-    @Inject
+    private final KafkaConfig.TableSource tableSource;
+
     public KafkaJsonMessageTransformer(FieldNameConfig fieldNameConfig, DatabaseHandler databaseHandler)
     {
         super(fieldNameConfig, databaseHandler);
+        this.tableSource = KafkaConfig.TableSource.BODY;
+    }
+
+    @Inject
+    public KafkaJsonMessageTransformer(FieldNameConfig fieldNameConfig, DatabaseHandler databaseHandler, KafkaConfig config)
+    {
+        super(fieldNameConfig, databaseHandler, createConversionExecutor(config));
+        this.tableSource = config.getTableSource();
     }
 
     @Override
     public SchemaTableName extractCollection(ConsumerRecord<byte[], byte[]> message, @Nullable JsonDeserializer decoder)
             throws IOException
     {
-        decoder.setData(message.value());
+        SchemaTableName table = getTableFromMetadata(message);
+        if (table != null) {
+            decoder.setData(getData(message), table);
+            return table;
+        }
+
+        decoder.setData(getData(message));
         return decoder.getTable();
     }
 
+    @Nullable
+    @Override
+    protected SchemaTableName getTableFromMetadata(ConsumerRecord<byte[], byte[]> record)
+    {
+        switch (tableSource) {
+            case TOPIC:
+                return parseTable(record.topic());
+            case KEY:
+                return record.key() == null ? null : parseTable(new String(record.key(), StandardCharsets.UTF_8));
+            default:
+                return null;
+        }
+    }
+
     @Override
-    public byte[] getData(ConsumerRecord<byte[], byte[]> record)
+    public ByteBuffer getData(ConsumerRecord<byte[], byte[]> record)
+    {
+        return ByteBuffer.wrap(record.value());
+    }
+
+    @Override
+    public long getArrivalTime(ConsumerRecord<byte[], byte[]> record)
+    {
+        return record.timestamp() < 0 ? LatencySamples.UNKNOWN : record.timestamp();
+    }
+
+    @Nullable
+    private static SchemaTableName parseTable(String name)
+    {
+        int splitterIndex = name.indexOf('.');
+        if (splitterIndex <= 0 || splitterIndex == name.length() - 1) {
+            return null;
+        }
+        return new SchemaTableName(name.substring(0, splitterIndex), name.substring(splitterIndex + 1));
+    }
+
+    @Nullable
+    private static ExecutorService createConversionExecutor(KafkaConfig config)
     {
-        return record.value();
+        if (config.getTableSource() == KafkaConfig.TableSource.BODY || config.getConversionThreads() <= 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(config.getConversionThreads(),
+                new ThreadFactoryBuilder().setNameFormat("kafka-json-conversion-%d").setDaemon(true).build());
     }
 }
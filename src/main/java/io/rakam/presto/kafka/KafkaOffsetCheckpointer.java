@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.kafka;
+
+import com.google.common.collect.ImmutableMap;
+import io.rakam.presto.BatchRecords;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the offsets a batch covers. The offsets are committed by {@link KafkaWorkerManager}, which merges the
+ * offsets of all the batches of a flush and holds back the partitions of the tables that could not be committed.
+ */
+public class KafkaOffsetCheckpointer
+        implements BatchRecords.Checkpointer
+{
+    private final Map<TopicPartition, OffsetAndMetadata> offsets;
+    private final Map<String, String> positions;
+    private int failedAttempts;
+
+    public KafkaOffsetCheckpointer(Iterable<ConsumerRecord> records)
+    {
+        Map<TopicPartition, Long> maxOffsets = new HashMap<>();
+        for (ConsumerRecord record : records) {
+            maxOffsets.merge(new TopicPartition(record.topic(), record.partition()), record.offset(), Math::max);
+        }
+
+        ImmutableMap.Builder<TopicPartition, OffsetAndMetadata> builder = ImmutableMap.builder();
+        // the committed offset is the position of the next record to consume
+        maxOffsets.forEach((partition, offset) -> builder.put(partition, new OffsetAndMetadata(offset + 1)));
+        this.offsets = builder.build();
+
+        // the topic names can't contain a slash, so the partition is written as topic/partition
+        ImmutableMap.Builder<String, String> positions = ImmutableMap.builder();
+        offsets.forEach((partition, offset) -> positions.put(partition.topic() + "/" + partition.partition(), String.valueOf(offset.offset())));
+        this.positions = positions.build();
+    }
+
+    private KafkaOffsetCheckpointer(Map<String, String> positions)
+    {
+        this.offsets = ImmutableMap.of();
+        this.positions = positions;
+    }
+
+    /**
+     * Returns the checkpointer of the tables of a replayed batch that are buffered again. The partitions are moved
+     * past the replayed records when they're assigned, so it has no offsets to commit; the positions are kept so
+     * that the records are skipped again if the batch is replayed once more.
+     */
+    public static KafkaOffsetCheckpointer replayed(Map<String, String> positions)
+    {
+        return new KafkaOffsetCheckpointer(positions);
+    }
+
+    public Map<TopicPartition, OffsetAndMetadata> getOffsets()
+    {
+        return offsets;
+    }
+
+    public int incrementFailedAttempts()
+    {
+        return ++failedAttempts;
+    }
+
+    @Override
+    public Map<String, String> getPositions()
+    {
+        return positions;
+    }
+
+    /**
+     * Returns the highest offset of every partition in the positions of the replayed batches.
+     */
+    public static Map<TopicPartition, Long> getReplayedOffsets(List<Map<String, String>> replayedPositions)
+    {
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for (Map<String, String> positions : replayedPositions) {
+            positions.forEach((partition, offset) -> {
+                int separator = partition.lastIndexOf('/');
+                offsets.merge(new TopicPartition(partition.substring(0, separator), Integer.parseInt(partition.substring(separator + 1))),
+                        Long.parseLong(offset), Math::max);
+            });
+        }
+        return offsets;
+    }
+
+    public boolean containsAny(Collection<TopicPartition> partitions)
+    {
+        for (TopicPartition partition : partitions) {
+            if (offsets.containsKey(partition)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A batch is never checkpointed on its own, that would commit the offsets of the partitions that are held back.
+     */
+    @Override
+    public void checkpoint()
+    {
+        throw new UnsupportedOperationException("The offsets are committed by the worker manager");
+    }
+}
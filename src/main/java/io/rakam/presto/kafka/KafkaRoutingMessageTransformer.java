@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.kafka;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.block.Block;
+import com.facebook.presto.spi.block.BlockBuilder;
+import com.facebook.presto.spi.block.BlockBuilderStatus;
+import com.facebook.presto.spi.type.Type;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Table;
+import io.rakam.presto.DatabaseHandler;
+import io.rakam.presto.FieldNameConfig;
+import io.rakam.presto.deserialization.LatencySamples;
+import io.rakam.presto.deserialization.PageTableTransformer;
+import io.rakam.presto.deserialization.TableData;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets a collector consume JSON and Avro topics at the same time. Every record is routed to the JSON or the Avro
+ * transformer by its first byte: Avro payloads start with their type (0, 1 or 2), JSON payloads with a printable character.
+ * Each transformer keeps its own page readers, when a table receives records in both formats in the same flush
+ * the two pages are concatenated.
+ */
+public class KafkaRoutingMessageTransformer
+        implements PageTableTransformer<ConsumerRecord<byte[], byte[]>>
+{
+    private static final byte MAX_AVRO_TYPE = 2;
+
+    private final KafkaJsonMessageTransformer jsonTransformer;
+    private final KafkaAvroMessageTransformer avroTransformer;
+
+    @Inject
+    public KafkaRoutingMessageTransformer(FieldNameConfig fieldNameConfig, DatabaseHandler databaseHandler, KafkaConfig config)
+    {
+        this(new KafkaJsonMessageTransformer(fieldNameConfig, databaseHandler, config), new KafkaAvroMessageTransformer(fieldNameConfig, databaseHandler));
+    }
+
+    public KafkaRoutingMessageTransformer(KafkaJsonMessageTransformer jsonTransformer, KafkaAvroMessageTransformer avroTransformer)
+    {
+        this.jsonTransformer = jsonTransformer;
+        this.avroTransformer = avroTransformer;
+    }
+
+    @Override
+    public synchronized Table<String, String, TableData> createPageTable(Iterable<ConsumerRecord<byte[], byte[]>> records, Iterable<ConsumerRecord<byte[], byte[]>> bulkRecords)
+            throws IOException
+    {
+        List<ConsumerRecord<byte[], byte[]>> jsonRecords = new ArrayList<>();
+        List<ConsumerRecord<byte[], byte[]>> avroRecords = new ArrayList<>();
+        for (ConsumerRecord<byte[], byte[]> record : records) {
+            if (isAvro(record)) {
+                avroRecords.add(record);
+            }
+            else {
+                jsonRecords.add(record);
+            }
+        }
+
+        Table<String, String, TableData> table = jsonTransformer.createPageTable(jsonRecords, ImmutableList.of());
+        // bulk records are only written in Avro
+        if (avroRecords.isEmpty() && Iterables.isEmpty(bulkRecords)) {
+            return table;
+        }
+
+        for (Table.Cell<String, String, TableData> cell : avroTransformer.createPageTable(avroRecords, bulkRecords).cellSet()) {
+            TableData existing = table.get(cell.getRowKey(), cell.getColumnKey());
+            table.put(cell.getRowKey(), cell.getColumnKey(), existing == null ? cell.getValue() : concat(existing, cell.getValue()));
+        }
+        return table;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        jsonTransformer.shutdown();
+    }
+
+    private static boolean isAvro(ConsumerRecord<byte[], byte[]> record)
+    {
+        byte[] value = record.value();
+        return value.length > 0 && value[0] >= 0 && value[0] <= MAX_AVRO_TYPE;
+    }
+
+    /**
+     * The two readers may have seen different versions of the table schema, the columns of the pages are matched by name
+     * and the columns that are missing in one of the pages are filled with nulls.
+     */
+    private static TableData concat(TableData first, TableData second)
+    {
+        List<ColumnMetadata> metadata = new ArrayList<>(first.metadata);
+        for (ColumnMetadata column : second.metadata) {
+            if (indexOf(first.metadata, column.getName()) == -1) {
+                metadata.add(column);
+            }
+        }
+
+        Block[] blocks = new Block[metadata.size()];
+        int positionCount = first.page.getPositionCount() + second.page.getPositionCount();
+        for (int i = 0; i < metadata.size(); i++) {
+            ColumnMetadata column = metadata.get(i);
+            Type type = column.getType();
+            BlockBuilder blockBuilder = type.createBlockBuilder(new BlockBuilderStatus(), positionCount);
+            appendChannel(type, first.page, indexOf(first.metadata, column.getName()), blockBuilder);
+            appendChannel(type, second.page, indexOf(second.metadata, column.getName()), blockBuilder);
+            blocks[i] = blockBuilder.build();
+        }
+
+        return new TableData(new Page(positionCount, blocks), metadata, concat(first.latencySamples, second.latencySamples));
+    }
+
+    private static int indexOf(List<ColumnMetadata> metadata, String name)
+    {
+        for (int i = 0; i < metadata.size(); i++) {
+            if (metadata.get(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void appendChannel(Type type, Page page, int channel, BlockBuilder blockBuilder)
+    {
+        if (channel == -1 || channel >= page.getChannelCount()) {
+            for (int position = 0; position < page.getPositionCount(); position++) {
+                blockBuilder.appendNull();
+            }
+            return;
+        }
+
+        Block block = page.getBlock(channel);
+        for (int position = 0; position < block.getPositionCount(); position++) {
+            type.appendTo(block, position, blockBuilder);
+        }
+    }
+
+    private static LatencySamples concat(LatencySamples first, LatencySamples second)
+    {
+        if (first == null || second == null) {
+            return first == null ? second : first;
+        }
+
+        LatencySamples samples = new LatencySamples();
+        for (LatencySamples source : new LatencySamples[] {first, second}) {
+            for (int i = 0; i < source.size(); i++) {
+                samples.add(source.getEventTime(i), source.getArrivalTime(i));
+            }
+        }
+        return samples;
+    }
+}
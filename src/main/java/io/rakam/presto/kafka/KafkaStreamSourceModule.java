@@ -5,20 +5,39 @@
 package io.rakam.presto.kafka;
 
 import com.google.inject.Binder;
-import com.google.inject.Module;
 import com.google.inject.Scopes;
-import io.rakam.presto.deserialization.MessageEventTransformer;
+import io.airlift.configuration.AbstractConfigurationAwareModule;
+import io.rakam.presto.LagTracker;
+import io.rakam.presto.deserialization.PageTableTransformer;
 
 import static io.airlift.configuration.ConfigBinder.configBinder;
+import static org.weakref.jmx.guice.ExportBinder.newExporter;
 
 public class KafkaStreamSourceModule
-        implements Module
+        extends AbstractConfigurationAwareModule
 {
     @Override
-    public void configure(Binder binder)
+    protected void setup(Binder binder)
     {
         configBinder(binder).bindConfig(KafkaConfig.class);
+        KafkaConfig config = buildConfigObject(KafkaConfig.class);
+        binder.bind(LagTracker.class).toInstance(new LagTracker("Kafka", "records", LagTracker.Aggregation.SUM,
+                config.getLagWarnGrowthRate(), config.getLagCheckInterval()));
+        newExporter(binder).export(LagTracker.class).withGeneratedName();
+
         binder.bind(KafkaWorkerManager.class).in(Scopes.SINGLETON);
-        binder.bind(MessageEventTransformer.class).to(KafkaJsonMessageTransformer.class).in(Scopes.SINGLETON);
+        switch (config.getDataFormat()) {
+            case JSON:
+                binder.bind(PageTableTransformer.class).to(KafkaJsonMessageTransformer.class).in(Scopes.SINGLETON);
+                break;
+            case AVRO:
+                binder.bind(PageTableTransformer.class).to(KafkaAvroMessageTransformer.class).in(Scopes.SINGLETON);
+                break;
+            case AUTO:
+                binder.bind(PageTableTransformer.class).to(KafkaRoutingMessageTransformer.class).in(Scopes.SINGLETON);
+                break;
+            default:
+                throw new IllegalStateException("Unknown data format: " + config.getDataFormat());
+        }
     }
 }
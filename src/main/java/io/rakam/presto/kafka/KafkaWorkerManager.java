@@ -5,18 +5,34 @@
 package io.rakam.presto.kafka;
 
 import com.facebook.presto.spi.HostAddress;
-import com.google.common.collect.ImmutableList;
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Table;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.airlift.stats.TimeStat;
 import io.rakam.presto.BasicMemoryBuffer;
 import io.rakam.presto.BatchRecords;
+import io.rakam.presto.ClusterConfig;
+import io.rakam.presto.CollectorStats;
+import io.rakam.presto.FlushReason;
+import io.rakam.presto.LagTracker;
+import io.rakam.presto.MemoryPool;
 import io.rakam.presto.MiddlewareBuffer;
 import io.rakam.presto.MiddlewareConfig;
 import io.rakam.presto.StreamWorkerContext;
 import io.rakam.presto.TargetConnectorCommitter;
+import io.rakam.presto.deserialization.TableData;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -27,36 +43,63 @@ import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-@SuppressWarnings("ALL")
+// the stream context is bound on the raw ConsumerRecord type, which is shared by the JSON and Avro transformers
+@SuppressWarnings("rawtypes")
 public class KafkaWorkerManager
-        implements Watcher
+        implements Watcher, ConsumerRebalanceListener
 {
+    private static final Logger log = Logger.get(KafkaWorkerManager.class);
+    private static final String TOPICS_PATH = "/brokers/topics";
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+
     private final StreamWorkerContext<ConsumerRecord> context;
     private final TargetConnectorCommitter committer;
     private final MiddlewareBuffer middlewareBuffer;
-    private final BasicMemoryBuffer buffer;
-    private KafkaConsumer<byte[], byte[]> consumer;
+    private final BasicMemoryBuffer<ConsumerRecord> buffer;
+    private final CollectorStats stats;
+    private final LagTracker lagTracker;
+    private final MemoryPool memoryPool;
+    private final Pattern topicPattern;
+    private final Map<TopicPartition, OffsetAndMetadata> requestedOffsets = new HashMap<>();
+    private Map<TopicPartition, Long> replayedOffsets = new HashMap<>();
+    private long lastLagCheckMillis;
+    private volatile boolean running = true;
+    private volatile boolean topicsChanged;
+    private TimeStat.BlockTimer memoryBlockedTimer;
+    private Consumer<byte[], byte[]> consumer;
     private KafkaConfig config;
+    private ClusterConfig clusterConfig;
     private ExecutorService executor;
     private ZooKeeper zk;
 
     @Inject
-    public KafkaWorkerManager(KafkaConfig config, MiddlewareConfig middlewareConfig, StreamWorkerContext<ConsumerRecord> context, TargetConnectorCommitter committer)
+    public KafkaWorkerManager(KafkaConfig config, ClusterConfig clusterConfig, MiddlewareConfig middlewareConfig, StreamWorkerContext<ConsumerRecord> context, TargetConnectorCommitter committer, LagTracker lagTracker)
     {
         this.config = config;
+        this.clusterConfig = clusterConfig;
+        this.lagTracker = lagTracker;
         this.context = context;
         this.committer = committer;
-        this.middlewareBuffer = new MiddlewareBuffer(middlewareConfig);
+        this.stats = context.getStats();
+        this.memoryPool = context.getMemoryPool();
+        this.middlewareBuffer = new MiddlewareBuffer(middlewareConfig, stats, memoryPool, context.getFlushController(), context.getPageSerde());
+        this.topicPattern = Pattern.compile(config.getTopicPattern());
         buffer = context.createBuffer();
-        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("kafka-topic-consumer").build());
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("kafka-topic-consumer").build());
     }
 
     public ExecutorService getExecutor()
@@ -67,21 +110,30 @@ public class KafkaWorkerManager
     @PreDestroy
     public void shutdown()
     {
+        running = false;
         context.shutdown();
         if (consumer != null) {
-            consumer.close();
-        }
-        if (executor != null) {
-            executor.shutdown();
+            // KafkaConsumer is not thread-safe, the consumer thread closes it once the poll is interrupted
+            consumer.wakeup();
         }
+        executor.shutdown();
         try {
             if (!executor.awaitTermination(5000, TimeUnit.MILLISECONDS)) {
-                System.out.println("Timed out waiting for consumer threads to shut down, exiting uncleanly");
+                log.warn("Timed out waiting for consumer threads to shut down, exiting uncleanly");
             }
         }
         catch (InterruptedException e) {
-            System.out.println("Interrupted during shutdown, exiting uncleanly");
+            log.warn("Interrupted during shutdown, exiting uncleanly");
+        }
+        if (zk != null) {
+            try {
+                zk.close();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        middlewareBuffer.close();
     }
 
     @PostConstruct
@@ -89,90 +141,360 @@ public class KafkaWorkerManager
     {
         String zkNodes = config.getZookeeperNodes().stream().map(HostAddress::toString).collect(Collectors.joining(","));
 
-        List<String> children;
         try {
             zk = new ZooKeeper(zkNodes, 1000 * 60 * 2, this);
-            children = zk.getChildren("/brokers/topics", this);
         }
-        catch (IOException | KeeperException | InterruptedException e) {
+        catch (IOException e) {
             throw new RuntimeException(e);
         }
+        watchTopics();
 
-        consumer = new KafkaConsumer(createConsumerConfig(zkNodes, "127.0.0.1:9092"));
-        consumer.subscribe(ImmutableList.of("presto.tweet"));
+        replayedOffsets = KafkaOffsetCheckpointer.getReplayedOffsets(middlewareBuffer.recover(committer, KafkaOffsetCheckpointer::replayed));
+
+        subscribe(new KafkaConsumer<>(createConsumerConfig(config, clusterConfig)));
+        executor.execute(this::consume);
+    }
 
+    /**
+     * Subscribes the consumer to the topics that match the pattern. {@link #run()} polls it from the consumer thread,
+     * the tests drive it with {@link #poll()} and {@link #close()} instead.
+     */
+    public void subscribe(Consumer<byte[], byte[]> consumer)
+    {
+        this.consumer = consumer;
+        consumer.subscribe(topicPattern, this);
+    }
+
+    private void consume()
+    {
         try {
+            while (running) {
+                poll();
+            }
+        }
+        catch (WakeupException e) {
+            if (running) {
+                log.error(e, "Kafka consumer is interrupted unexpectedly");
+            }
+        }
+        catch (Throwable e) {
+            log.error(e, "Kafka consumer stopped");
+        }
+        finally {
+            close();
+        }
+    }
 
-            while (true) {
-                ConsumerRecords<byte[], byte[]> records = consumer.poll(1000);
-                for (ConsumerRecord<byte[], byte[]> record : records) {
-                    buffer.consumeRecord(record, record.value().length);
-                }
-                if (buffer.shouldFlush()) {
-                    Map.Entry<List, List> records1 = buffer.getRecords();
-                    try {
-                        middlewareBuffer.add(new BatchRecords(context.convert(records1.getKey(), records1.getValue()), new BatchRecords.Checkpointer() {
-                            @Override
-                            public void checkpoint()
-                                    throws BatchRecords.CheckpointException
-                            {
-                                // checkpoint for kafka topic
-                            }
-                        }));
-
-                        if(middlewareBuffer.shouldFlush()) {
-                            List<BatchRecords> list = middlewareBuffer.flush();
-
-                            if (!list.isEmpty()) {
-                                committer.process(Iterables.transform(list, BatchRecords::getTable));
-
-                                list.forEach(l -> {
-                                    try {
-                                        l.checkpoint();
-                                    }
-                                    catch (BatchRecords.CheckpointException e) {
-                                        throw new RuntimeException("Error while checkpointing records", e);
-                                    }
-                                });
-                            }
-                        }
+    /**
+     * Polls the consumer once, and flushes the stream buffer and commits the middleware buffer if they're full.
+     */
+    public void poll()
+    {
+        if (topicsChanged) {
+            topicsChanged = false;
+            // subscribing again forces a metadata refresh so that new topics are assigned without waiting for metadata.max.age.ms
+            consumer.subscribe(topicPattern, this);
+        }
+        applyBackpressure();
 
-                    }
-                    catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+        ConsumerRecords<byte[], byte[]> records;
+        try (TimeStat.BlockTimer ignored = stats.getPollTime().time()) {
+            records = consumer.poll(1000);
+        }
+        long bytes = 0;
+        for (ConsumerRecord<byte[], byte[]> record : records) {
+            buffer.consumeRecord(record, record.value().length);
+            bytes += record.value().length;
+        }
+        stats.recordConsumed(records.count(), bytes);
+        checkLag();
+
+        FlushReason streamFlushReason = buffer.getFlushReason();
+        if (streamFlushReason != null) {
+            stats.recordStreamFlush(streamFlushReason);
+            flushStream();
+
+            FlushReason middlewareFlushReason = middlewareBuffer.getFlushReason();
+            if (middlewareFlushReason != null) {
+                stats.recordMiddlewareFlush(middlewareFlushReason);
+                commit(middlewareBuffer.flush(), false);
             }
-        } finally {
+        }
+    }
+
+    public void close()
+    {
+        try {
+            if (!requestedOffsets.isEmpty()) {
+                // make sure the last asynchronous commits are not lost when the consumer is closed
+                consumer.commitSync(requestedOffsets);
+            }
+        }
+        catch (KafkaException e) {
+            log.warn(e, "Unable to commit offsets on shutdown");
+        }
+        finally {
             consumer.close();
         }
     }
 
-    private static Properties createConsumerConfig(String zkNodes, String kafkaNodes)
+    /**
+     * Pauses the assigned partitions while the memory pool is full. The consumer keeps polling so that it stays
+     * in the group, and the buffers are flushed with the memory flush reason, which frees the pool.
+     */
+    private void applyBackpressure()
+    {
+        if (memoryPool.isFull()) {
+            if (memoryBlockedTimer == null) {
+                log.warn("Memory pool is full (%d bytes reserved), pausing the partitions until the buffers are committed",
+                        memoryPool.getReservedBytes());
+                memoryBlockedTimer = stats.getMemoryBlockedTime().time();
+                consumer.pause(consumer.assignment());
+            }
+        }
+        else if (memoryBlockedTimer != null) {
+            memoryBlockedTimer.close();
+            memoryBlockedTimer = null;
+            consumer.resume(consumer.paused());
+        }
+    }
+
+    private void flushStream()
+    {
+        Map.Entry<List<ConsumerRecord>, List<ConsumerRecord>> records = buffer.getRecords();
+        if (records.getKey().isEmpty() && records.getValue().isEmpty()) {
+            buffer.clear();
+            return;
+        }
+
+        KafkaOffsetCheckpointer checkpointer = new KafkaOffsetCheckpointer(Iterables.concat(records.getKey(), records.getValue()));
+        try (TimeStat.BlockTimer ignored = stats.getStreamFlushTime().time()) {
+            middlewareBuffer.add(new BatchRecords(context.convert(records.getKey(), records.getValue()), checkpointer));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Commits the batches to the database and then commits the highest offset of every partition in one call.
+     * Offsets of a partition are held back while any batch covering it has tables that could not be committed.
+     * In the normal path those tables are buffered again and retried with the next flush; when partitions are
+     * revoked they are left to the next owner, which re-reads them from the last committed offset.
+     * The tables that are given up after the last attempt are moved to the dead-letter file of the write-ahead
+     * log and their offsets are committed, the other batches are released from the log.
+     */
+    private void commit(List<BatchRecords> list, boolean revoking)
+    {
+        if (list.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Set<SchemaTableName> failedTables = committer.process(Iterables.transform(list, BatchRecords::getTable));
+        if (!revoking) {
+            context.getFlushController().recordFlush(Iterables.transform(list, BatchRecords::getTable), failedTables,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        Set<TopicPartition> heldBack = new HashSet<>();
+        List<BatchRecords> released = new ArrayList<>(list.size());
+        for (BatchRecords batch : list) {
+            KafkaOffsetCheckpointer checkpointer = (KafkaOffsetCheckpointer) batch.getCheckpointer();
+            Table<String, String, TableData> failed = batch.filterTables(failedTables);
+            if (failed.isEmpty()) {
+                checkpointer.getOffsets().forEach((partition, offset) ->
+                        offsets.merge(partition, offset, (first, second) -> first.offset() >= second.offset() ? first : second));
+                released.add(batch);
+                continue;
+            }
+
+            if (revoking) {
+                heldBack.addAll(checkpointer.getOffsets().keySet());
+                released.add(batch);
+            }
+            else if (checkpointer.incrementFailedAttempts() < MAX_COMMIT_ATTEMPTS) {
+                heldBack.addAll(checkpointer.getOffsets().keySet());
+                middlewareBuffer.add(new BatchRecords(failed, checkpointer));
+                released.add(batch);
+            }
+            else {
+                log.error("Giving up committing tables %s for partitions %s, the records are moved to the dead-letter file",
+                        failed.cellSet().stream().map(cell -> cell.getRowKey() + "." + cell.getColumnKey()).collect(Collectors.toList()),
+                        checkpointer.getOffsets().keySet());
+                middlewareBuffer.giveUp(batch, failed);
+                checkpointer.getOffsets().forEach((partition, offset) ->
+                        offsets.merge(partition, offset, (first, second) -> first.offset() >= second.offset() ? first : second));
+            }
+        }
+        offsets.keySet().removeAll(heldBack);
+        middlewareBuffer.release(released);
+
+        if (offsets.isEmpty()) {
+            return;
+        }
+
+        try (TimeStat.BlockTimer ignored = stats.getCheckpointTime().time()) {
+            if (revoking) {
+                consumer.commitSync(offsets);
+            }
+            else {
+                consumer.commitAsync(offsets, (committedOffsets, exception) -> {
+                    if (exception != null) {
+                        // a later commit covers these offsets, so a failed async commit only widens the replay window
+                        stats.getCheckpointFailures().update(1);
+                        log.warn(exception, "Unable to commit offsets %s", committedOffsets);
+                    }
+                });
+            }
+            requestedOffsets.putAll(offsets);
+        }
+        catch (KafkaException e) {
+            stats.getCheckpointFailures().update(1);
+            log.error(e, "Unable to commit offsets %s", offsets);
+        }
+    }
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions)
+    {
+        if (partitions.isEmpty()) {
+            return;
+        }
+
+        // the records of the revoked partitions may still be in the stream buffer, move them to the middleware buffer first
+        flushStream();
+        Set<TopicPartition> revoked = ImmutableSet.copyOf(partitions);
+        List<BatchRecords> batches = middlewareBuffer.flush(checkpointer ->
+                ((KafkaOffsetCheckpointer) checkpointer).containsAny(revoked));
+        log.info("%d partitions are revoked, committing %d buffered batches before handing them off", revoked.size(), batches.size());
+        commit(batches, true);
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions)
+    {
+        log.info("Assigned partitions: %s", partitions);
+        requestedOffsets.keySet().retainAll(partitions);
+        skipReplayedRecords(partitions);
+        if (memoryBlockedTimer != null) {
+            // the partitions are not paused after a rebalance
+            consumer.pause(partitions);
+        }
+        // force a lag check so that the tracker forgets the partitions this node no longer owns
+        lastLagCheckMillis = 0;
+    }
+
+    /**
+     * Moves the assigned partitions past the records of the batches replayed from the write-ahead log and commits
+     * the new positions. Only the first assignment after the replay is affected; if a partition is assigned to
+     * another node in the meantime, that node reads the replayed records again.
+     */
+    private void skipReplayedRecords(Collection<TopicPartition> partitions)
+    {
+        if (replayedOffsets.isEmpty()) {
+            return;
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> skipped = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            Long offset = replayedOffsets.remove(partition);
+            if (offset == null) {
+                continue;
+            }
+            OffsetAndMetadata committed = consumer.committed(partition);
+            if (committed == null || committed.offset() < offset) {
+                consumer.seek(partition, offset);
+                skipped.put(partition, new OffsetAndMetadata(offset));
+            }
+        }
+
+        if (skipped.isEmpty()) {
+            return;
+        }
+        log.info("Skipping the records replayed from the write-ahead log, moving partitions to %s", skipped);
+        try {
+            consumer.commitSync(skipped);
+            requestedOffsets.putAll(skipped);
+        }
+        catch (KafkaException e) {
+            stats.getCheckpointFailures().update(1);
+            log.error(e, "Unable to commit offsets %s", skipped);
+        }
+    }
+
+    private void checkLag()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastLagCheckMillis < config.getLagCheckInterval().toMillis()) {
+            return;
+        }
+        lastLagCheckMillis = now;
+
+        Set<TopicPartition> assignment = consumer.assignment();
+        if (assignment.isEmpty()) {
+            return;
+        }
+
+        Map<TopicPartition, Long> endOffsets = consumer.endOffsets(assignment);
+        Map<String, Long> lags = new HashMap<>();
+        for (TopicPartition partition : assignment) {
+            Long endOffset = endOffsets.get(partition);
+            if (endOffset != null) {
+                lags.put(partition.toString(), Math.max(0, endOffset - consumer.position(partition)));
+            }
+        }
+        lagTracker.replaceAll(lags);
+    }
+
+    private static Properties createConsumerConfig(KafkaConfig config, ClusterConfig clusterConfig)
     {
         Properties props = new Properties();
-        props.put("zookeeper.connect", zkNodes);
-        props.put("bootstrap.servers", kafkaNodes);
-        props.put("group.id", "presto_streaming");
-        props.put("zookeeper.session.timeout.ms", "400");
-        props.put("zookeeper.sync.time.ms", "200");
-        props.put("auto.commit.enable", "false");
+        props.put("bootstrap.servers", config.getNodes().stream().map(HostAddress::toString).collect(Collectors.joining(",")));
+        props.put("group.id", config.getGroupId());
+        // offsets are committed by the collector after the data is committed to the database
+        props.put("enable.auto.commit", "false");
         props.put("auto.offset.reset", "earliest");
-        props.put("offsets.storage", "kafka");
         props.put("key.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
         props.put("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
-        props.put("consumer.timeout.ms", "10");
+        if (clusterConfig.isClustered()) {
+            props.put("client.id", config.getGroupId() + "-" + clusterConfig.getInstanceId());
+            props.put("partition.assignment.strategy", TopicAffinityAssignor.class.getName());
+            props.put(TopicAffinityAssignor.INSTANCE_ID_CONFIG, clusterConfig.getInstanceId());
+        }
 
         return props;
     }
 
+    private void watchTopics()
+    {
+        try {
+            // ZooKeeper watches fire once, so the watch is registered again on every read
+            List<String> topics = zk.getChildren(TOPICS_PATH, this);
+            List<String> matching = topics.stream()
+                    .filter(topic -> topicPattern.matcher(topic).matches())
+                    .collect(Collectors.toList());
+            log.info("%d topics match the pattern '%s': %s", matching.size(), topicPattern.pattern(), matching);
+        }
+        catch (KeeperException | InterruptedException e) {
+            log.error(e, "Unable to watch topics in %s", TOPICS_PATH);
+        }
+    }
+
     @Override
     public void process(WatchedEvent event)
     {
         switch (event.getType()) {
             case NodeChildrenChanged:
+                if (TOPICS_PATH.equals(event.getPath()) && running) {
+                    watchTopics();
+                    topicsChanged = true;
+                }
                 break;
         }
-        event.getPath();
     }
-}
\ No newline at end of file
+}
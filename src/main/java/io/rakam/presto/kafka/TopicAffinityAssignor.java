@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.kafka;
+
+import com.google.common.hash.Hashing;
+import org.apache.kafka.clients.consumer.internals.AbstractPartitionAssignor;
+import org.apache.kafka.common.Configurable;
+import org.apache.kafka.common.TopicPartition;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Assigns all the partitions of a topic to the same collector as long as the load stays balanced.
+ * Every topic is a table, so keeping its partitions on one node keeps the Raptor shards of that node large
+ * instead of writing a small shard per table on every node.
+ * <p>
+ * The node of a topic is picked with rendezvous hashing over the collector instance ids that the members send
+ * in their subscriptions, so a topic stays on the same node across rebalances and only the topics of a node that
+ * leaves (or a share of the topics when a node joins) move. A node takes at most its fair share of the partitions,
+ * the remaining partitions of a topic go to the next node in the ranking.
+ */
+public class TopicAffinityAssignor
+        extends AbstractPartitionAssignor
+        implements Configurable
+{
+    public static final String INSTANCE_ID_CONFIG = "collector.instance-id";
+
+    private String instanceId;
+
+    @Override
+    public void configure(Map<String, ?> configs)
+    {
+        Object value = configs.get(INSTANCE_ID_CONFIG);
+        instanceId = value == null ? null : value.toString();
+    }
+
+    @Override
+    public String name()
+    {
+        return "topic-affinity";
+    }
+
+    @Override
+    public Subscription subscription(Set<String> topics)
+    {
+        ByteBuffer userData = instanceId == null ? null : ByteBuffer.wrap(instanceId.getBytes(StandardCharsets.UTF_8));
+        return new Subscription(new ArrayList<>(topics), userData);
+    }
+
+    @Override
+    public Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic, Map<String, Subscription> subscriptions)
+    {
+        Map<String, List<TopicPartition>> assignment = new HashMap<>();
+        Map<String, String> instances = new HashMap<>();
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            assignment.put(entry.getKey(), new ArrayList<>());
+            instances.put(entry.getKey(), getInstanceId(entry.getKey(), entry.getValue()));
+        }
+
+        int totalPartitions = partitionsPerTopic.values().stream().mapToInt(Integer::intValue).sum();
+        int capacity = (totalPartitions + subscriptions.size() - 1) / Math.max(1, subscriptions.size());
+
+        // large topics are placed first, they are the hardest to keep on a single node
+        List<String> topics = partitionsPerTopic.keySet().stream()
+                .sorted(Comparator.comparing((String topic) -> partitionsPerTopic.get(topic)).reversed().thenComparing(topic -> topic))
+                .collect(Collectors.toList());
+
+        for (String topic : topics) {
+            List<String> candidates = subscriptions.entrySet().stream()
+                    .filter(entry -> entry.getValue().topics().contains(topic))
+                    .map(Map.Entry::getKey)
+                    .sorted(Comparator.comparingLong((String member) -> weight(topic, instances.get(member))).reversed()
+                            .thenComparing(member -> member))
+                    .collect(Collectors.toList());
+            if (candidates.isEmpty()) {
+                continue;
+            }
+
+            for (int partition = 0; partition < partitionsPerTopic.get(topic); partition++) {
+                String member = candidates.stream()
+                        .filter(candidate -> assignment.get(candidate).size() < capacity)
+                        .findFirst()
+                        .orElseGet(() -> candidates.stream()
+                                .min(Comparator.comparingInt(candidate -> assignment.get(candidate).size()))
+                                .get());
+                assignment.get(member).add(new TopicPartition(topic, partition));
+            }
+        }
+
+        return assignment;
+    }
+
+    private static String getInstanceId(String memberId, Subscription subscription)
+    {
+        ByteBuffer userData = subscription.userData();
+        if (userData == null || !userData.hasRemaining()) {
+            // members that are not started in clustered mode have no stable identity
+            return memberId;
+        }
+        byte[] bytes = new byte[userData.remaining()];
+        userData.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long weight(String topic, String instanceId)
+    {
+        return Hashing.murmur3_128().newHasher()
+                .putString(topic, StandardCharsets.UTF_8)
+                .putString(instanceId, StandardCharsets.UTF_8)
+                .hash().asLong();
+    }
+}
@@ -10,15 +10,17 @@ import com.amazonaws.services.s3.model.S3Object;
 import com.facebook.presto.spi.SchemaTableName;
 import io.rakam.presto.DatabaseHandler;
 import io.rakam.presto.FieldNameConfig;
+import io.rakam.presto.deserialization.LatencySamples;
 import io.rakam.presto.deserialization.avro.AvroMessageEventTransformer;
+import io.rakam.presto.deserialization.avro.AvroUtil;
 import io.rakam.presto.S3MiddlewareConfig;
 import org.apache.avro.io.BinaryDecoder;
-import org.apache.avro.io.DecoderFactory;
 
 import javax.inject.Inject;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Date;
 
 public class KinesisMessageEventTransformer
         extends AvroMessageEventTransformer<Record>
@@ -44,20 +46,26 @@ public class KinesisMessageEventTransformer
     public SchemaTableName extractCollection(Record message, BinaryDecoder decoder)
             throws IOException
     {
-        byte[] array = message.getData().array();
+        ByteBuffer data = message.getData();
 
         String partitionKey = message.getPartitionKey();
         int splitterIndex = partitionKey.indexOf('|');
         String project = partitionKey.substring(0, splitterIndex);
         String collection;
 
-        byte dataFormatType = array[0];
-        if (dataFormatType == 2) {
+        byte dataFormatType = data.get(data.position());
+        if (dataFormatType == 1) {
+            // bulk records only carry a pointer to the bulk object, the collection is in the partition key
+            collection = partitionKey.substring(splitterIndex + 1);
+        }
+        else if (dataFormatType == 2) {
             if (decoder == null) {
-                decoder = DecoderFactory.get().binaryDecoder(array, decoder);
+                decoder = AvroUtil.binaryDecoder(data, decoder);
+                decoder.skipFixed(1);
             }
             collection = decoder.readString();
-        } else {
+        }
+        else {
             throw new IllegalArgumentException();
         }
 
@@ -65,10 +73,16 @@ public class KinesisMessageEventTransformer
     }
 
     @Override
-    public byte[] getData(Record record)
+    public ByteBuffer getData(Record record)
+    {
+        return record.getData();
+    }
+
+    @Override
+    public long getArrivalTime(Record record)
     {
-        ByteBuffer data = record.getData();
-        return data.array();
+        Date arrival = record.getApproximateArrivalTimestamp();
+        return arrival == null ? LatencySamples.UNKNOWN : arrival.getTime();
     }
 
     @Override
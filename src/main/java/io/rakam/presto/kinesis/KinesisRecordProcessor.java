@@ -4,70 +4,112 @@
 
 package io.rakam.presto.kinesis;
 
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.KinesisClientLibException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
 import com.amazonaws.services.kinesis.model.Record;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Table;
 import io.airlift.log.Logger;
+import io.airlift.stats.TimeStat;
+import io.airlift.units.Duration;
 import io.rakam.presto.BasicMemoryBuffer;
 import io.rakam.presto.BatchRecords;
-import io.rakam.presto.MiddlewareBuffer;
-import io.rakam.presto.MiddlewareConfig;
+import io.rakam.presto.CollectorStats;
+import io.rakam.presto.FlushReason;
+import io.rakam.presto.LagTracker;
+import io.rakam.presto.MemoryPool;
 import io.rakam.presto.StreamWorkerContext;
-import io.rakam.presto.TargetConnectorCommitter;
 import io.rakam.presto.deserialization.TableData;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class KinesisRecordProcessor
         implements IRecordProcessor
 {
     private static final Logger log = Logger.get(KinesisRecordProcessor.class);
 
-    private final TargetConnectorCommitter committer;
     private final BasicMemoryBuffer streamBuffer;
-    private final MiddlewareBuffer middlewareBuffer;
+    private final KinesisShardAggregator aggregator;
     private final StreamWorkerContext context;
+    private final CollectorStats stats;
+    private final LagTracker lagTracker;
+    private final MemoryPool memoryPool;
+    private final Duration drainTimeout;
     private String shardId;
+    private String lastSequenceNumber;
+    private long lastSubSequenceNumber;
+    // records are read since the last stream flush, including the ones that are skipped after a replay
+    private boolean unflushed;
+    private KinesisShardCheckpointer replayedPosition;
 
     public KinesisRecordProcessor(StreamWorkerContext context,
-            MiddlewareConfig middlewareConfig,
-            TargetConnectorCommitter committer)
+            KinesisShardAggregator aggregator,
+            LagTracker lagTracker,
+            Duration drainTimeout)
     {
-        this.committer = committer;
+        this.aggregator = aggregator;
+        this.drainTimeout = drainTimeout;
         this.context = context;
+        this.lagTracker = lagTracker;
+        this.stats = context.getStats();
+        this.memoryPool = context.getMemoryPool();
         this.streamBuffer = context.createBuffer();
-        this.middlewareBuffer = new MiddlewareBuffer(middlewareConfig);
     }
 
     @Override
-    public void initialize(String shardId)
+    public void initialize(InitializationInput initializationInput)
     {
-        this.shardId = shardId;
+        this.shardId = initializationInput.getShardId();
+        this.replayedPosition = aggregator.removeReplayedPosition(shardId);
         log.info("Kinesis consumer shard %s initialized", shardId);
     }
 
     @Override
-    public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer)
+    public void processRecords(ProcessRecordsInput processRecordsInput)
     {
+        List<Record> records = processRecordsInput.getRecords();
+        IRecordProcessorCheckpointer checkpointer = processRecordsInput.getCheckpointer();
+        if (processRecordsInput.getMillisBehindLatest() != null) {
+            lagTracker.update(shardId, processRecordsInput.getMillisBehindLatest());
+        }
+
+        long bytes = 0;
         for (Record record : records) {
+            // records are delivered in order, the last one is the position to checkpoint once they are committed
+            lastSequenceNumber = record.getSequenceNumber();
+            // the KCL de-aggregates the records packed by the Kinesis Producer Library, they share the sequence number
+            lastSubSequenceNumber = record instanceof UserRecord ? ((UserRecord) record).getSubSequenceNumber() : 0;
+            unflushed = true;
+            if (replayedPosition != null) {
+                // the record is already committed by the write-ahead log replay, it's checkpointed with the next flush
+                if (replayedPosition.covers(lastSequenceNumber, lastSubSequenceNumber)) {
+                    continue;
+                }
+                log.info("Skipped the records of shard %s replayed from the write-ahead log", shardId);
+                replayedPosition = null;
+            }
             ByteBuffer data = record.getData();
-            byte type = data.get(0);
+            bytes += data.remaining();
+            byte type = data.get(data.position());
             switch (type) {
                 case 0:
                 case 2:
                     streamBuffer.consumeRecord(record, data.remaining());
                     break;
                 case 1:
-                    long length = data.getLong(1);
+                    long length = data.getLong(data.position() + 1);
                     streamBuffer.consumeBatch(record, length);
                     break;
                 default:
@@ -75,42 +117,104 @@ public class KinesisRecordProcessor
                     continue;
             }
         }
+        stats.recordConsumed(records.size(), bytes);
+
+        // the KCL calls the processor with an empty list when the shard is idle (see KinesisWorkerManager), so the
+        // aggregated pages are flushed on time even if none of the shards receive records
+        FlushReason streamFlushReason = streamBuffer.getFlushReason();
+        if (streamFlushReason != null && unflushed) {
+            stats.recordStreamFlush(streamFlushReason);
+            Table<String, String, TableData> pages;
+            try (TimeStat.BlockTimer ignored = stats.getStreamFlushTime().time()) {
+                pages = flushStream();
+            }
+
+            aggregator.add(new BatchRecords(pages, new KinesisShardCheckpointer(shardId, checkpointer, lastSequenceNumber, lastSubSequenceNumber)));
+            unflushed = false;
+        }
+        aggregator.flushIfNeeded();
+        awaitMemory();
+    }
 
-        if (streamBuffer.shouldFlush()) {
-            Table<String, String, TableData> pages = flushStream();
+    /**
+     * Blocks the shard while the memory pool is full so that the KCL doesn't fetch more records for it. The stream
+     * buffer of the shard is already moved to the aggregator since it's flushed when the pool is full, and the
+     * blocked shards take turns committing the aggregated pages until the pool is freed.
+     */
+    private void awaitMemory()
+    {
+        if (!memoryPool.isFull()) {
+            return;
+        }
 
-            middlewareBuffer.add(new BatchRecords(pages, () -> {
+        try (TimeStat.BlockTimer ignored = stats.getMemoryBlockedTime().time()) {
+            while (memoryPool.isFull()) {
+                aggregator.flushIfNeeded();
                 try {
-                    checkpointer.checkpoint();
+                    memoryPool.getNotFullFuture().get(1, TimeUnit.SECONDS);
                 }
-                catch (InvalidStateException | ShutdownException e) {
-                    throw Throwables.propagate(e);
-                }
-            }));
-
-            if (middlewareBuffer.shouldFlush()) {
-                List<BatchRecords> list = middlewareBuffer.flush();
-                if (!list.isEmpty()) {
-                    committer.process(Iterables.transform(list, BatchRecords::getTable));
-
-                    list.forEach(l -> {
-                        try {
-                            l.checkpoint();
-                        }
-                        catch (BatchRecords.CheckpointException e) {
-                            log.error(e, "Error while checkpointing records");
-                        }
-                    });
+                catch (TimeoutException e) {
+                    // the commit of another shard may have failed, try committing from this shard
                 }
             }
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
     }
 
     @Override
-    public void shutdown(IRecordProcessorCheckpointer iRecordProcessorCheckpointer, ShutdownReason shutdownReason)
+    public void shutdown(ShutdownInput shutdownInput)
     {
-        streamBuffer.clear();
-        log.error("Shutdown %s, the reason is %s", shardId, shutdownReason.name());
+        lagTracker.remove(shardId);
+        ShutdownReason reason = shutdownInput.getShutdownReason();
+        if (reason == ShutdownReason.ZOMBIE) {
+            // the lease is taken by another worker, which re-reads the records after the last checkpoint
+            Map.Entry<List, List> pending = streamBuffer.getRecords();
+            long discarded = pending.getKey().size() + pending.getValue().size() + aggregator.discard(shardId);
+            streamBuffer.clear();
+            stats.getDiscardedRecords().update(discarded);
+            log.warn("Lease of shard %s is lost, %d records that are not committed are discarded", shardId, discarded);
+            return;
+        }
+
+        drain(shutdownInput.getCheckpointer(), reason);
+    }
+
+    private void drain(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason)
+    {
+        long deadline = System.currentTimeMillis() + drainTimeout.toMillis();
+        try {
+            Map.Entry<List, List> pending = streamBuffer.getRecords();
+            if (!pending.getKey().isEmpty() || !pending.getValue().isEmpty()) {
+                Table<String, String, TableData> pages;
+                try (TimeStat.BlockTimer ignored = stats.getStreamFlushTime().time()) {
+                    pages = flushStream();
+                }
+                aggregator.add(new BatchRecords(pages, new KinesisShardCheckpointer(shardId, checkpointer, lastSequenceNumber, lastSubSequenceNumber)));
+            }
+
+            if (!aggregator.drain(shardId, deadline)) {
+                log.warn("Unable to commit the records of shard %s before shutting down (%s), they will be processed again", shardId, reason);
+                return;
+            }
+
+            if (reason == ShutdownReason.TERMINATE) {
+                // the child shards are processed only after the parent shard is checkpointed at its end
+                checkpointer.checkpoint();
+            }
+            log.info("Shard %s is drained and shut down (%s)", shardId, reason);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while draining shard %s", shardId);
+        }
+        catch (KinesisClientLibException | RuntimeException e) {
+            log.error(e, "Error while draining shard %s", shardId);
+        }
     }
 
     private Table<String, String, TableData> flushStream()
@@ -4,33 +4,33 @@
 
 package io.rakam.presto.kinesis;
 
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
-import io.rakam.presto.MiddlewareConfig;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+import io.rakam.presto.LagTracker;
 import io.rakam.presto.StreamWorkerContext;
-import io.rakam.presto.TargetConnectorCommitter;
 
 import javax.inject.Inject;
 
 public class KinesisRecordProcessorFactory
         implements IRecordProcessorFactory
 {
-    private final TargetConnectorCommitter committer;
-    private final MiddlewareConfig middlewareConfig;
+    private final KinesisShardAggregator aggregator;
     private final StreamWorkerContext context;
+    private final LagTracker lagTracker;
+    private final KinesisStreamSourceConfig config;
 
     @Inject
-    public KinesisRecordProcessorFactory(StreamWorkerContext context,
-            MiddlewareConfig middlewareConfig, TargetConnectorCommitter committer)
+    public KinesisRecordProcessorFactory(StreamWorkerContext context, KinesisShardAggregator aggregator, LagTracker lagTracker, KinesisStreamSourceConfig config)
     {
+        this.config = config;
+        this.lagTracker = lagTracker;
         this.context = context;
-        this.middlewareConfig = middlewareConfig;
-        this.committer = committer;
+        this.aggregator = aggregator;
     }
 
     @Override
     public IRecordProcessor createProcessor()
     {
-        return new KinesisRecordProcessor(context, middlewareConfig, committer);
+        return new KinesisRecordProcessor(context, aggregator, lagTracker, config.getShutdownDrainTimeout());
     }
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.kinesis;
+
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Table;
+import io.airlift.log.Logger;
+import io.airlift.stats.TimeStat;
+import io.rakam.presto.BatchRecords;
+import io.rakam.presto.CollectorStats;
+import io.rakam.presto.FlushController;
+import io.rakam.presto.FlushReason;
+import io.rakam.presto.MemoryPool;
+import io.rakam.presto.MiddlewareBuffer;
+import io.rakam.presto.MiddlewareConfig;
+import io.rakam.presto.MiddlewarePageSerde;
+import io.rakam.presto.TargetConnectorCommitter;
+import io.rakam.presto.deserialization.TableData;
+import org.weakref.jmx.Managed;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Buffers the converted pages of all the shards this node processes, so that a table gets one commit (and one
+ * Raptor shard) per flush instead of one per Kinesis shard. The commit runs on the thread of the shard that
+ * triggers the flush; the other shards keep adding pages meanwhile. A shard is only checkpointed after the
+ * pages it added are committed.
+ */
+public class KinesisShardAggregator
+{
+    private static final Logger log = Logger.get(KinesisShardAggregator.class);
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+
+    private final MiddlewareBuffer middlewareBuffer;
+    private final TargetConnectorCommitter committer;
+    private final CollectorStats stats;
+    private final FlushController flushController;
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Map<String, KinesisShardCheckpointer> replayedPositions = new ConcurrentHashMap<>();
+
+    @Inject
+    public KinesisShardAggregator(MiddlewareConfig middlewareConfig, TargetConnectorCommitter committer, CollectorStats stats,
+            MemoryPool memoryPool, FlushController flushController, MiddlewarePageSerde pageSerde)
+    {
+        this.middlewareBuffer = new MiddlewareBuffer(middlewareConfig, stats, memoryPool, flushController, pageSerde);
+        this.committer = committer;
+        this.stats = stats;
+        this.flushController = flushController;
+    }
+
+    /**
+     * Commits the batches left in the write-ahead log by the previous process and keeps their positions for the
+     * shard processors. It's called once before the worker starts processing the shards.
+     */
+    public void recover()
+    {
+        // the tables that fail again are buffered with their replayed position, it doesn't checkpoint the shard
+        for (Map<String, String> positions : middlewareBuffer.recover(committer, KinesisShardCheckpointer::fromPositions)) {
+            positions.forEach((shardId, position) -> replayedPositions.merge(shardId, KinesisShardCheckpointer.fromPosition(shardId, position),
+                    (first, second) -> second.isAfter(first) ? second : first));
+        }
+    }
+
+    /**
+     * Returns the last position of the shard that is replayed from the write-ahead log, the shard processor skips
+     * the records up to it. The position is only returned to the first processor of the shard.
+     */
+    @Nullable
+    public KinesisShardCheckpointer removeReplayedPosition(String shardId)
+    {
+        return replayedPositions.remove(shardId);
+    }
+
+    public void add(BatchRecords batch)
+    {
+        middlewareBuffer.add(batch);
+    }
+
+    /**
+     * Commits the buffered pages of all shards if the buffer is full or old enough. Returns immediately if
+     * another shard is already committing.
+     */
+    public void flushIfNeeded()
+    {
+        if (middlewareBuffer.getFlushReason() == null || !commitLock.tryLock()) {
+            return;
+        }
+
+        try {
+            FlushReason flushReason = middlewareBuffer.getFlushReason();
+            if (flushReason != null) {
+                stats.recordMiddlewareFlush(flushReason);
+                commit(middlewareBuffer.flush(), false);
+            }
+        }
+        finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Commits and checkpoints the buffered pages of a shard that is shutting down. Returns false if the shard
+     * could not be checkpointed, either because a commit of other shards did not finish before the deadline or
+     * because some of its tables could not be committed.
+     */
+    public boolean drain(String shardId, long deadlineMillis)
+            throws InterruptedException
+    {
+        if (!commitLock.tryLock(Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+
+        try {
+            return commit(middlewareBuffer.flush(checkpointer -> isShard(checkpointer, shardId)), true);
+        }
+        finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the buffered pages of a shard whose lease is lost and returns the number of rows dropped.
+     */
+    public long discard(String shardId)
+    {
+        long rows = 0;
+        List<BatchRecords> batches = middlewareBuffer.flush(checkpointer -> isShard(checkpointer, shardId));
+        for (BatchRecords batch : batches) {
+            rows += batch.getTable().values().stream().mapToLong(data -> data.page.getPositionCount()).sum();
+        }
+        // the new owner of the shard reads the records again
+        middlewareBuffer.release(batches);
+        return rows;
+    }
+
+    private static boolean isShard(BatchRecords.Checkpointer checkpointer, String shardId)
+    {
+        return ((KinesisShardCheckpointer) checkpointer).getShardId().equals(shardId);
+    }
+
+    /**
+     * Returns true if all the shards of the batches are checkpointed. When draining, the tables that could not
+     * be committed are not buffered again since the shard will be processed by another node. The tables that are
+     * given up after the last attempt are moved to the dead-letter file of the write-ahead log, the other batches
+     * are released from the log.
+     */
+    private boolean commit(List<BatchRecords> list, boolean draining)
+    {
+        if (list.isEmpty()) {
+            return true;
+        }
+
+        long start = System.nanoTime();
+        Set<SchemaTableName> failedTables = committer.process(Iterables.transform(list, BatchRecords::getTable));
+        if (!draining) {
+            flushController.recordFlush(Iterables.transform(list, BatchRecords::getTable), failedTables,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        // only the highest sequence number of a shard needs to be written to DynamoDB
+        Map<String, KinesisShardCheckpointer> checkpoints = new HashMap<>();
+        Set<String> heldBack = new HashSet<>();
+        List<BatchRecords> released = new ArrayList<>(list.size());
+        for (BatchRecords batch : list) {
+            KinesisShardCheckpointer checkpointer = (KinesisShardCheckpointer) batch.getCheckpointer();
+            Table<String, String, TableData> failed = batch.filterTables(failedTables);
+            if (!failed.isEmpty()) {
+                if (draining) {
+                    heldBack.add(checkpointer.getShardId());
+                    released.add(batch);
+                    continue;
+                }
+                if (checkpointer.incrementFailedAttempts() < MAX_COMMIT_ATTEMPTS) {
+                    // the shard is not checkpointed until the failed tables are committed with the next flush
+                    heldBack.add(checkpointer.getShardId());
+                    middlewareBuffer.add(new BatchRecords(failed, checkpointer));
+                    released.add(batch);
+                    continue;
+                }
+                log.error("Giving up committing tables %s for shard %s, the records are moved to the dead-letter file",
+                        failed.cellSet().stream().map(cell -> cell.getRowKey() + "." + cell.getColumnKey()).collect(Collectors.toList()),
+                        checkpointer.getShardId());
+                middlewareBuffer.giveUp(batch, failed);
+            }
+            else {
+                released.add(batch);
+            }
+            checkpoints.merge(checkpointer.getShardId(), checkpointer, (first, second) -> second.isAfter(first) ? second : first);
+        }
+        checkpoints.keySet().removeAll(heldBack);
+        middlewareBuffer.release(released);
+
+        boolean checkpointed = heldBack.isEmpty();
+        try (TimeStat.BlockTimer ignored = stats.getCheckpointTime().time()) {
+            for (KinesisShardCheckpointer checkpointer : checkpoints.values()) {
+                try {
+                    checkpointer.checkpoint();
+                }
+                catch (BatchRecords.CheckpointException e) {
+                    checkpointed = false;
+                    stats.getCheckpointFailures().update(1);
+                    log.error(e, "Error while checkpointing shard %s", checkpointer.getShardId());
+                }
+            }
+        }
+        return checkpointed;
+    }
+
+    /**
+     * Syncs and closes the write-ahead log once the shard processors are stopped.
+     */
+    public void close()
+    {
+        middlewareBuffer.close();
+    }
+
+    @Managed
+    public long getBufferRecordCount()
+    {
+        return middlewareBuffer.getBufferRecordCount();
+    }
+
+    @Managed
+    public long getBufferSize()
+    {
+        return middlewareBuffer.getBufferSize();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto.kinesis;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.KinesisClientLibDependencyException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+import io.rakam.presto.BatchRecords;
+import io.rakam.presto.RetryDriver;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+ * Checkpoints a shard up to the last record of a stream flush. The sequence number is given explicitly since
+ * the batch may be committed after the shard has received more records. Records aggregated by the Kinesis
+ * Producer Library share the sequence number of the Kinesis record and are identified by their sub-sequence number.
+ */
+public class KinesisShardCheckpointer
+        implements BatchRecords.Checkpointer
+{
+    private static final Logger log = Logger.get(KinesisShardCheckpointer.class);
+
+    // retrying does not help for the other errors, such as a lost lease, a closed shard or an invalid sequence number
+    private static final RetryDriver RETRY_DRIVER = RetryDriver.retry()
+            .maxAttempts(5)
+            .exponentialBackoff(Duration.valueOf("200ms"), Duration.valueOf("5s"), Duration.valueOf("30s"), 2.0)
+            .retryOnlyOn(ThrottlingException.class, KinesisClientLibDependencyException.class);
+
+    private final String shardId;
+    private final IRecordProcessorCheckpointer checkpointer;
+    private final String sequenceNumber;
+    private final long subSequenceNumber;
+    private int failedAttempts;
+
+    public KinesisShardCheckpointer(String shardId, IRecordProcessorCheckpointer checkpointer, String sequenceNumber, long subSequenceNumber)
+    {
+        this.shardId = shardId;
+        this.checkpointer = checkpointer;
+        this.sequenceNumber = sequenceNumber;
+        this.subSequenceNumber = subSequenceNumber;
+    }
+
+    public String getShardId()
+    {
+        return shardId;
+    }
+
+    public String getSequenceNumber()
+    {
+        return sequenceNumber;
+    }
+
+    public long getSubSequenceNumber()
+    {
+        return subSequenceNumber;
+    }
+
+    public boolean isAfter(KinesisShardCheckpointer other)
+    {
+        return compareTo(other.sequenceNumber, other.subSequenceNumber) > 0;
+    }
+
+    /**
+     * Returns true if the record at the given position is at or before this checkpoint.
+     */
+    public boolean covers(String otherSequenceNumber, long otherSubSequenceNumber)
+    {
+        return compareTo(otherSequenceNumber, otherSubSequenceNumber) >= 0;
+    }
+
+    private int compareTo(String otherSequenceNumber, long otherSubSequenceNumber)
+    {
+        int compare = new BigInteger(sequenceNumber).compareTo(new BigInteger(otherSequenceNumber));
+        return compare != 0 ? compare : Long.compare(subSequenceNumber, otherSubSequenceNumber);
+    }
+
+    @Override
+    public Map<String, String> getPositions()
+    {
+        return ImmutableMap.of(shardId, sequenceNumber + "/" + subSequenceNumber);
+    }
+
+    /**
+     * Returns the position of a shard replayed from the write-ahead log, checkpointing it does nothing since the
+     * shard is checkpointed by its processor.
+     */
+    public static KinesisShardCheckpointer fromPosition(String shardId, String position)
+    {
+        int separator = position.indexOf('/');
+        return new KinesisShardCheckpointer(shardId, null, position.substring(0, separator), Long.parseLong(position.substring(separator + 1)));
+    }
+
+    /**
+     * Returns the position of a replayed batch, the batches are written by a single shard.
+     */
+    public static KinesisShardCheckpointer fromPositions(Map<String, String> positions)
+    {
+        Map.Entry<String, String> position = Iterables.getOnlyElement(positions.entrySet());
+        return fromPosition(position.getKey(), position.getValue());
+    }
+
+    public int incrementFailedAttempts()
+    {
+        return ++failedAttempts;
+    }
+
+    /**
+     * Retries only when DynamoDB throttles the checkpoint or is not reachable, the other errors fail the checkpoint.
+     */
+    @Override
+    public void checkpoint()
+            throws BatchRecords.CheckpointException
+    {
+        if (checkpointer == null) {
+            return;
+        }
+
+        try {
+            RETRY_DRIVER.onRetry(() -> log.warn("Retrying to checkpoint shard %s", shardId))
+                    .run("checkpoint", () -> {
+                        checkpointer.checkpoint(sequenceNumber, subSequenceNumber);
+                        return null;
+                    });
+        }
+        catch (Exception e) {
+            throw new BatchRecords.CheckpointException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+}
@@ -11,6 +11,9 @@ import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import io.airlift.configuration.Config;
+import io.airlift.units.Duration;
+
+import java.util.concurrent.TimeUnit;
 
 public class KinesisStreamSourceConfig
 {
@@ -22,6 +25,9 @@ public class KinesisStreamSourceConfig
     private String dynamodbEndpoint;
     private boolean enableCloudWatch = true;
     private String dynamodbTable;
+    private Duration lagCheckInterval = Duration.succinctDuration(1, TimeUnit.MINUTES);
+    private double lagWarnGrowthRate = 500;
+    private Duration shutdownDrainTimeout = Duration.succinctDuration(30, TimeUnit.SECONDS);
 
     public String getStreamName()
     {
@@ -117,6 +123,42 @@ public class KinesisStreamSourceConfig
         return secretAccessKey;
     }
 
+    public Duration getLagCheckInterval()
+    {
+        return lagCheckInterval;
+    }
+
+    @Config("kinesis.lag-check-interval")
+    public KinesisStreamSourceConfig setLagCheckInterval(Duration lagCheckInterval)
+    {
+        this.lagCheckInterval = lagCheckInterval;
+        return this;
+    }
+
+    public double getLagWarnGrowthRate()
+    {
+        return lagWarnGrowthRate;
+    }
+
+    @Config("kinesis.lag-warn-growth-rate")
+    public KinesisStreamSourceConfig setLagWarnGrowthRate(double lagWarnGrowthRate)
+    {
+        this.lagWarnGrowthRate = lagWarnGrowthRate;
+        return this;
+    }
+
+    public Duration getShutdownDrainTimeout()
+    {
+        return shutdownDrainTimeout;
+    }
+
+    @Config("kinesis.shutdown-drain-timeout")
+    public KinesisStreamSourceConfig setShutdownDrainTimeout(Duration shutdownDrainTimeout)
+    {
+        this.shutdownDrainTimeout = shutdownDrainTimeout;
+        return this;
+    }
+
     public AWSCredentialsProvider getCredentials()
     {
         if(accessKey == null && secretAccessKey == null) {
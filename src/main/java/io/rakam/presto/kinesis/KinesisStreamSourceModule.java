@@ -4,13 +4,15 @@
 
 package io.rakam.presto.kinesis;
 
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
 import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import io.airlift.configuration.AbstractConfigurationAwareModule;
-import io.rakam.presto.deserialization.MessageEventTransformer;
+import io.rakam.presto.LagTracker;
+import io.rakam.presto.deserialization.PageTableTransformer;
 
 import static io.airlift.configuration.ConfigBinder.configBinder;
+import static org.weakref.jmx.guice.ExportBinder.newExporter;
 
 public class KinesisStreamSourceModule
         extends AbstractConfigurationAwareModule
@@ -19,7 +21,15 @@ public class KinesisStreamSourceModule
     protected void setup(Binder binder)
     {
         configBinder(binder).bindConfig(KinesisStreamSourceConfig.class);
-        binder.bind(MessageEventTransformer.class).to(KinesisMessageEventTransformer.class).in(Scopes.SINGLETON);
+        KinesisStreamSourceConfig config = buildConfigObject(KinesisStreamSourceConfig.class);
+        binder.bind(LagTracker.class).toInstance(new LagTracker("Kinesis", "ms", LagTracker.Aggregation.MAX,
+                config.getLagWarnGrowthRate(), config.getLagCheckInterval()));
+        newExporter(binder).export(LagTracker.class).withGeneratedName();
+
+        binder.bind(KinesisShardAggregator.class).in(Scopes.SINGLETON);
+        newExporter(binder).export(KinesisShardAggregator.class).withGeneratedName();
+
+        binder.bind(PageTableTransformer.class).to(KinesisMessageEventTransformer.class).in(Scopes.SINGLETON);
         binder.bind(IRecordProcessorFactory.class).to(KinesisRecordProcessorFactory.class);
         binder.bind(KinesisWorkerManager.class).asEagerSingleton();
     }
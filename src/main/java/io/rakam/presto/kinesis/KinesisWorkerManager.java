@@ -7,7 +7,7 @@ package io.rakam.presto.kinesis;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
@@ -30,9 +30,10 @@ public class KinesisWorkerManager
     private final AmazonKinesisClient kinesisClient;
     private final List<Thread> threads;
     private final IRecordProcessorFactory recordProcessorFactory;
+    private final KinesisShardAggregator aggregator;
 
     @Inject
-    public KinesisWorkerManager(KinesisStreamSourceConfig config, IRecordProcessorFactory recordProcessorFactory)
+    public KinesisWorkerManager(KinesisStreamSourceConfig config, IRecordProcessorFactory recordProcessorFactory, KinesisShardAggregator aggregator)
     {
         this.config = config;
         this.threads = new ArrayList<>();
@@ -46,11 +47,14 @@ public class KinesisWorkerManager
         }
         KinesisUtil.createAndWaitForStreamToBecomeAvailable(kinesisClient, config.getStreamName(), 1);
         this.recordProcessorFactory = recordProcessorFactory;
+        this.aggregator = aggregator;
     }
 
     @PostConstruct
     public void initializeWorker()
     {
+        // the replayed positions must be known before the first shard processor is initialized
+        aggregator.recover();
         Thread middlewareWorker = createMiddlewareWorker();
         middlewareWorker.start();
         threads.add(middlewareWorker);
@@ -82,6 +86,7 @@ public class KinesisWorkerManager
                 new VMID().toString())
                 .withInitialPositionInStream(InitialPositionInStream.TRIM_HORIZON)
                 .withUserAgent("rakam-middleware-consumer")
+                // the idle shards flush the pages aggregated from the other shards when their time threshold is reached
                 .withCallProcessRecordsEvenForEmptyRecordList(true);
         if (this.config.getKinesisEndpoint() == null & this.config.getDynamodbEndpoint() == null) {
             configuration.withRegionName(this.config.getRegion());
@@ -109,5 +114,6 @@ public class KinesisWorkerManager
     public void destroyWorkers()
     {
         threads.forEach(Thread::interrupt);
+        aggregator.close();
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.Page;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
+import io.rakam.presto.deserialization.MessageEventTransformer;
+import io.rakam.presto.deserialization.PageBuilder;
+import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.deserialization.avro.AvroUtil;
+import io.rakam.presto.kinesis.KinesisMessageEventTransformer;
+import org.apache.avro.Schema;
+import org.apache.avro.io.AvroPageDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Avro events are written with the table schema, so schema evolution is covered by {@link BenchmarkJsonDeserializer}.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(2)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkAvroPageDatumReader
+{
+    private static final int EVENT_COUNT = 10_000;
+
+    @Param({"10", "50", "200"})
+    private int columnCount = 50;
+
+    @Param({"0.2", "0.8"})
+    private double stringRatio = 0.5;
+
+    @Param({"0", "0.2"})
+    private double nestedDensity = 0.2;
+
+    private List<ColumnMetadata> columns;
+    private Schema schema;
+    private List<Record> records;
+    private MessageEventTransformer transformer;
+    private BinaryDecoder decoder;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        BenchmarkEventGenerator generator = new BenchmarkEventGenerator(columnCount, stringRatio, nestedDensity, 0);
+        columns = generator.getColumns();
+        schema = AvroUtil.convertAvroSchema(columns, new FieldNameConfig().getCheckpointField());
+        records = generator.createAvroRecords(EVENT_COUNT);
+        transformer = new KinesisMessageEventTransformer(new FieldNameConfig(),
+                new TestDatabaseHandler(BenchmarkEventGenerator.PROJECT, BenchmarkEventGenerator.COLLECTION, columns),
+                new S3MiddlewareConfig());
+    }
+
+    @Benchmark
+    public Page readPage()
+            throws IOException
+    {
+        PageBuilder pageBuilder = new PageBuilder(columns.stream().map(ColumnMetadata::getType).collect(Collectors.toList()));
+        AvroPageDatumReader reader = new AvroPageDatumReader(pageBuilder, schema);
+        for (Record record : records) {
+            decoder = DecoderFactory.get().binaryDecoder(record.getData().array(), decoder);
+            decoder.skipFixed(1);
+            decoder.skipString();
+            reader.read(decoder);
+        }
+        return pageBuilder.build();
+    }
+
+    @Benchmark
+    public Table<String, String, TableData> createPageTable()
+            throws IOException
+    {
+        return transformer.createPageTable(records, ImmutableList.of());
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkAvroPageDatumReader.class.getSimpleName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
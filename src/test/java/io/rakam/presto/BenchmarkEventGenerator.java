@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.type.ArrayType;
+import com.facebook.presto.spi.type.MapType;
+import com.facebook.presto.spi.type.Type;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.rakam.presto.deserialization.avro.AvroUtil;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.rakam.util.JsonHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.facebook.presto.spi.type.BigintType.BIGINT;
+import static com.facebook.presto.spi.type.BooleanType.BOOLEAN;
+import static com.facebook.presto.spi.type.DoubleType.DOUBLE;
+import static com.facebook.presto.spi.type.TimestampType.TIMESTAMP;
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+
+/**
+ * Synthetic event corpus shared by the benchmarks and the replay harness.
+ * The shape of the events is controlled by the number of columns, the ratio of VARCHAR columns,
+ * the ratio of ARRAY/MAP columns and the ratio of events that introduce a column the table does not have yet.
+ */
+public class BenchmarkEventGenerator
+{
+    public static final String PROJECT = "benchmark";
+    public static final String COLLECTION = "events";
+    private static final String CHECKPOINT_COLUMN = new FieldNameConfig().getCheckpointField();
+    private static final String TIME_COLUMN = new FieldNameConfig().getTimeField();
+    private static final int NESTED_ELEMENT_COUNT = 4;
+
+    private final List<ColumnMetadata> columns;
+    private final double evolutionRate;
+    private final Random random;
+    private int evolvedColumnCount;
+
+    public BenchmarkEventGenerator(int columnCount, double stringRatio, double nestedDensity, double evolutionRate)
+    {
+        this.random = new Random(columnCount);
+        this.evolutionRate = evolutionRate;
+
+        ImmutableList.Builder<ColumnMetadata> builder = ImmutableList.builder();
+        builder.add(new ColumnMetadata(TIME_COLUMN, TIMESTAMP));
+        for (int i = 1; i < columnCount; i++) {
+            builder.add(new ColumnMetadata("col" + i, randomType(stringRatio, nestedDensity)));
+        }
+        this.columns = builder.build();
+    }
+
+    public List<ColumnMetadata> getColumns()
+    {
+        return columns;
+    }
+
+    public Map<String, Object> createEvent(int sequence)
+    {
+        Map<String, Object> properties = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (ColumnMetadata column : columns) {
+            properties.put(column.getName(), column.getName().equals(TIME_COLUMN) ? Instant.ofEpochMilli(now).toString() : createValue(column.getType(), sequence));
+        }
+        if (evolutionRate > 0 && random.nextDouble() < evolutionRate) {
+            properties.put("evolved" + evolvedColumnCount++, "value" + sequence);
+        }
+        return properties;
+    }
+
+    public List<ConsumerRecord<byte[], byte[]>> createJsonRecords(int count)
+    {
+        ImmutableList.Builder<ConsumerRecord<byte[], byte[]>> builder = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            builder.add(new ConsumerRecord<>(PROJECT + "." + COLLECTION, 0, i, new byte[] {}, createJsonBytes(i)));
+        }
+        return builder.build();
+    }
+
+    public byte[] createJsonBytes(int sequence)
+    {
+        return JsonHelper.encodeAsBytes(ImmutableMap.of(
+                "project", PROJECT,
+                "collection", COLLECTION,
+                "properties", createEvent(sequence)));
+    }
+
+    /**
+     * Avro events always use the table schema as the writer schema, so the evolution rate does not apply.
+     */
+    public byte[] createAvroBytes(int sequence)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(2);
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        encoder.writeString(COLLECTION);
+        writeAvroRecord(encoder, sequence);
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates the content of a bulk object in the format the Kinesis bulk (type 1) records point to:
+     * the column names followed by the records.
+     */
+    public byte[] createAvroBulkObject(int firstSequence, int recordCount)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        encoder.writeInt(columns.size());
+        for (ColumnMetadata column : columns) {
+            encoder.writeString(column.getName());
+        }
+        encoder.writeInt(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            writeAvroRecord(encoder, firstSequence + i);
+        }
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    public Record createBulkRecord(String bulkKey, long objectSize)
+    {
+        byte[] key = bulkKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(9 + key.length);
+        data.put((byte) 1);
+        data.putLong(objectSize);
+        data.put(key);
+
+        Record record = new Record();
+        record.setData(ByteBuffer.wrap(data.array()));
+        record.setPartitionKey(PROJECT + "|" + COLLECTION);
+        return record;
+    }
+
+    private void writeAvroRecord(BinaryEncoder encoder, int sequence)
+            throws IOException
+    {
+        Schema schema = AvroUtil.convertAvroSchema(columns, CHECKPOINT_COLUMN);
+        GenericData.Record record = new GenericData.Record(schema);
+        for (ColumnMetadata column : columns) {
+            record.put(column.getName(), column.getName().equals(TIME_COLUMN) ? System.currentTimeMillis() : createValue(column.getType(), sequence));
+        }
+        new GenericDatumWriter<>(schema).write(record, encoder);
+    }
+
+    public List<Record> createAvroRecords(int count)
+            throws IOException
+    {
+        ImmutableList.Builder<Record> builder = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            Record record = new Record();
+            record.setData(ByteBuffer.wrap(createAvroBytes(i)));
+            record.setPartitionKey(PROJECT + "|" + COLLECTION);
+            record.setSequenceNumber(String.valueOf(i));
+            builder.add(record);
+        }
+        return builder.build();
+    }
+
+    private Type randomType(double stringRatio, double nestedDensity)
+    {
+        double value = random.nextDouble();
+        if (value < nestedDensity) {
+            return random.nextBoolean() ? new ArrayType(VARCHAR) : new MapType(false, VARCHAR, VARCHAR, null, null, null);
+        }
+        if (value < nestedDensity + (1 - nestedDensity) * stringRatio) {
+            return VARCHAR;
+        }
+
+        switch (random.nextInt(3)) {
+            case 0:
+                return BIGINT;
+            case 1:
+                return DOUBLE;
+            default:
+                return BOOLEAN;
+        }
+    }
+
+    private static Object createValue(Type type, int sequence)
+    {
+        if (type.equals(VARCHAR)) {
+            return "value" + (sequence % 1000);
+        }
+        if (type.equals(BIGINT)) {
+            return (long) sequence;
+        }
+        if (type.equals(DOUBLE)) {
+            return sequence / 3.0;
+        }
+        if (type.equals(BOOLEAN)) {
+            return sequence % 2 == 0;
+        }
+        if (type instanceof ArrayType) {
+            List<String> list = new ArrayList<>();
+            for (int i = 0; i < NESTED_ELEMENT_COUNT; i++) {
+                list.add("item" + ((sequence + i) % 100));
+            }
+            return list;
+        }
+        if (type instanceof MapType) {
+            Map<String, String> map = new HashMap<>();
+            for (int i = 0; i < NESTED_ELEMENT_COUNT; i++) {
+                map.put("key" + i, "value" + ((sequence + i) % 100));
+            }
+            return map;
+        }
+        throw new IllegalArgumentException("Unsupported type " + type);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
+import io.rakam.presto.deserialization.MessageEventTransformer;
+import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.kafka.KafkaJsonMessageTransformer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(2)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkJsonDeserializer
+{
+    private static final int EVENT_COUNT = 10_000;
+
+    @Param({"10", "50", "200"})
+    private int columnCount = 50;
+
+    @Param({"0.2", "0.8"})
+    private double stringRatio = 0.5;
+
+    @Param({"0", "0.2"})
+    private double nestedDensity = 0.2;
+
+    @Param({"0", "0.001"})
+    private double evolutionRate = 0.001;
+
+    private BenchmarkEventGenerator generator;
+    private List<ConsumerRecord<byte[], byte[]>> records;
+    private MessageEventTransformer transformer;
+
+    @Setup
+    public void setup()
+    {
+        generator = new BenchmarkEventGenerator(columnCount, stringRatio, nestedDensity, evolutionRate);
+        records = generator.createJsonRecords(EVENT_COUNT);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTransformer()
+    {
+        // start from the original schema on every invocation so that the evolved columns are added again
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler(BenchmarkEventGenerator.PROJECT,
+                BenchmarkEventGenerator.COLLECTION, generator.getColumns(), true);
+        transformer = new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler);
+    }
+
+    @Benchmark
+    public Table<String, String, TableData> createPageTable()
+            throws IOException
+    {
+        return transformer.createPageTable(records, ImmutableList.of());
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkJsonDeserializer.class.getSimpleName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
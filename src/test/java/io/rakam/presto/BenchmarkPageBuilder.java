@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.block.BlockBuilder;
+import com.facebook.presto.spi.type.ArrayType;
+import com.facebook.presto.spi.type.MapType;
+import com.facebook.presto.spi.type.Type;
+import io.airlift.slice.Slice;
+import io.airlift.slice.Slices;
+import io.rakam.presto.deserialization.PageBuilder;
+import io.rakam.presto.deserialization.TableSizeHistory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.spi.type.BigintType.BIGINT;
+import static com.facebook.presto.spi.type.BooleanType.BOOLEAN;
+import static com.facebook.presto.spi.type.DoubleType.DOUBLE;
+import static com.facebook.presto.spi.type.TimestampType.TIMESTAMP;
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+
+/**
+ * Appends rows to {@link PageBuilder} directly, without a deserializer in front of it,
+ * and widens the page with {@link PageBuilder#appendColumn(Type)} at the given evolution rate.
+ * The presized variant creates the page builder from the {@link TableSizeHistory} of a previous flush;
+ * compare the gc.alloc.rate.norm of the two to see the allocation saved by not growing the blocks.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(2)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkPageBuilder
+{
+    private static final int NESTED_ELEMENT_COUNT = 4;
+    private static final Slice[] VALUES = new Slice[100];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = Slices.utf8Slice("value" + i);
+        }
+    }
+
+    @Param({"10000", "100000"})
+    private int rowCount = 10_000;
+
+    @Param({"10", "50", "200"})
+    private int columnCount = 50;
+
+    @Param({"0.2", "0.8"})
+    private double stringRatio = 0.5;
+
+    @Param({"0", "0.2"})
+    private double nestedDensity = 0.2;
+
+    @Param({"0", "0.001"})
+    private double evolutionRate = 0.001;
+
+    private List<ColumnMetadata> columns;
+    private List<Type> types;
+    private boolean[] evolveAt;
+    private TableSizeHistory.Estimate estimate;
+
+    @Setup
+    public void setup()
+    {
+        columns = new BenchmarkEventGenerator(columnCount, stringRatio, nestedDensity, 0).getColumns();
+        types = columns.stream().map(ColumnMetadata::getType).collect(Collectors.toList());
+
+        Random random = new Random(columnCount);
+        evolveAt = new boolean[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            evolveAt[i] = random.nextDouble() < evolutionRate;
+        }
+
+        // the history of the previous flush, without the columns added by the evolution
+        PageBuilder previousFlush = new PageBuilder(types);
+        append(previousFlush, new boolean[rowCount]);
+        TableSizeHistory history = new TableSizeHistory();
+        SchemaTableName table = new SchemaTableName(BenchmarkEventGenerator.PROJECT, BenchmarkEventGenerator.COLLECTION);
+        history.record(table, columns, previousFlush);
+        estimate = history.getEstimate(table);
+    }
+
+    @Benchmark
+    public Page appendAndBuild()
+    {
+        return append(new PageBuilder(types), evolveAt).build();
+    }
+
+    @Benchmark
+    public Page appendAndBuildPresized()
+    {
+        int[] expectedBytesPerEntry = new int[columns.size()];
+        for (int i = 0; i < expectedBytesPerEntry.length; i++) {
+            expectedBytesPerEntry[i] = estimate.getExpectedBytesPerEntry(columns.get(i).getName(), 32);
+        }
+        return append(new PageBuilder(estimate.getExpectedEntries(), types, expectedBytesPerEntry), evolveAt).build();
+    }
+
+    private PageBuilder append(PageBuilder pageBuilder, boolean[] evolutions)
+    {
+        int channelCount = types.size();
+        for (int row = 0; row < rowCount; row++) {
+            pageBuilder.declarePosition();
+            if (evolutions[row]) {
+                pageBuilder.appendColumn(VARCHAR);
+                channelCount++;
+            }
+
+            for (int channel = 0; channel < channelCount; channel++) {
+                writeValue(pageBuilder.getType(channel), pageBuilder.getBlockBuilder(channel), row);
+            }
+        }
+        return pageBuilder;
+    }
+
+    private static void writeValue(Type type, BlockBuilder blockBuilder, int row)
+    {
+        if (type.equals(VARCHAR)) {
+            VARCHAR.writeSlice(blockBuilder, VALUES[row % VALUES.length]);
+        }
+        else if (type.equals(BIGINT) || type.equals(TIMESTAMP)) {
+            type.writeLong(blockBuilder, row);
+        }
+        else if (type.equals(DOUBLE)) {
+            DOUBLE.writeDouble(blockBuilder, row / 3.0);
+        }
+        else if (type.equals(BOOLEAN)) {
+            BOOLEAN.writeBoolean(blockBuilder, row % 2 == 0);
+        }
+        else if (type instanceof ArrayType) {
+            BlockBuilder entry = blockBuilder.beginBlockEntry();
+            for (int i = 0; i < NESTED_ELEMENT_COUNT; i++) {
+                VARCHAR.writeSlice(entry, VALUES[(row + i) % VALUES.length]);
+            }
+            blockBuilder.closeEntry();
+        }
+        else if (type instanceof MapType) {
+            BlockBuilder entry = blockBuilder.beginBlockEntry();
+            for (int i = 0; i < NESTED_ELEMENT_COUNT; i++) {
+                VARCHAR.writeSlice(entry, VALUES[i]);
+                VARCHAR.writeSlice(entry, VALUES[(row + i) % VALUES.length]);
+            }
+            blockBuilder.closeEntry();
+        }
+        else {
+            blockBuilder.appendNull();
+        }
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkPageBuilder.class.getSimpleName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
+import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.kafka.KafkaJsonMessageTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the committer overhead (schema padding, per-table grouping and stats) against
+ * {@link TestDatabaseHandler}, whose inserter discards the pages.
+ * With a non-zero evolution rate the earlier batches are narrower than the table and have to be padded.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(2)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkTargetConnectorCommitter
+{
+    private static final int BATCH_COUNT = 20;
+    private static final int EVENTS_PER_BATCH = 1_000;
+
+    @Param({"10", "50", "200"})
+    private int columnCount = 50;
+
+    @Param({"0.2", "0.8"})
+    private double stringRatio = 0.5;
+
+    @Param({"0", "0.2"})
+    private double nestedDensity = 0.2;
+
+    @Param({"0", "0.001"})
+    private double evolutionRate = 0.001;
+
+    private TargetConnectorCommitter committer;
+    private List<Table<String, String, TableData>> batches;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        BenchmarkEventGenerator generator = new BenchmarkEventGenerator(columnCount, stringRatio, nestedDensity, evolutionRate);
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler(BenchmarkEventGenerator.PROJECT,
+                BenchmarkEventGenerator.COLLECTION, generator.getColumns(), true);
+        KafkaJsonMessageTransformer transformer = new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler);
+
+        ImmutableList.Builder<Table<String, String, TableData>> builder = ImmutableList.builder();
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            builder.add(transformer.createPageTable(generator.createJsonRecords(EVENTS_PER_BATCH), ImmutableList.of()));
+        }
+        batches = builder.build();
+        committer = new TargetConnectorCommitter(databaseHandler, new CollectorStats());
+    }
+
+    @Benchmark
+    public void process()
+    {
+        committer.process(batches);
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkTargetConnectorCommitter.class.getSimpleName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
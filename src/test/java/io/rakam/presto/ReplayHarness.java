@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.s3.model.S3Object;
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import io.airlift.configuration.ConfigurationFactory;
+import io.airlift.configuration.ConfigurationLoader;
+import io.rakam.presto.deserialization.MessageEventTransformer;
+import io.rakam.presto.kafka.KafkaJsonMessageTransformer;
+import io.rakam.presto.kinesis.KinesisMessageEventTransformer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Replays an event corpus through the same buffer, conversion and commit path the Kafka and Kinesis
+ * workers use, against an in-memory {@link DatabaseHandler}, and reports the sustained throughput,
+ * flush latencies and the heap high-water mark. No broker or S3 access is needed.
+ * <p>
+ * Arguments are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code format}: {@code json} (Kafka JSON path) or {@code avro} (Kinesis Avro path), defaults to {@code json}</li>
+ * <li>{@code corpus}: newline delimited JSON file with {@code project}, {@code collection} and {@code properties},
+ * replayed in a loop. When omitted a synthetic corpus is generated</li>
+ * <li>{@code events}: number of events to replay, defaults to 1,000,000</li>
+ * <li>{@code config}: collector properties file, {@code stream.*} and {@code middleware.*} settings are used</li>
+ * <li>{@code columns}, {@code string-ratio}, {@code nested-density}, {@code evolution-rate}: shape of the synthetic corpus</li>
+ * <li>{@code bulk-ratio}: ratio of Avro events delivered through bulk (type 1) records</li>
+ * </ul>
+ */
+public class ReplayHarness
+{
+    private static final int CORPUS_SIZE = 10_000;
+    private static final int BULK_RECORD_SIZE = 1_000;
+
+    private final MiddlewareConfig middlewareConfig;
+    private final MemoryPool memoryPool;
+    private final FlushController flushController;
+    private final CollectorStats stats = new CollectorStats();
+    private final TargetConnectorCommitter committer;
+    private final TestDatabaseHandler databaseHandler;
+    private final LatencyHistogram streamFlushMicros = new LatencyHistogram();
+    private final LatencyHistogram middlewareFlushMicros = new LatencyHistogram();
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private long heapHighWaterMark;
+
+    public ReplayHarness(StreamConfig streamConfig, MiddlewareConfig middlewareConfig, MemoryConfig memoryConfig,
+            FlushControllerConfig flushControllerConfig, TestDatabaseHandler databaseHandler)
+    {
+        this.middlewareConfig = middlewareConfig;
+        this.memoryPool = new MemoryPool(memoryConfig);
+        this.flushController = new FlushController(flushControllerConfig, streamConfig, middlewareConfig, memoryPool);
+        this.databaseHandler = databaseHandler;
+        this.committer = new TargetConnectorCommitter(databaseHandler, stats);
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Arguments must be in --name=value format: " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        Map<String, String> properties = options.containsKey("config") ?
+                ConfigurationLoader.loadPropertiesFrom(options.get("config")) : ImmutableMap.of();
+        ConfigurationFactory configurationFactory = new ConfigurationFactory(properties);
+        StreamConfig streamConfig = configurationFactory.build(StreamConfig.class);
+        MiddlewareConfig middlewareConfig = configurationFactory.build(MiddlewareConfig.class);
+        MemoryConfig memoryConfig = configurationFactory.build(MemoryConfig.class);
+        FlushControllerConfig flushControllerConfig = configurationFactory.build(FlushControllerConfig.class);
+
+        long events = Long.parseLong(options.getOrDefault("events", "1000000"));
+        BenchmarkEventGenerator generator = new BenchmarkEventGenerator(
+                Integer.parseInt(options.getOrDefault("columns", "50")),
+                Double.parseDouble(options.getOrDefault("string-ratio", "0.5")),
+                Double.parseDouble(options.getOrDefault("nested-density", "0.1")),
+                Double.parseDouble(options.getOrDefault("evolution-rate", "0")));
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler(BenchmarkEventGenerator.PROJECT,
+                BenchmarkEventGenerator.COLLECTION, generator.getColumns(), true);
+        ReplayHarness harness = new ReplayHarness(streamConfig, middlewareConfig, memoryConfig, flushControllerConfig, databaseHandler);
+
+        String format = options.getOrDefault("format", "json");
+        switch (format) {
+            case "json":
+                List<ConsumerRecord<byte[], byte[]>> corpus = options.containsKey("corpus") ?
+                        readJsonCorpus(options.get("corpus")) : generator.createJsonRecords(CORPUS_SIZE);
+                harness.replay(new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler), corpus,
+                        record -> false, record -> record.value().length, events);
+                break;
+            case "avro":
+                double bulkRatio = Double.parseDouble(options.getOrDefault("bulk-ratio", "0"));
+                InMemoryBulkTransformer transformer = new InMemoryBulkTransformer(databaseHandler);
+                harness.replay(transformer, createAvroCorpus(generator, transformer, bulkRatio),
+                        record -> record.getData().get(0) == 1,
+                        record -> record.getData().get(0) == 1 ? record.getData().getLong(1) : record.getData().remaining(),
+                        events);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+    }
+
+    public <T> void replay(MessageEventTransformer transformer, List<T> corpus, RecordClassifier<T> isBulk, RecordSizer<T> sizer, long events)
+            throws IOException
+    {
+        StreamWorkerContext<T> context = new StreamWorkerContext<>(transformer, flushController, stats, memoryPool, MiddlewarePageSerde.createStandalone());
+        BasicMemoryBuffer<T> buffer = context.createBuffer();
+        MiddlewareBuffer middlewareBuffer = new MiddlewareBuffer(middlewareConfig, stats, memoryPool, flushController, context.getPageSerde());
+
+        long replayed = 0;
+        long start = System.nanoTime();
+        while (replayed < events) {
+            for (T record : corpus) {
+                if (isBulk.isBulk(record)) {
+                    buffer.consumeBatch(record, sizer.size(record));
+                    replayed += BULK_RECORD_SIZE;
+                }
+                else {
+                    buffer.consumeRecord(record, sizer.size(record));
+                    replayed++;
+                }
+
+                if (buffer.getFlushReason() != null) {
+                    flush(context, buffer, middlewareBuffer, false);
+                }
+                if (replayed >= events) {
+                    break;
+                }
+            }
+        }
+        flush(context, buffer, middlewareBuffer, true);
+        long elapsedNanos = System.nanoTime() - start;
+
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.println(format("Replayed %d events in %.1fs: %.0f events/s", replayed, seconds, replayed / seconds));
+        System.out.println(format("Stream flush (convert) latency: p50 %.2fms, p99 %.2fms, max %.2fms (%d flushes)",
+                streamFlushMicros.getPercentile(50) / 1000.0, streamFlushMicros.getPercentile(99) / 1000.0,
+                streamFlushMicros.getMax() / 1000.0, streamFlushMicros.getCount()));
+        System.out.println(format("Middleware flush (commit) latency: p50 %.2fms, p99 %.2fms, max %.2fms (%d flushes)",
+                middlewareFlushMicros.getPercentile(50) / 1000.0, middlewareFlushMicros.getPercentile(99) / 1000.0,
+                middlewareFlushMicros.getMax() / 1000.0, middlewareFlushMicros.getCount()));
+        System.out.println(format("Heap high-water mark: %.1fMB, committed rows: %d, conversion failures: %d, columns: %d",
+                heapHighWaterMark / (1024.0 * 1024), stats.getCommittedRows().getTotalCount(),
+                stats.getConversionFailures().getTotalCount(),
+                databaseHandler.getColumns(BenchmarkEventGenerator.PROJECT, BenchmarkEventGenerator.COLLECTION).size()));
+    }
+
+    private <T> void flush(StreamWorkerContext<T> context, BasicMemoryBuffer<T> buffer, MiddlewareBuffer middlewareBuffer, boolean force)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        Map.Entry<List<T>, List<T>> records = buffer.getRecords();
+        middlewareBuffer.add(new BatchRecords(context.convert(records.getKey(), records.getValue()), () -> {}));
+        streamFlushMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        heapHighWaterMark = Math.max(heapHighWaterMark, memoryBean.getHeapMemoryUsage().getUsed());
+        buffer.clear();
+
+        if (force || middlewareBuffer.getFlushReason() != null) {
+            start = System.nanoTime();
+            List<BatchRecords> batches = middlewareBuffer.flush();
+            if (!batches.isEmpty()) {
+                Set<SchemaTableName> failedTables = committer.process(Iterables.transform(batches, BatchRecords::getTable));
+                if (!force) {
+                    flushController.recordFlush(Iterables.transform(batches, BatchRecords::getTable), failedTables,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+            middlewareFlushMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    private static List<ConsumerRecord<byte[], byte[]>> readJsonCorpus(String file)
+            throws IOException
+    {
+        ImmutableList.Builder<ConsumerRecord<byte[], byte[]>> builder = ImmutableList.builder();
+        long offset = 0;
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                builder.add(new ConsumerRecord<>("replay", 0, offset++, new byte[] {}, line.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return builder.build();
+    }
+
+    private static List<Record> createAvroCorpus(BenchmarkEventGenerator generator, InMemoryBulkTransformer transformer, double bulkRatio)
+            throws IOException
+    {
+        ImmutableList.Builder<Record> builder = ImmutableList.builder();
+        int bulkEvents = (int) (CORPUS_SIZE * bulkRatio);
+        for (int i = 0; i < bulkEvents / BULK_RECORD_SIZE; i++) {
+            String key = "bulk/" + i;
+            byte[] object = generator.createAvroBulkObject(i * BULK_RECORD_SIZE, BULK_RECORD_SIZE);
+            transformer.putBulkObject(key, object);
+            builder.add(generator.createBulkRecord(key, object.length));
+        }
+        builder.addAll(generator.createAvroRecords(CORPUS_SIZE - bulkEvents));
+        return builder.build();
+    }
+
+    public interface RecordClassifier<T>
+    {
+        boolean isBulk(T record);
+    }
+
+    public interface RecordSizer<T>
+    {
+        long size(T record);
+    }
+
+    private static class InMemoryBulkTransformer
+            extends KinesisMessageEventTransformer
+    {
+        private final Map<String, byte[]> objects = new HashMap<>();
+
+        public InMemoryBulkTransformer(DatabaseHandler databaseHandler)
+        {
+            super(new FieldNameConfig(), databaseHandler, new S3MiddlewareConfig());
+        }
+
+        public void putBulkObject(String key, byte[] object)
+        {
+            objects.put(key, object);
+        }
+
+        @Override
+        protected S3Object getBulkObject(String bulkKey)
+        {
+            S3Object object = new S3Object();
+            object.setKey(bulkKey);
+            object.setObjectContent(new ByteArrayInputStream(objects.get(bulkKey)));
+            return object;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.SchemaTableName;
+import io.airlift.units.Duration;
+import io.rakam.presto.deserialization.LatencySamples;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestCollectorStats
+{
+    @Test
+    public void testIdleTablesAreEvicted()
+            throws Exception
+    {
+        CollectorStats stats = new CollectorStats(new StatsConfig().setTableLatencyRetention(Duration.valueOf("50ms")));
+        SchemaTableName idle = new SchemaTableName("project", "idle");
+        SchemaTableName active = new SchemaTableName("project", "active");
+
+        stats.recordCommitLatency(idle, samples(), System.currentTimeMillis());
+        stats.recordCommitLatency(active, samples(), System.currentTimeMillis());
+        assertEquals(stats.snapshotCommitLatencies().keySet().size(), 2);
+
+        Thread.sleep(100);
+        stats.recordCommitLatency(active, samples(), System.currentTimeMillis());
+        assertTrue(stats.snapshotCommitLatencies().containsKey(active));
+        assertEquals(stats.getTrackedTableCount(), 1);
+
+        Thread.sleep(100);
+        assertFalse(stats.snapshotCommitLatencies().containsKey(active));
+        assertEquals(stats.getTrackedTableCount(), 0);
+    }
+
+    private static LatencySamples samples()
+    {
+        LatencySamples samples = new LatencySamples();
+        long now = System.currentTimeMillis();
+        samples.add(now - 1000, now - 100);
+        return samples;
+    }
+}
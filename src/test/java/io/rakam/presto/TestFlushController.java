@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import io.airlift.units.DataSize;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestFlushController
+{
+    private static final long TARGET_TABLE_FLUSH_SIZE = new DataSize(1, DataSize.Unit.MEGABYTE).toBytes();
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private long now;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void testAdditiveIncreaseAndMultiplicativeDecrease()
+    {
+        FlushController controller = createController(true, new MemoryPool(Long.MAX_VALUE));
+
+        // the tables get less data per flush than the target, the flushes are made larger step by step up to the bound
+        for (int i = 0; i < 20; i++) {
+            recordFlush(controller, 2, TARGET_TABLE_FLUSH_SIZE / 2, 10);
+        }
+        assertEquals(controller.getScale(), 4.0);
+        assertEquals(controller.getMiddlewareFlushRecords(), new MiddlewareConfig().getMaxFlushRecords() * 4);
+        assertEquals(controller.getStreamFlushDurationMillis(), new StreamConfig().getMaxFlushDuration().toMillis() * 4);
+
+        // the tables get much more data than the target
+        recordFlush(controller, 1, TARGET_TABLE_FLUSH_SIZE * 3, 10);
+        assertEquals(controller.getScale(), 2.0);
+        assertEquals(controller.getLastTableFlushSize(), TARGET_TABLE_FLUSH_SIZE * 3);
+
+        for (int i = 0; i < 20; i++) {
+            recordFlush(controller, 1, TARGET_TABLE_FLUSH_SIZE * 3, 10);
+        }
+        assertEquals(controller.getScale(), 0.25);
+    }
+
+    @Test
+    public void testSlowCommitterBacksOff()
+    {
+        FlushController controller = createController(true, new MemoryPool(Long.MAX_VALUE));
+        for (int i = 0; i < 4; i++) {
+            recordFlush(controller, 2, TARGET_TABLE_FLUSH_SIZE / 2, 10);
+        }
+        assertEquals(controller.getScale(), 2.0);
+
+        // the committer is busy for most of the interval, the thresholds are lowered even though the tables are small
+        recordFlush(controller, 2, TARGET_TABLE_FLUSH_SIZE / 2, FLUSH_INTERVAL_MILLIS * 9 / 10);
+        assertEquals(controller.getScale(), 1.0);
+        assertEquals(controller.getLastCommitLatencyMillis(), FLUSH_INTERVAL_MILLIS * 9 / 10);
+
+        for (int i = 0; i < 5; i++) {
+            recordFlush(controller, 2, TARGET_TABLE_FLUSH_SIZE / 2, FLUSH_INTERVAL_MILLIS * 9 / 10);
+        }
+        assertEquals(controller.getScale(), 0.25);
+
+        // the scale grows back once the commits are fast again
+        recordFlush(controller, 2, TARGET_TABLE_FLUSH_SIZE / 2, 10);
+        assertEquals(controller.getScale(), 0.5);
+    }
+
+    @Test
+    public void testMemoryPressure()
+    {
+        MemoryPool memoryPool = new MemoryPool(100);
+        FlushController controller = createController(true, memoryPool);
+        memoryPool.reserve(90);
+
+        recordFlush(controller, 1, TARGET_TABLE_FLUSH_SIZE / 2, 10);
+        assertEquals(controller.getScale(), 0.5);
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        FlushController controller = createController(false, new MemoryPool(Long.MAX_VALUE));
+        recordFlush(controller, 1, TARGET_TABLE_FLUSH_SIZE / 2, 10);
+        assertEquals(controller.getScale(), 1.0);
+        assertEquals(controller.getMiddlewareFlushSize(), new MiddlewareConfig().getMaxSize().toBytes());
+        assertEquals(controller.getLastCommitLatencyMillis(), 10);
+    }
+
+    private void recordFlush(FlushController controller, int tables, long pageBytes, long commitMillis)
+    {
+        now += FLUSH_INTERVAL_MILLIS;
+        controller.recordCommit(tables, pageBytes, commitMillis, now);
+    }
+
+    private static FlushController createController(boolean enabled, MemoryPool memoryPool)
+    {
+        FlushControllerConfig config = new FlushControllerConfig()
+                .setEnabled(enabled)
+                .setTargetTableFlushSize(new DataSize(TARGET_TABLE_FLUSH_SIZE, DataSize.Unit.BYTE));
+        return new FlushController(config, new StreamConfig(), new MiddlewareConfig(), memoryPool);
+    }
+}
@@ -6,11 +6,14 @@ package io.rakam.presto;
 
 import com.facebook.presto.spi.ColumnMetadata;
 import com.facebook.presto.spi.block.Block;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Table;
 import io.rakam.presto.deserialization.MessageEventTransformer;
 import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.kafka.KafkaConfig;
 import io.rakam.presto.kafka.KafkaJsonMessageTransformer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.rakam.util.JsonHelper;
@@ -19,14 +22,18 @@ import org.testng.annotations.Test;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 public class TestKafkaJsonDeserializer
         extends TestDeserializer<ConsumerRecord<byte[], byte[]>>
@@ -181,4 +188,150 @@ public class TestKafkaJsonDeserializer
         expectedBlock = BlockAssertions.createStringsBlock("test1", "test1", "test1");
         BlockAssertions.assertBlockEquals(VARCHAR, block, expectedBlock);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTablesFromTopicAreConvertedInParallel()
+            throws IOException
+    {
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler();
+        List<String> tables = ImmutableList.of("table1", "table2", "table3");
+        for (String table : tables) {
+            databaseHandler.addColumns("testproject", table, ImmutableList.of(new ColumnMetadata("value", VARCHAR)));
+        }
+
+        Set<String> conversionThreads = ConcurrentHashMap.newKeySet();
+        KafkaConfig config = new KafkaConfig().setTableSource(KafkaConfig.TableSource.TOPIC).setConversionThreads(3);
+        KafkaJsonMessageTransformer messageEventTransformer = new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler, config)
+        {
+            @Override
+            public long getArrivalTime(ConsumerRecord<byte[], byte[]> record)
+            {
+                conversionThreads.add(Thread.currentThread().getName());
+                return super.getArrivalTime(record);
+            }
+        };
+
+        try {
+            ImmutableList.Builder<ConsumerRecord<byte[], byte[]>> builder = ImmutableList.builder();
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                for (String table : tables) {
+                    builder.add(topicRecord("testproject." + table, "{\"properties\": {\"value\": \"" + table + "\"}}"));
+                }
+            }
+
+            Table<String, String, TableData> pageTable = messageEventTransformer.createPageTable(builder.build(), ImmutableList.of());
+            assertEquals(pageTable.size(), tables.size());
+            for (String table : tables) {
+                TableData data = pageTable.get("testproject", table);
+                assertEquals(data.page.getPositionCount(), ITERATION_COUNT);
+                BlockAssertions.assertBlockEquals(VARCHAR, data.page.getBlock(0),
+                        BlockAssertions.createStringsBlock(Collections.nCopies(ITERATION_COUNT, table)));
+            }
+
+            // the records are read on the conversion threads, not on the caller
+            assertTrue(conversionThreads.stream().allMatch(name -> name.startsWith("kafka-json-conversion-")), conversionThreads.toString());
+        }
+        finally {
+            messageEventTransformer.shutdown();
+        }
+    }
+
+    @Test
+    public void testNewFieldsOfParallelTablesAreAddedOnCaller()
+            throws IOException
+    {
+        Set<String> schemaChangeThreads = ConcurrentHashMap.newKeySet();
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler()
+        {
+            @Override
+            public synchronized List<ColumnMetadata> addColumns(String schema, String table, List<ColumnMetadata> newColumns)
+            {
+                schemaChangeThreads.add(Thread.currentThread().getName());
+                return super.addColumns(schema, table, newColumns);
+            }
+        };
+        List<String> tables = ImmutableList.of("table1", "table2", "table3");
+        for (String table : tables) {
+            databaseHandler.addColumns("testproject", table, ImmutableList.of(new ColumnMetadata("value", VARCHAR)));
+        }
+        schemaChangeThreads.clear();
+
+        KafkaConfig config = new KafkaConfig().setTableSource(KafkaConfig.TableSource.TOPIC).setConversionThreads(3);
+        KafkaJsonMessageTransformer messageEventTransformer = new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler, config);
+        try {
+            ImmutableList.Builder<ConsumerRecord<byte[], byte[]>> builder = ImmutableList.builder();
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                for (String table : tables) {
+                    builder.add(topicRecord("testproject." + table, "{\"properties\": {\"value\": \"" + table + "\", \"newcolumn\": \"" + i + "\"}}"));
+                }
+            }
+
+            Table<String, String, TableData> pageTable = messageEventTransformer.createPageTable(builder.build(), ImmutableList.of());
+            assertEquals(pageTable.size(), tables.size());
+            for (String table : tables) {
+                TableData data = pageTable.get("testproject", table);
+                assertEquals(data.metadata, ImmutableList.of(new ColumnMetadata("value", VARCHAR), new ColumnMetadata("newcolumn", VARCHAR)));
+                assertEquals(data.page.getPositionCount(), ITERATION_COUNT);
+                BlockAssertions.assertBlockEquals(VARCHAR, data.page.getBlock(1), BlockAssertions.createStringsBlock("0", "1", "2"));
+            }
+
+            // the tables are altered on the caller, not concurrently on the conversion threads
+            assertEquals(schemaChangeThreads, ImmutableSet.of(Thread.currentThread().getName()));
+        }
+        finally {
+            messageEventTransformer.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedTableDoesNotFailOtherTables()
+            throws IOException
+    {
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler();
+        KafkaConfig config = new KafkaConfig().setTableSource(KafkaConfig.TableSource.TOPIC).setConversionThreads(2);
+        KafkaJsonMessageTransformer messageEventTransformer = new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler, config);
+
+        String invalidName = Strings.repeat("a", 101);
+        try {
+            List<ConsumerRecord<byte[], byte[]>> records = ImmutableList.of(
+                    topicRecord("testproject.valid", "{\"properties\": {\"value\": \"1\"}}"),
+                    topicRecord("testproject.malformed", "{\"properties\": \"not an object\"}"),
+                    topicRecord("testproject." + invalidName, "{\"properties\": {\"value\": \"2\"}}"),
+                    topicRecord("testproject.valid", "{\"properties\": {\"value\": \"3\"}}"));
+
+            Table<String, String, TableData> pageTable = messageEventTransformer.createPageTable(records, ImmutableList.of());
+
+            // only the records of the tables that can't be converted are skipped
+            assertEquals(pageTable.size(), 1);
+            assertEquals(pageTable.get("testproject", "valid").page.getPositionCount(), 2);
+        }
+        finally {
+            messageEventTransformer.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedTableDoesNotFailOtherTablesWithoutMetadata()
+            throws IOException
+    {
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler();
+        MessageEventTransformer messageEventTransformer = new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler);
+
+        List<ConsumerRecord<byte[], byte[]>> records = ImmutableList.of(
+                topicRecord("test", "{\"project\": \"testproject\", \"collection\": \"valid\", \"properties\": {\"value\": \"1\"}}"),
+                topicRecord("test", "{\"project\": \"testproject\", \"collection\": \"malformed\", \"properties\": {\"value\": [1, }}"),
+                topicRecord("test", "{\"project\": \"testproject\", \"collection\": \"malformed\", \"properties\": {\"value\": \"2\"}}"),
+                topicRecord("test", "{\"project\": \"testproject\", \"collection\": \"valid\", \"properties\": {\"value\": \"3\"}}"));
+
+        Table<String, String, TableData> pageTable = messageEventTransformer.createPageTable(records, ImmutableList.of());
+
+        // the rest of the records of a table are skipped once one of them fails, the row may be partially written
+        assertEquals(pageTable.size(), 1);
+        assertEquals(pageTable.get("testproject", "valid").page.getPositionCount(), 2);
+    }
+
+    private static ConsumerRecord<byte[], byte[]> topicRecord(String topic, String data)
+    {
+        return new ConsumerRecord<>(topic, -1, -1, new byte[] {}, data.getBytes(StandardCharsets.UTF_8));
+    }
+}
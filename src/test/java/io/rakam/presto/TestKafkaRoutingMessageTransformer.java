@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Table;
+import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.deserialization.avro.AvroUtil;
+import io.rakam.presto.kafka.KafkaAvroMessageTransformer;
+import io.rakam.presto.kafka.KafkaJsonMessageTransformer;
+import io.rakam.presto.kafka.KafkaRoutingMessageTransformer;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static com.facebook.presto.spi.type.BigintType.BIGINT;
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+import static org.testng.Assert.assertEquals;
+
+public class TestKafkaRoutingMessageTransformer
+{
+    private static final ColumnMetadata COLUMN_A = new ColumnMetadata("a", VARCHAR);
+    private static final ColumnMetadata COLUMN_B = new ColumnMetadata("b", BIGINT);
+
+    @Test
+    public void testJsonAndAvroRecordsOfSameTable()
+            throws IOException
+    {
+        // the readers see different versions of the schema, column b is added in front of a by the Avro producer
+        List<ColumnMetadata> avroColumns = ImmutableList.of(COLUMN_B, COLUMN_A);
+        KafkaRoutingMessageTransformer transformer = new KafkaRoutingMessageTransformer(
+                new KafkaJsonMessageTransformer(new FieldNameConfig(), new TestDatabaseHandler("testproject", "testcollection", ImmutableList.of(COLUMN_A))),
+                new KafkaAvroMessageTransformer(new FieldNameConfig(), new TestDatabaseHandler("testproject", "testcollection", avroColumns)));
+
+        List<ConsumerRecord<byte[], byte[]>> records = ImmutableList.of(
+                jsonRecord("json1"),
+                avroRecord(avroColumns, "avro1", 1),
+                jsonRecord("json2"),
+                avroRecord(avroColumns, "avro2", 2));
+
+        Table<String, String, TableData> table = transformer.createPageTable(records, ImmutableList.of());
+        assertEquals(table.size(), 1);
+
+        TableData data = table.get("testproject", "testcollection");
+        assertEquals(data.metadata, ImmutableList.of(COLUMN_A, COLUMN_B));
+        assertEquals(data.page.getChannelCount(), 2);
+        assertEquals(data.page.getPositionCount(), 4);
+
+        // the JSON page comes first, the rows of the Avro page are matched by column name
+        BlockAssertions.assertBlockEquals(VARCHAR, data.page.getBlock(0),
+                BlockAssertions.createStringsBlock("json1", "json2", "avro1", "avro2"));
+        BlockAssertions.assertBlockEquals(BIGINT, data.page.getBlock(1),
+                BlockAssertions.createLongsBlock(null, null, 1L, 2L));
+    }
+
+    private static ConsumerRecord<byte[], byte[]> jsonRecord(String value)
+    {
+        return new ConsumerRecord<>("events", 0, 0, new byte[] {}, JsonHelper.encodeAsBytes(ImmutableMap.of(
+                "project", "testproject",
+                "collection", "testcollection",
+                "properties", ImmutableMap.of("a", value))));
+    }
+
+    private static ConsumerRecord<byte[], byte[]> avroRecord(List<ColumnMetadata> columns, String a, long b)
+            throws IOException
+    {
+        Schema schema = AvroUtil.convertAvroSchema(columns, "_shard_time");
+        GenericData.Record record = new GenericData.Record(schema);
+        record.put("a", a);
+        record.put("b", b);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(2);
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        encoder.writeString("testcollection");
+        new GenericDatumWriter<GenericData.Record>(schema).write(record, encoder);
+
+        // the project of Avro records is the prefix of the topic
+        return new ConsumerRecord<>("testproject.events", 0, 0, new byte[] {}, out.toByteArray());
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.SchemaTableName;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Table;
+import io.airlift.units.Duration;
+import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.kafka.KafkaConfig;
+import io.rakam.presto.kafka.KafkaJsonMessageTransformer;
+import io.rakam.presto.kafka.KafkaWorkerManager;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestKafkaWorkerManager
+{
+    private static final String TOPIC = "events";
+    private static final TopicPartition PARTITION_0 = new TopicPartition(TOPIC, 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition(TOPIC, 1);
+
+    private StreamConfig streamConfig;
+    private MiddlewareConfig middlewareConfig;
+    private CollectorStats stats;
+    private RecordingCommitter committer;
+    private TestingConsumer consumer;
+    private KafkaWorkerManager manager;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        streamConfig = new StreamConfig();
+        streamConfig.setMaxFlushRecords(1);
+        streamConfig.setMaxFlushDuration(Duration.valueOf("1h"));
+        middlewareConfig = new MiddlewareConfig();
+        middlewareConfig.setMaxFlushRecords(1);
+        middlewareConfig.setMaxFlushDuration(Duration.valueOf("1h"));
+        stats = new CollectorStats();
+
+        TestDatabaseHandler databaseHandler = new TestDatabaseHandler();
+        committer = new RecordingCommitter(databaseHandler, stats);
+        MemoryPool memoryPool = new MemoryPool(Long.MAX_VALUE);
+        StreamWorkerContext<ConsumerRecord> context = new StreamWorkerContext<>(
+                new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler),
+                FlushController.fixed(streamConfig, middlewareConfig), stats, memoryPool, MiddlewarePageSerde.createStandalone());
+        manager = new KafkaWorkerManager(new KafkaConfig().setTopicPattern(TOPIC), new ClusterConfig(), middlewareConfig, context, committer,
+                new LagTracker("Kafka", "records", LagTracker.Aggregation.SUM, Double.MAX_VALUE, Duration.valueOf("1m")));
+
+        consumer = new TestingConsumer();
+        consumer.updatePartitions(TOPIC, ImmutableList.of(
+                new PartitionInfo(TOPIC, 0, null, null, null),
+                new PartitionInfo(TOPIC, 1, null, null, null)));
+        consumer.updateBeginningOffsets(ImmutableMap.of(PARTITION_0, 0L, PARTITION_1, 0L));
+        consumer.updateEndOffsets(ImmutableMap.of(PARTITION_0, 100L, PARTITION_1, 100L));
+        manager.subscribe(consumer);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        manager.getExecutor().shutdownNow();
+    }
+
+    @Test
+    public void testRevokeFlushesBufferedRecords()
+    {
+        // the first batch of partition 1 waits in the middleware buffer
+        middlewareConfig.setMaxFlushRecords(Integer.MAX_VALUE);
+        addRecords(PARTITION_1, "first", 0, 3);
+        manager.poll();
+        assertEquals(committer.commits.size(), 0);
+
+        // the records of partition 0 are still in the stream buffer when it's revoked
+        streamConfig.setMaxFlushRecords(Integer.MAX_VALUE);
+        addRecords(PARTITION_0, "second", 0, 5);
+        manager.poll();
+        assertEquals(committer.commits.size(), 0);
+
+        manager.onPartitionsRevoked(ImmutableList.of(PARTITION_0));
+
+        // only the batch of the revoked partition is committed, synchronously, before the partition is handed off
+        assertEquals(committer.commits.size(), 1);
+        assertEquals(committer.commits.get(0), ImmutableMap.of(new SchemaTableName("project", "second"), 5L));
+        assertEquals(consumer.committed(PARTITION_0).offset(), 5);
+        assertNull(consumer.committed(PARTITION_1));
+
+        // the batch of partition 1 is committed with the next flush
+        middlewareConfig.setMaxFlushRecords(1);
+        streamConfig.setMaxFlushRecords(1);
+        addRecords(PARTITION_1, "first", 3, 1);
+        manager.poll();
+        assertEquals(committer.commits.size(), 2);
+        assertEquals(committer.commits.get(1), ImmutableMap.of(new SchemaTableName("project", "first"), 4L));
+        assertEquals(consumer.committed(PARTITION_1).offset(), 4);
+    }
+
+    @Test
+    public void testFailedAsyncCommitIsCoveredByLaterCommit()
+    {
+        consumer.failAsyncCommits = 1;
+        addRecords(PARTITION_0, "collection", 0, 3);
+        manager.poll();
+        assertEquals(committer.commits.size(), 1);
+        assertNull(consumer.committed(PARTITION_0));
+        assertEquals(stats.getCheckpointFailures().getTotalCount(), 1);
+
+        addRecords(PARTITION_0, "collection", 3, 2);
+        manager.poll();
+        assertEquals(committer.commits.size(), 2);
+        assertEquals(consumer.committed(PARTITION_0).offset(), 5);
+    }
+
+    @Test
+    public void testFailedAsyncCommitIsCommittedOnClose()
+    {
+        consumer.failAsyncCommits = Integer.MAX_VALUE;
+        addRecords(PARTITION_0, "collection", 0, 3);
+        manager.poll();
+        addRecords(PARTITION_1, "collection", 0, 2);
+        manager.poll();
+        assertNull(consumer.committed(PARTITION_0));
+        assertNull(consumer.committed(PARTITION_1));
+
+        manager.close();
+        assertEquals(consumer.syncCommits, ImmutableList.of(ImmutableMap.of(
+                PARTITION_0, new OffsetAndMetadata(3),
+                PARTITION_1, new OffsetAndMetadata(2))));
+    }
+
+    @Test
+    public void testOffsetsOfFailedTablesAreHeldBack()
+    {
+        middlewareConfig.setMaxFlushRecords(Integer.MAX_VALUE);
+        addRecords(PARTITION_0, "failing", 0, 3);
+        manager.poll();
+        addRecords(PARTITION_1, "collection", 0, 2);
+        manager.poll();
+
+        committer.failures.add(ImmutableSet.of(new SchemaTableName("project", "failing")));
+        middlewareConfig.setMaxFlushRecords(1);
+        addRecords(PARTITION_1, "collection", 2, 1);
+        manager.poll();
+
+        // partition 0 is held back while its table is retried, partition 1 is committed
+        assertEquals(committer.commits.size(), 1);
+        assertNull(consumer.committed(PARTITION_0));
+        assertEquals(consumer.committed(PARTITION_1).offset(), 3);
+
+        // the failed table is buffered again and committed with the next flush
+        addRecords(PARTITION_1, "collection", 3, 1);
+        manager.poll();
+        assertEquals(committer.commits.size(), 2);
+        assertEquals(committer.commits.get(1), ImmutableMap.of(
+                new SchemaTableName("project", "failing"), 3L,
+                new SchemaTableName("project", "collection"), 1L));
+        assertEquals(consumer.committed(PARTITION_0).offset(), 3);
+        assertEquals(consumer.committed(PARTITION_1).offset(), 4);
+    }
+
+    private void addRecords(TopicPartition partition, String collection, long firstOffset, int count)
+    {
+        for (long offset = firstOffset; offset < firstOffset + count; offset++) {
+            byte[] value = JsonHelper.encodeAsBytes(ImmutableMap.of(
+                    "project", "project",
+                    "collection", collection,
+                    "properties", ImmutableMap.of("offset", offset)));
+            consumer.addRecord(new ConsumerRecord<>(partition.topic(), partition.partition(), offset, new byte[] {}, value));
+        }
+    }
+
+    private static class TestingConsumer
+            extends MockConsumer<byte[], byte[]>
+    {
+        private final List<Map<TopicPartition, OffsetAndMetadata>> syncCommits = new ArrayList<>();
+        private int failAsyncCommits;
+
+        public TestingConsumer()
+        {
+            super(OffsetResetStrategy.EARLIEST);
+        }
+
+        @Override
+        public synchronized void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets, OffsetCommitCallback callback)
+        {
+            // MockConsumer commits synchronously through this method without a callback
+            if (callback != null && failAsyncCommits > 0) {
+                failAsyncCommits--;
+                callback.onComplete(offsets, new KafkaException("Offset commit failed"));
+                return;
+            }
+            super.commitAsync(offsets, callback);
+        }
+
+        @Override
+        public synchronized void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets)
+        {
+            syncCommits.add(ImmutableMap.copyOf(offsets));
+            super.commitSync(offsets);
+        }
+    }
+
+    private static class RecordingCommitter
+            extends TargetConnectorCommitter
+    {
+        // the committed row count of every table, per call
+        private final List<Map<SchemaTableName, Long>> commits = new ArrayList<>();
+        private final Queue<Set<SchemaTableName>> failures = new LinkedList<>();
+
+        public RecordingCommitter(DatabaseHandler databaseHandler, CollectorStats stats)
+        {
+            super(databaseHandler, stats);
+        }
+
+        @Override
+        public Set<SchemaTableName> process(Iterable<Table<String, String, TableData>> batches)
+        {
+            Map<SchemaTableName, Long> rows = new HashMap<>();
+            for (Table<String, String, TableData> batch : batches) {
+                for (Table.Cell<String, String, TableData> cell : batch.cellSet()) {
+                    rows.merge(new SchemaTableName(cell.getRowKey(), cell.getColumnKey()), (long) cell.getValue().page.getPositionCount(), Long::sum);
+                }
+            }
+            commits.add(rows);
+            Set<SchemaTableName> failed = failures.poll();
+            return failed == null ? new HashSet<>() : failed;
+        }
+    }
+}
@@ -5,19 +5,26 @@
 package io.rakam.presto;
 
 import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.s3.model.S3Object;
+import com.facebook.presto.spi.ColumnMetadata;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
 import io.rakam.presto.deserialization.avro.AvroUtil;
 import io.rakam.presto.deserialization.MessageEventTransformer;
+import io.rakam.presto.deserialization.TableData;
 import io.rakam.presto.kinesis.KinesisMessageEventTransformer;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.EncoderFactory;
+import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.ZonedDateTime;
@@ -29,6 +36,8 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
+import static org.testng.Assert.assertEquals;
+
 public class TestKinesisAvroDeserializer
         extends TestDeserializer<Record>
 {
@@ -65,7 +74,11 @@ public class TestKinesisAvroDeserializer
             write.write(record, binaryEncoder);
 
             Record kinesisRecord = new Record();
-            kinesisRecord.setData(ByteBuffer.wrap(out.toByteArray()));
+            // the payload is a slice of a larger buffer, as the records de-aggregated by the KCL are
+            byte[] payload = out.toByteArray();
+            byte[] buffer = new byte[payload.length + 2];
+            System.arraycopy(payload, 0, buffer, 1, payload.length);
+            kinesisRecord.setData(ByteBuffer.wrap(buffer, 1, payload.length).slice());
             kinesisRecord.setPartitionKey(project + "|test");
             builder.add(kinesisRecord);
         }
@@ -73,6 +86,59 @@ public class TestKinesisAvroDeserializer
         return builder.build();
     }
 
+    @Test
+    public void testBulkRecords()
+            throws IOException
+    {
+        Schema schema = AvroUtil.convertAvroSchema(COLUMNS, "_shard_time");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        encoder.writeInt(COLUMNS.size());
+        for (ColumnMetadata column : COLUMNS) {
+            encoder.writeString(column.getName());
+        }
+        encoder.writeInt(EVENTS.size());
+        GenericDatumWriter writer = new GenericDatumWriter(schema);
+        for (Map<String, Object> event : EVENTS) {
+            GenericData.Record record = new GenericData.Record(schema);
+            event.forEach((key, value) -> record.put(key, convertAvroValue(value)));
+            writer.write(record, encoder);
+        }
+        byte[] object = out.toByteArray();
+
+        // the type and the size of the bulk object are followed by its key, there is no collection in the payload
+        byte[] key = "bulk/1".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(9 + key.length);
+        data.put((byte) 1);
+        data.putLong(object.length);
+        data.put(key);
+        Record bulkRecord = new Record();
+        bulkRecord.setData(ByteBuffer.wrap(data.array()));
+        bulkRecord.setPartitionKey("testproject|testcollection");
+
+        KinesisMessageEventTransformer transformer = new KinesisMessageEventTransformer(new FieldNameConfig(),
+                new TestDatabaseHandler("testproject", "testcollection", COLUMNS), new S3MiddlewareConfig())
+        {
+            @Override
+            protected S3Object getBulkObject(String bulkKey)
+            {
+                assertEquals(bulkKey, "bulk/1");
+                S3Object s3Object = new S3Object();
+                s3Object.setKey(bulkKey);
+                s3Object.setObjectContent(new ByteArrayInputStream(object));
+                return s3Object;
+            }
+        };
+
+        Table<String, String, TableData> table = transformer.createPageTable(
+                getRecords("testproject", "testcollection", Optional.empty()), ImmutableList.of(bulkRecord));
+        TableData collection = table.get("testproject", "testcollection");
+        assertEquals(table.size(), 1);
+        assertEquals(collection.metadata, COLUMNS);
+        // the events of the bulk object are appended to the ones of the regular records
+        assertEquals(collection.page.getPositionCount(), EVENTS.size() * 2);
+    }
+
     private Object convertAvroValue(Object value)
     {
         if (value instanceof LocalDate) {
@@ -0,0 +1,582 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.KinesisClientLibDependencyException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
+import com.amazonaws.services.kinesis.model.Record;
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.SchemaTableName;
+import com.facebook.presto.spi.block.BlockBuilder;
+import com.facebook.presto.spi.block.BlockBuilderStatus;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Table;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+import io.rakam.presto.deserialization.PageTableTransformer;
+import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.kinesis.KinesisRecordProcessor;
+import io.rakam.presto.kinesis.KinesisShardAggregator;
+import io.rakam.presto.kinesis.KinesisShardCheckpointer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.facebook.presto.spi.type.BigintType.BIGINT;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestKinesisRecordProcessor
+{
+    private static final List<ColumnMetadata> COLUMNS = ImmutableList.of(new ColumnMetadata("sequence", BIGINT));
+
+    private StreamConfig streamConfig;
+    private MiddlewareConfig middlewareConfig;
+    private CollectorStats stats;
+    private RecordingCommitter committer;
+    private MemoryPool memoryPool;
+    private FlushController flushController;
+    private MiddlewarePageSerde pageSerde;
+    private StreamWorkerContext<Record> context;
+    private KinesisShardAggregator aggregator;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        streamConfig = new StreamConfig();
+        streamConfig.setMaxFlushRecords(1);
+        streamConfig.setMaxFlushDuration(Duration.valueOf("1h"));
+        middlewareConfig = new MiddlewareConfig();
+        middlewareConfig.setMaxFlushRecords(Integer.MAX_VALUE);
+        middlewareConfig.setMaxFlushDuration(Duration.valueOf("1h"));
+        stats = new CollectorStats();
+
+        committer = new RecordingCommitter(new TestDatabaseHandler(), stats);
+        memoryPool = new MemoryPool(Long.MAX_VALUE);
+        flushController = FlushController.fixed(streamConfig, middlewareConfig);
+        pageSerde = MiddlewarePageSerde.createStandalone();
+        PageTableTransformer<Record> transformer = TestKinesisRecordProcessor::convert;
+        context = new StreamWorkerContext<>(transformer, flushController, stats, memoryPool, pageSerde);
+        aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+    }
+
+    @Test
+    public void testPagesOfShardsAreCommittedTogether()
+    {
+        middlewareConfig.setMaxFlushRecords(4);
+        TestingCheckpointer checkpointer1 = new TestingCheckpointer();
+        TestingCheckpointer checkpointer2 = new TestingCheckpointer();
+        KinesisRecordProcessor shard1 = createProcessor("shard-1");
+        KinesisRecordProcessor shard2 = createProcessor("shard-2");
+
+        shard1.processRecords(input(checkpointer1, record("1", "first"), record("2", "second")));
+        assertEquals(committer.commits.size(), 0);
+
+        // the pages of both shards reach the threshold of the aggregated buffer, the second shard commits them
+        shard2.processRecords(input(checkpointer2, record("10", "first"), record("11", "first")));
+        assertEquals(committer.commits, ImmutableList.of(ImmutableMap.of(
+                new SchemaTableName("project", "first"), 3L,
+                new SchemaTableName("project", "second"), 1L)));
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of("2/0"));
+        assertEquals(checkpointer2.checkpoints, ImmutableList.of("11/0"));
+    }
+
+    @Test
+    public void testIdleShardsFlushAggregatedPages()
+    {
+        TestingCheckpointer checkpointer1 = new TestingCheckpointer();
+        TestingCheckpointer checkpointer2 = new TestingCheckpointer();
+        KinesisRecordProcessor shard1 = createProcessor("shard-1");
+        KinesisRecordProcessor shard2 = createProcessor("shard-2");
+
+        shard1.processRecords(input(checkpointer1, record("1", "collection"), record("2", "collection")));
+        assertEquals(committer.commits.size(), 0);
+
+        // the KCL calls the processors of idle shards with empty lists, the time threshold is checked on every call
+        streamConfig.setMaxFlushDuration(Duration.valueOf("0ms"));
+        middlewareConfig.setMaxFlushDuration(Duration.valueOf("0ms"));
+        shard2.processRecords(input(checkpointer2));
+        assertEquals(committer.commits, ImmutableList.of(ImmutableMap.of(new SchemaTableName("project", "collection"), 2L)));
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of("2/0"));
+
+        // a shard without records since its last flush adds nothing to the buffer
+        shard1.processRecords(input(checkpointer1));
+        shard2.processRecords(input(checkpointer2));
+        assertEquals(committer.commits.size(), 1);
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of("2/0"));
+        assertEquals(checkpointer2.checkpoints, ImmutableList.of());
+    }
+
+    @Test
+    public void testShardIsCheckpointedOnceAtHighestSequence()
+    {
+        TestingCheckpointer checkpointer1 = new TestingCheckpointer();
+        TestingCheckpointer checkpointer2 = new TestingCheckpointer();
+        KinesisRecordProcessor shard1 = createProcessor("shard-1");
+        KinesisRecordProcessor shard2 = createProcessor("shard-2");
+
+        shard1.processRecords(input(checkpointer1, record("1", "collection"), record("2", "collection")));
+        shard1.processRecords(input(checkpointer1, record("3", "collection")));
+        shard2.processRecords(input(checkpointer2, record("5", "collection")));
+        assertEquals(committer.commits.size(), 0);
+
+        middlewareConfig.setMaxFlushRecords(1);
+        shard1.processRecords(input(checkpointer1, record("4", "collection")));
+
+        // the shard has three batches in the flush, only the last position is written to DynamoDB
+        assertEquals(committer.commits, ImmutableList.of(ImmutableMap.of(new SchemaTableName("project", "collection"), 5L)));
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of("4/0"));
+        assertEquals(checkpointer2.checkpoints, ImmutableList.of("5/0"));
+    }
+
+    @Test
+    public void testFailedTablesHoldBackShard()
+    {
+        TestingCheckpointer checkpointer1 = new TestingCheckpointer();
+        TestingCheckpointer checkpointer2 = new TestingCheckpointer();
+        KinesisRecordProcessor shard1 = createProcessor("shard-1");
+        KinesisRecordProcessor shard2 = createProcessor("shard-2");
+
+        shard1.processRecords(input(checkpointer1, record("1", "failing")));
+        shard2.processRecords(input(checkpointer2, record("10", "collection")));
+
+        committer.failures.add(ImmutableSet.of(new SchemaTableName("project", "failing")));
+        middlewareConfig.setMaxFlushRecords(1);
+        shard2.processRecords(input(checkpointer2, record("11", "collection")));
+
+        // the shard of the failed table is not checkpointed until the table is committed
+        assertEquals(committer.commits.size(), 1);
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of());
+        assertEquals(checkpointer2.checkpoints, ImmutableList.of("11/0"));
+
+        // the failed table is buffered again and committed with the next flush
+        shard2.processRecords(input(checkpointer2, record("12", "collection")));
+        assertEquals(committer.commits.size(), 2);
+        assertEquals(committer.commits.get(1), ImmutableMap.of(
+                new SchemaTableName("project", "failing"), 1L,
+                new SchemaTableName("project", "collection"), 1L));
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of("1/0"));
+        assertEquals(checkpointer2.checkpoints, ImmutableList.of("11/0", "12/0"));
+    }
+
+    @Test
+    public void testShardIsCheckpointedAfterGivingUp()
+    {
+        TestingCheckpointer checkpointer = new TestingCheckpointer();
+        KinesisRecordProcessor shard = createProcessor("shard-1");
+        middlewareConfig.setMaxFlushRecords(1);
+        for (int i = 0; i < 3; i++) {
+            committer.failures.add(ImmutableSet.of(new SchemaTableName("project", "failing")));
+        }
+
+        shard.processRecords(input(checkpointer, record("1", "failing")));
+        shard.processRecords(input(checkpointer));
+        assertEquals(committer.commits.size(), 2);
+        assertEquals(checkpointer.checkpoints, ImmutableList.of());
+
+        // the records are skipped after the third attempt, the shard is not blocked by a table that can't be written
+        shard.processRecords(input(checkpointer));
+        assertEquals(committer.commits.size(), 3);
+        assertEquals(checkpointer.checkpoints, ImmutableList.of("1/0"));
+
+        shard.processRecords(input(checkpointer));
+        assertEquals(committer.commits.size(), 3);
+    }
+
+    @Test
+    public void testTerminatedShardIsDrained()
+    {
+        TestingCheckpointer checkpointer1 = new TestingCheckpointer();
+        TestingCheckpointer checkpointer2 = new TestingCheckpointer();
+        KinesisRecordProcessor shard1 = createProcessor("shard-1");
+        KinesisRecordProcessor shard2 = createProcessor("shard-2");
+
+        shard1.processRecords(input(checkpointer1, record("1", "collection")));
+        shard2.processRecords(input(checkpointer2, record("10", "collection")));
+        streamConfig.setMaxFlushRecords(Integer.MAX_VALUE);
+        shard1.processRecords(input(checkpointer1, record("2", "collection")));
+
+        shard1.shutdown(new ShutdownInput().withShutdownReason(ShutdownReason.TERMINATE).withCheckpointer(checkpointer1.proxy));
+
+        // the stream buffer and the aggregated pages of the shard are committed, the other shard keeps waiting
+        assertEquals(committer.commits, ImmutableList.of(ImmutableMap.of(new SchemaTableName("project", "collection"), 2L)));
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of("2/0", "end"));
+        assertEquals(checkpointer2.checkpoints, ImmutableList.of());
+        assertEquals(aggregator.getBufferRecordCount(), 1);
+    }
+
+    @Test
+    public void testDrainGivesUpAfterDeadline()
+            throws Exception
+    {
+        TestingCheckpointer checkpointer1 = new TestingCheckpointer();
+        TestingCheckpointer checkpointer2 = new TestingCheckpointer();
+        KinesisRecordProcessor shard1 = createProcessor("shard-1", Duration.valueOf("100ms"));
+        KinesisRecordProcessor shard2 = createProcessor("shard-2");
+
+        streamConfig.setMaxFlushRecords(Integer.MAX_VALUE);
+        shard1.processRecords(input(checkpointer1, record("1", "collection")));
+        streamConfig.setMaxFlushRecords(1);
+
+        // another shard is committing when the shard is shut down
+        committer.release = new CountDownLatch(1);
+        middlewareConfig.setMaxFlushRecords(1);
+        Thread commitThread = new Thread(() -> shard2.processRecords(input(checkpointer2, record("10", "collection"))));
+        commitThread.start();
+        committer.started.acquire();
+
+        long start = System.nanoTime();
+        shard1.shutdown(new ShutdownInput().withShutdownReason(ShutdownReason.TERMINATE).withCheckpointer(checkpointer1.proxy));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        // the shard is not checkpointed, the next owner of the lease reads its records again
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of());
+
+        committer.release.countDown();
+        commitThread.join();
+        assertEquals(committer.commits, ImmutableList.of(ImmutableMap.of(new SchemaTableName("project", "collection"), 1L)));
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of());
+        assertEquals(checkpointer2.checkpoints, ImmutableList.of("10/0"));
+    }
+
+    @Test
+    public void testLostLeaseDiscardsRecords()
+    {
+        TestingCheckpointer checkpointer1 = new TestingCheckpointer();
+        TestingCheckpointer checkpointer2 = new TestingCheckpointer();
+        KinesisRecordProcessor shard1 = createProcessor("shard-1");
+        KinesisRecordProcessor shard2 = createProcessor("shard-2");
+
+        shard1.processRecords(input(checkpointer1, record("1", "collection")));
+        shard2.processRecords(input(checkpointer2, record("10", "collection")));
+        streamConfig.setMaxFlushRecords(Integer.MAX_VALUE);
+        shard1.processRecords(input(checkpointer1, record("2", "collection"), record("3", "collection")));
+
+        shard1.shutdown(new ShutdownInput().withShutdownReason(ShutdownReason.ZOMBIE).withCheckpointer(checkpointer1.proxy));
+
+        // neither the stream buffer nor the aggregated pages of the shard are committed or checkpointed
+        assertEquals(stats.getDiscardedRecords().getTotalCount(), 3);
+        assertEquals(committer.commits.size(), 0);
+        assertEquals(checkpointer1.checkpoints, ImmutableList.of());
+        assertEquals(aggregator.getBufferRecordCount(), 1);
+    }
+
+    @Test
+    public void testPositionsAreOrderedBySubSequenceNumber()
+    {
+        KinesisShardCheckpointer first = new KinesisShardCheckpointer("shard-1", null, "100", 2);
+        KinesisShardCheckpointer second = new KinesisShardCheckpointer("shard-1", null, "100", 5);
+        // the sequence numbers are compared as numbers, not as strings
+        KinesisShardCheckpointer earlier = new KinesisShardCheckpointer("shard-1", null, "99", 10);
+        KinesisShardCheckpointer later = new KinesisShardCheckpointer("shard-1", null, "1000", 0);
+
+        assertTrue(second.isAfter(first));
+        assertFalse(first.isAfter(second));
+        assertFalse(first.isAfter(first));
+        assertTrue(first.isAfter(earlier));
+        assertTrue(later.isAfter(second));
+
+        assertTrue(second.covers("100", 5));
+        assertTrue(second.covers("100", 4));
+        assertFalse(second.covers("100", 6));
+        assertTrue(second.covers("99", 100));
+        assertFalse(second.covers("101", 0));
+    }
+
+    @Test
+    public void testAggregatedRecordsAreCheckpointedAtHighestSubSequence()
+    {
+        TestingCheckpointer checkpointer = new TestingCheckpointer();
+        // the batches of the records that are de-aggregated from the same Kinesis record share the sequence number
+        aggregator.add(new BatchRecords(convert(ImmutableList.of(record("100", "collection")), ImmutableList.of()),
+                new KinesisShardCheckpointer("shard-1", checkpointer.proxy, "100", 3)));
+        aggregator.add(new BatchRecords(convert(ImmutableList.of(record("100", "collection")), ImmutableList.of()),
+                new KinesisShardCheckpointer("shard-1", checkpointer.proxy, "100", 1)));
+        aggregator.add(new BatchRecords(convert(ImmutableList.of(record("99", "collection")), ImmutableList.of()),
+                new KinesisShardCheckpointer("shard-1", checkpointer.proxy, "99", 7)));
+
+        middlewareConfig.setMaxFlushRecords(1);
+        aggregator.flushIfNeeded();
+        assertEquals(checkpointer.checkpoints, ImmutableList.of("100/3"));
+    }
+
+    @Test
+    public void testRecordsReplayedFromWriteAheadLogAreSkipped()
+    {
+        File directory = Files.createTempDir();
+        try {
+            middlewareConfig.setWriteAheadLogDirectory(directory);
+            aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+            createProcessor("shard-1").processRecords(input(new TestingCheckpointer(), record("4", "collection"), record("5", "collection")));
+            assertEquals(committer.commits.size(), 0);
+
+            // the process dies before the batch is committed, the next one replays it from the log before the worker starts
+            aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+            assertEquals(committer.commits.size(), 0);
+            aggregator.recover();
+            assertEquals(committer.commits, ImmutableList.of(ImmutableMap.of(new SchemaTableName("project", "collection"), 2L)));
+            assertEquals(stats.getReplayedRecords().getTotalCount(), 2);
+
+            // the KCL starts the shard from its last checkpoint, the records covered by the replayed position are skipped
+            TestingCheckpointer checkpointer = new TestingCheckpointer();
+            KinesisRecordProcessor shard = createProcessor("shard-1");
+            middlewareConfig.setMaxFlushRecords(1);
+            shard.processRecords(input(checkpointer, record("4", "collection"), record("5", "collection"), record("6", "collection")));
+            assertEquals(committer.commits.size(), 2);
+            assertEquals(committer.commits.get(1), ImmutableMap.of(new SchemaTableName("project", "collection"), 1L));
+            assertEquals(checkpointer.checkpoints, ImmutableList.of("6/0"));
+        }
+        finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testFailedReplayedTablesAreRetried()
+    {
+        File directory = Files.createTempDir();
+        try {
+            middlewareConfig.setWriteAheadLogDirectory(directory);
+            aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+            createProcessor("shard-1").processRecords(input(new TestingCheckpointer(), record("4", "failing"), record("5", "collection")));
+            assertEquals(committer.commits.size(), 0);
+
+            // the table that fails again is buffered instead of waiting in the log for the next restart
+            aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+            committer.failures.add(ImmutableSet.of(new SchemaTableName("project", "failing")));
+            aggregator.recover();
+            assertEquals(committer.commits.size(), 1);
+
+            TestingCheckpointer checkpointer = new TestingCheckpointer();
+            KinesisRecordProcessor shard = createProcessor("shard-1");
+            middlewareConfig.setMaxFlushRecords(1);
+            shard.processRecords(input(checkpointer, record("4", "failing"), record("5", "collection"), record("6", "collection")));
+            assertEquals(committer.commits.size(), 2);
+            assertEquals(committer.commits.get(1), ImmutableMap.of(
+                    new SchemaTableName("project", "failing"), 1L,
+                    new SchemaTableName("project", "collection"), 1L));
+            assertEquals(checkpointer.checkpoints, ImmutableList.of("6/0"));
+
+            // the retried table is released from the log, the next process has nothing to replay
+            aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+            aggregator.recover();
+            assertEquals(committer.commits.size(), 2);
+        }
+        finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testGivenUpRecordsAreMovedToDeadLetterFile()
+            throws IOException
+    {
+        File directory = Files.createTempDir();
+        try {
+            middlewareConfig.setWriteAheadLogDirectory(directory);
+            aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+            TestingCheckpointer checkpointer = new TestingCheckpointer();
+            KinesisRecordProcessor shard = createProcessor("shard-1");
+            middlewareConfig.setMaxFlushRecords(1);
+            for (int i = 0; i < 3; i++) {
+                committer.failures.add(ImmutableSet.of(new SchemaTableName("project", "failing")));
+            }
+
+            shard.processRecords(input(checkpointer, record("1", "failing")));
+            shard.processRecords(input(checkpointer));
+            shard.processRecords(input(checkpointer));
+            assertEquals(committer.commits.size(), 3);
+            assertEquals(checkpointer.checkpoints, ImmutableList.of("1/0"));
+
+            // the given up table is kept in the dead-letter file and the batch is not replayed by the next process
+            aggregator = new KinesisShardAggregator(middlewareConfig, committer, stats, memoryPool, flushController, pageSerde);
+            aggregator.recover();
+            assertEquals(committer.commits.size(), 3);
+
+            try (WriteAheadLog log = new WriteAheadLog(directory, pageSerde, Duration.valueOf("1s"), new DataSize(1, DataSize.Unit.MEGABYTE))) {
+                List<WriteAheadLog.Entry> deadLetters = log.readDeadLetters();
+                assertEquals(deadLetters.size(), 1);
+                assertEquals(deadLetters.get(0).getPositions().keySet(), ImmutableSet.of("shard-1"));
+                assertEquals(deadLetters.get(0).getTable().cellSet().size(), 1);
+                assertEquals(deadLetters.get(0).getTable().get("project", "failing").page.getPositionCount(), 1);
+            }
+        }
+        finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testCheckpointRetriesOnlyThrottlingAndDependencyErrors()
+            throws Exception
+    {
+        TestingCheckpointer checkpointer = new TestingCheckpointer();
+        checkpointer.failures.add(new ThrottlingException("throttled"));
+        checkpointer.failures.add(new KinesisClientLibDependencyException("unreachable"));
+        new KinesisShardCheckpointer("shard-1", checkpointer.proxy, "1", 0).checkpoint();
+        assertEquals(checkpointer.checkpoints, ImmutableList.of("1/0"));
+
+        // the other errors are not retried
+        checkpointer.failures.add(new InvalidStateException("invalid"));
+        try {
+            new KinesisShardCheckpointer("shard-1", checkpointer.proxy, "2", 0).checkpoint();
+            fail("the checkpoint is expected to fail");
+        }
+        catch (BatchRecords.CheckpointException e) {
+            assertTrue(e.getCause() instanceof InvalidStateException, e.toString());
+        }
+        assertEquals(checkpointer.attempts, 4);
+        assertEquals(checkpointer.checkpoints, ImmutableList.of("1/0"));
+    }
+
+    private KinesisRecordProcessor createProcessor(String shardId)
+    {
+        return createProcessor(shardId, Duration.valueOf("1s"));
+    }
+
+    private KinesisRecordProcessor createProcessor(String shardId, Duration drainTimeout)
+    {
+        KinesisRecordProcessor processor = new KinesisRecordProcessor(context, aggregator,
+                new LagTracker("Kinesis", "ms", LagTracker.Aggregation.MAX, Double.MAX_VALUE, Duration.valueOf("1m")), drainTimeout);
+        processor.initialize(new InitializationInput().withShardId(shardId));
+        return processor;
+    }
+
+    private static ProcessRecordsInput input(TestingCheckpointer checkpointer, Record... records)
+    {
+        return new ProcessRecordsInput().withRecords(ImmutableList.copyOf(records)).withCheckpointer(checkpointer.proxy);
+    }
+
+    private static Record record(String sequenceNumber, String collection)
+    {
+        return new Record()
+                .withSequenceNumber(sequenceNumber)
+                .withPartitionKey("project|" + collection)
+                .withData(ByteBuffer.wrap(new byte[] {2}));
+    }
+
+    /**
+     * Converts every record to a row that holds its sequence number, the collection is taken from the partition key.
+     */
+    private static Table<String, String, TableData> convert(Iterable<Record> records, Iterable<Record> bulkRecords)
+    {
+        Map<String, BlockBuilder> builders = new LinkedHashMap<>();
+        for (Record record : records) {
+            String collection = record.getPartitionKey().substring(record.getPartitionKey().indexOf('|') + 1);
+            BlockBuilder builder = builders.computeIfAbsent(collection, key -> BIGINT.createBlockBuilder(new BlockBuilderStatus(), 10));
+            BIGINT.writeLong(builder, Long.parseLong(record.getSequenceNumber()));
+        }
+
+        Table<String, String, TableData> table = HashBasedTable.create();
+        builders.forEach((collection, builder) -> table.put("project", collection,
+                new TableData(new Page(builder.getPositionCount(), builder.build()), COLUMNS)));
+        return table;
+    }
+
+    /**
+     * Records the positions the shard is checkpointed at, the KCL checkpointer is only an interface.
+     */
+    private static class TestingCheckpointer
+    {
+        private final List<String> checkpoints = new ArrayList<>();
+        // thrown by the next checkpoint calls
+        private final Queue<Exception> failures = new LinkedList<>();
+        private int attempts;
+        private final IRecordProcessorCheckpointer proxy = (IRecordProcessorCheckpointer) Proxy.newProxyInstance(
+                IRecordProcessorCheckpointer.class.getClassLoader(),
+                new Class[] {IRecordProcessorCheckpointer.class},
+                (instance, method, args) -> {
+                    if (!method.getName().equals("checkpoint")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    attempts++;
+                    if (!failures.isEmpty()) {
+                        throw failures.poll();
+                    }
+                    if (args == null) {
+                        // the end of a closed shard
+                        checkpoints.add("end");
+                    }
+                    else {
+                        checkpoints.add(args[0] + "/" + (args.length > 1 ? args[1] : 0));
+                    }
+                    return null;
+                });
+    }
+
+    private static class RecordingCommitter
+            extends TargetConnectorCommitter
+    {
+        // the committed row count of every table, per call
+        private final List<Map<SchemaTableName, Long>> commits = new ArrayList<>();
+        private final Queue<Set<SchemaTableName>> failures = new LinkedList<>();
+        private final Semaphore started = new Semaphore(0);
+        // when set, the commits wait until the latch is released
+        private volatile CountDownLatch release;
+
+        public RecordingCommitter(DatabaseHandler databaseHandler, CollectorStats stats)
+        {
+            super(databaseHandler, stats);
+        }
+
+        @Override
+        public Set<SchemaTableName> process(Iterable<Table<String, String, TableData>> batches)
+        {
+            started.release();
+            if (release != null) {
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+
+            Map<SchemaTableName, Long> rows = new HashMap<>();
+            for (Table<String, String, TableData> batch : batches) {
+                for (Table.Cell<String, String, TableData> cell : batch.cellSet()) {
+                    rows.merge(new SchemaTableName(cell.getRowKey(), cell.getColumnKey()), (long) cell.getValue().page.getPositionCount(), Long::sum);
+                }
+            }
+            commits.add(rows);
+            Set<SchemaTableName> failed = failures.poll();
+            return failed == null ? new HashSet<>() : failed;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.google.common.collect.ImmutableMap;
+import io.airlift.units.Duration;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestLagTracker
+{
+    @Test
+    public void testShardLag()
+    {
+        LagTracker tracker = new LagTracker("Kinesis", "ms", LagTracker.Aggregation.MAX, Double.MAX_VALUE, Duration.valueOf("1m"));
+        tracker.update("shard-1", 100);
+        tracker.update("shard-2", 300);
+        assertEquals(tracker.getTrackedCount(), 2);
+        assertEquals(tracker.getMaxLag(), 300);
+        assertEquals(tracker.getLag(), 300);
+
+        tracker.update("shard-2", 50);
+        assertEquals(tracker.getLag(), 100);
+        assertEquals(tracker.getTotalLag(), 150);
+
+        // the shard is closed or moved to another node
+        tracker.remove("shard-1");
+        assertEquals(tracker.getLags(), ImmutableMap.of("shard-2", 50L));
+        assertEquals(tracker.getLag(), 50);
+
+        tracker.remove("shard-2");
+        assertEquals(tracker.getTrackedCount(), 0);
+        assertEquals(tracker.getLag(), 0);
+    }
+
+    @Test
+    public void testPartitionLag()
+    {
+        LagTracker tracker = new LagTracker("Kafka", "records", LagTracker.Aggregation.SUM, Double.MAX_VALUE, Duration.valueOf("1m"));
+        tracker.replaceAll(ImmutableMap.of("topic-0", 10L, "topic-1", 20L));
+        assertEquals(tracker.getLag(), 30);
+        assertEquals(tracker.getMaxLag(), 20);
+
+        // topic-0 is revoked in a rebalance
+        tracker.replaceAll(ImmutableMap.of("topic-1", 5L, "topic-2", 40L));
+        assertEquals(tracker.getLags(), ImmutableMap.of("topic-1", 5L, "topic-2", 40L));
+        assertEquals(tracker.getLag(), 45);
+        assertEquals(tracker.getMaxLag(), 40);
+
+        tracker.replaceAll(ImmutableMap.of());
+        assertEquals(tracker.getTrackedCount(), 0);
+        assertEquals(tracker.getLag(), 0);
+    }
+
+    @Test
+    public void testGrowthRate()
+            throws Exception
+    {
+        LagTracker tracker = new LagTracker("Kinesis", "ms", LagTracker.Aggregation.MAX, Double.MAX_VALUE, Duration.valueOf("0ms"));
+        tracker.update("shard-1", 1000);
+        Thread.sleep(10);
+        tracker.update("shard-1", 2000);
+        assertTrue(tracker.getLastGrowthRate() > 0);
+    }
+}
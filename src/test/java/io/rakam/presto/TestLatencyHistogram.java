@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import io.rakam.presto.deserialization.LatencySamples;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestLatencyHistogram
+{
+    @Test
+    public void testBucketBounds()
+    {
+        for (long value : new long[] {0, 1, 31, 32, 33, 100, 1_000, 65_535, 3_600_000, 1L << 40}) {
+            long lowerBound = LatencyHistogram.bucketLowerBound(LatencyHistogram.bucketIndex(value));
+            assertTrue(lowerBound <= value, "lower bound of " + value);
+            assertTrue(value - lowerBound <= Math.max(1, value / 32), "precision of " + value);
+        }
+        assertEquals(LatencyHistogram.bucketIndex(-10), 0);
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(histogram.getCount(), 1000);
+        assertTrue(Math.abs(histogram.getPercentile(50) - 500) <= 16);
+        assertTrue(Math.abs(histogram.getPercentile(99) - 990) <= 32);
+        assertTrue(Math.abs(histogram.getMax() - 1000) <= 32);
+
+        LatencyHistogram snapshot = histogram.snapshotAndReset();
+        assertEquals(snapshot.getCount(), 1000);
+        assertEquals(histogram.getCount(), 0);
+        assertEquals(histogram.getPercentile(99), 0);
+    }
+
+    @Test
+    public void testSamplesStayBounded()
+    {
+        LatencySamples samples = new LatencySamples(8);
+        for (int i = 0; i < 100; i++) {
+            samples.add(i, LatencySamples.UNKNOWN);
+        }
+
+        assertTrue(samples.size() <= 8);
+        assertEquals(samples.getEventTime(0), 0);
+        for (int i = 1; i < samples.size(); i++) {
+            assertEquals(samples.getEventTime(i) - samples.getEventTime(i - 1), 16);
+        }
+    }
+}
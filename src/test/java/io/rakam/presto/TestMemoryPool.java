@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestMemoryPool
+{
+    @Test
+    public void testReserveAndFree()
+    {
+        MemoryPool pool = new MemoryPool(100);
+        assertTrue(pool.reserve(60).isDone());
+        assertEquals(pool.getFreeBytes(), 40);
+
+        // the reservation succeeds even though it exceeds the pool, the consumers are blocked until it's freed
+        ListenableFuture<?> future = pool.reserve(60);
+        assertFalse(future.isDone());
+        assertTrue(pool.isFull());
+        assertEquals(pool.getReservedBytes(), 120);
+        assertTrue(pool.getNotFullFuture() == future);
+
+        pool.free(10);
+        assertFalse(future.isDone());
+        pool.free(20);
+        assertTrue(future.isDone());
+        assertFalse(pool.isFull());
+        assertEquals(pool.getFreeBytes(), 10);
+    }
+}
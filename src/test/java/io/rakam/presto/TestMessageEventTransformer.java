@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Table;
+import io.rakam.presto.deserialization.PageReader;
+import io.rakam.presto.deserialization.TableData;
+import io.rakam.presto.deserialization.TableSizeHistory;
+import io.rakam.presto.deserialization.json.JsonDeserializer;
+import io.rakam.presto.kafka.KafkaJsonMessageTransformer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+import static org.testng.Assert.assertEquals;
+
+public class TestMessageEventTransformer
+{
+    private static final ColumnMetadata COLUMN_A = new ColumnMetadata("a", VARCHAR);
+    private static final ColumnMetadata COLUMN_B = new ColumnMetadata("b", VARCHAR);
+
+    private TestDatabaseHandler databaseHandler;
+    private List<List<ColumnMetadata>> createdReaders;
+    private KafkaJsonMessageTransformer transformer;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        databaseHandler = new TestDatabaseHandler()
+        {
+            @Override
+            public List<ColumnMetadata> getColumns(String schema, String table)
+            {
+                // the schema is fetched from the metastore by the other handlers, a copy isn't changed by the collectors
+                return ImmutableList.copyOf(super.getColumns(schema, table));
+            }
+        };
+        databaseHandler.addColumns("project", "first", ImmutableList.of(COLUMN_A));
+        databaseHandler.addColumns("project", "second", ImmutableList.of(COLUMN_B));
+
+        createdReaders = new ArrayList<>();
+        transformer = new KafkaJsonMessageTransformer(new FieldNameConfig(), databaseHandler)
+        {
+            @Override
+            public PageReader<JsonDeserializer> createPageReader(List<ColumnMetadata> metadata, @Nullable TableSizeHistory.Estimate estimate)
+            {
+                createdReaders.add(metadata);
+                return super.createPageReader(metadata, estimate);
+            }
+        };
+    }
+
+    @Test
+    public void testReaderIsReusedAcrossFlushes()
+            throws IOException
+    {
+        TableData first = flush("first", "a", "1", "2");
+        TableData second = flush("first", "a", "3");
+        assertEquals(createdReaders, ImmutableList.of(ImmutableList.of(COLUMN_A)));
+
+        // the reused reader starts with an empty page, the page of the previous flush is not changed
+        assertEquals(second.page.getPositionCount(), 1);
+        BlockAssertions.assertBlockEquals(VARCHAR, second.page.getBlock(0), BlockAssertions.createStringsBlock("3"));
+        assertEquals(first.page.getPositionCount(), 2);
+        BlockAssertions.assertBlockEquals(VARCHAR, first.page.getBlock(0), BlockAssertions.createStringsBlock("1", "2"));
+    }
+
+    @Test
+    public void testReaderIsReplacedWhenSchemaChanges()
+            throws IOException
+    {
+        flush("first", "a", "1");
+
+        // another collector adds a column to the table
+        databaseHandler.addColumns("project", "first", ImmutableList.of(COLUMN_B));
+
+        TableData data = flush("first", "a", "2");
+        assertEquals(createdReaders, ImmutableList.of(ImmutableList.of(COLUMN_A), ImmutableList.of(COLUMN_A, COLUMN_B)));
+        assertEquals(data.metadata, ImmutableList.of(COLUMN_A, COLUMN_B));
+        assertEquals(data.page.getChannelCount(), 2);
+        BlockAssertions.assertBlockEquals(VARCHAR, data.page.getBlock(0), BlockAssertions.createStringsBlock("2"));
+        BlockAssertions.assertBlockEquals(VARCHAR, data.page.getBlock(1), BlockAssertions.createStringsBlock((String) null));
+    }
+
+    @Test
+    public void testIdleReaderIsEvicted()
+            throws IOException
+    {
+        flush("first", "a", "1");
+
+        // the reader is kept while the table receives records at least once every 100 flushes
+        for (int i = 0; i < 100; i++) {
+            flush("second", "b", "1");
+        }
+        flush("first", "a", "1");
+        assertEquals(countReaders(COLUMN_A), 1);
+
+        for (int i = 0; i < 101; i++) {
+            flush("second", "b", "1");
+        }
+        flush("first", "a", "1");
+        assertEquals(countReaders(COLUMN_A), 2);
+        assertEquals(countReaders(COLUMN_B), 1);
+    }
+
+    private long countReaders(ColumnMetadata column)
+    {
+        return createdReaders.stream().filter(metadata -> metadata.equals(ImmutableList.of(column))).count();
+    }
+
+    private TableData flush(String collection, String column, String... values)
+            throws IOException
+    {
+        ImmutableList.Builder<ConsumerRecord<byte[], byte[]>> records = ImmutableList.builder();
+        for (String value : values) {
+            records.add(new ConsumerRecord<>("test", -1, -1, new byte[] {}, JsonHelper.encodeAsBytes(ImmutableMap.of(
+                    "project", "project",
+                    "collection", collection,
+                    "properties", ImmutableMap.of(column, value)))));
+        }
+
+        Table<String, String, TableData> table = transformer.createPageTable(records.build(), ImmutableList.of());
+        assertEquals(table.size(), 1);
+        return table.get("project", collection);
+    }
+}
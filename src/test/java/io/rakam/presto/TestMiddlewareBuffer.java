@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.block.Block;
+import com.facebook.presto.spi.block.BlockBuilder;
+import com.facebook.presto.spi.block.BlockBuilderStatus;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
+import com.google.common.io.Files;
+import io.airlift.units.DataSize;
+import io.rakam.presto.deserialization.TableData;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+import static io.airlift.slice.Slices.utf8Slice;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestMiddlewareBuffer
+{
+    @Test
+    public void testCompaction()
+    {
+        Block block = createBlock(10, 100_000);
+        assertTrue(block.getRetainedSizeInBytes() > block.getSizeInBytes() * 10);
+
+        MiddlewareBuffer buffer = new MiddlewareBuffer(new MiddlewareConfig(), new CollectorStats());
+        buffer.add(new BatchRecords(createTable(new Page(block)), () -> {}));
+
+        // the buffer size is the retained size of the compacted page
+        assertTrue(buffer.getBufferSize() < block.getRetainedSizeInBytes() / 10);
+        assertEquals(buffer.getBufferRecordCount(), 10);
+
+        long bufferSize = buffer.getBufferSize();
+        List<BatchRecords> batches = buffer.flush();
+        assertEquals(batches.size(), 1);
+        Page page = batches.get(0).getTable().get("project", "collection").page;
+        assertEquals(MiddlewareBuffer.getRetainedSizeInBytes(page), bufferSize);
+        assertEquals(buffer.getBufferSize(), 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(VARCHAR.getSlice(page.getBlock(0), i).toStringUtf8(), "value" + i);
+        }
+    }
+
+    @Test
+    public void testCompactedPageIsNotCopied()
+    {
+        Page page = new Page(createBlock(10, 10).copyRegion(0, 10));
+        assertTrue(MiddlewareBuffer.compact(page) == page);
+    }
+
+    @Test
+    public void testCompressedPages()
+    {
+        MiddlewareConfig config = new MiddlewareConfig();
+        config.setCompressPages(true);
+        MiddlewareBuffer buffer = new MiddlewareBuffer(config, new CollectorStats());
+
+        Block block = createBlock(1000, 1000);
+        BatchRecords.Checkpointer first = () -> {};
+        BatchRecords.Checkpointer second = () -> {};
+        buffer.add(new BatchRecords(createTable(new Page(block)), first));
+        buffer.add(new BatchRecords(createTable(new Page(block)), second));
+        assertTrue(buffer.getBufferSize() < block.getSizeInBytes() * 2);
+        assertEquals(buffer.getBufferRecordCount(), 2000);
+
+        List<BatchRecords> batches = buffer.flush(checkpointer -> checkpointer == second);
+        assertEquals(batches.size(), 1);
+        assertTrue(batches.get(0).getCheckpointer() == second);
+        assertEquals(buffer.getBufferRecordCount(), 1000);
+
+        Page page = batches.get(0).getTable().get("project", "collection").page;
+        assertEquals(page.getPositionCount(), 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(VARCHAR.getSlice(page.getBlock(0), i).toStringUtf8(), "value" + i);
+        }
+    }
+
+    @Test
+    public void testSpill()
+            throws Exception
+    {
+        File directory = Files.createTempDir();
+        try {
+            MiddlewareConfig config = new MiddlewareConfig();
+            config.setSpillDirectory(directory);
+            config.setMaxMemory(new DataSize(1, DataSize.Unit.KILOBYTE));
+            MiddlewareBuffer buffer = new MiddlewareBuffer(config, new CollectorStats());
+
+            for (int i = 0; i < 3; i++) {
+                buffer.add(new BatchRecords(createTable(new Page(createBlock(1000, 1000))), () -> {}));
+            }
+            assertTrue(buffer.getMemorySize() <= buffer.getBufferSize() / 3);
+            assertEquals(directory.listFiles().length, 1);
+
+            List<BatchRecords> batches = buffer.flush();
+            assertEquals(batches.size(), 3);
+            for (BatchRecords batch : batches) {
+                Page page = batch.getTable().get("project", "collection").page;
+                for (int i = 0; i < 1000; i++) {
+                    assertEquals(VARCHAR.getSlice(page.getBlock(0), i).toStringUtf8(), "value" + i);
+                }
+            }
+            assertEquals(buffer.getMemorySize(), 0);
+            assertEquals(directory.listFiles().length, 0);
+        }
+        finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testFlushBySize()
+    {
+        MiddlewareConfig config = new MiddlewareConfig();
+        config.setMaxSize(new DataSize(1, DataSize.Unit.KILOBYTE));
+        MiddlewareBuffer buffer = new MiddlewareBuffer(config, new CollectorStats());
+
+        buffer.add(new BatchRecords(createTable(new Page(createBlock(10, 10))), () -> {}));
+        assertNull(buffer.getFlushReason());
+
+        buffer.add(new BatchRecords(createTable(new Page(createBlock(1000, 1000))), () -> {}));
+        assertNotNull(buffer.getFlushReason());
+        assertEquals(buffer.getFlushReason(), FlushReason.SIZE);
+    }
+
+    @Test
+    public void testFlushByMemory()
+    {
+        MemoryPool memoryPool = new MemoryPool(new DataSize(1, DataSize.Unit.KILOBYTE).toBytes());
+        MiddlewareBuffer buffer = new MiddlewareBuffer(new MiddlewareConfig(), new CollectorStats(), memoryPool);
+
+        buffer.add(new BatchRecords(createTable(new Page(createBlock(10, 10))), () -> {}));
+        assertNull(buffer.getFlushReason());
+
+        buffer.add(new BatchRecords(createTable(new Page(createBlock(1000, 1000))), () -> {}));
+        assertEquals(buffer.getFlushReason(), FlushReason.MEMORY);
+        assertEquals(memoryPool.getReservedBytes(), buffer.getMemorySize());
+
+        buffer.flush();
+        assertEquals(memoryPool.getReservedBytes(), 0);
+        assertNull(buffer.getFlushReason());
+    }
+
+    private static Block createBlock(int positionCount, int expectedEntries)
+    {
+        BlockBuilder blockBuilder = VARCHAR.createBlockBuilder(new BlockBuilderStatus(), expectedEntries, 32);
+        for (int i = 0; i < positionCount; i++) {
+            VARCHAR.writeSlice(blockBuilder, utf8Slice("value" + i));
+        }
+        return blockBuilder.build();
+    }
+
+    private static Table<String, String, TableData> createTable(Page page)
+    {
+        Table<String, String, TableData> table = HashBasedTable.create();
+        table.put("project", "collection", new TableData(page, ImmutableList.of(new ColumnMetadata("test", VARCHAR))));
+        return table;
+    }
+}
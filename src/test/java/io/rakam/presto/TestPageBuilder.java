@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.block.Block;
+import com.facebook.presto.spi.block.DictionaryBlock;
+import com.google.common.collect.ImmutableList;
+import io.rakam.presto.deserialization.PageBuilder;
+import org.testng.annotations.Test;
+
+import static com.facebook.presto.spi.type.BigintType.BIGINT;
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+import static io.airlift.slice.Slices.utf8Slice;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPageBuilder
+{
+    @Test
+    public void testAppendColumn()
+    {
+        PageBuilder pageBuilder = new PageBuilder(ImmutableList.of(BIGINT));
+        for (int i = 0; i < 3; i++) {
+            pageBuilder.declarePosition();
+            BIGINT.writeLong(pageBuilder.getBlockBuilder(0), i);
+        }
+
+        // the column is added while the fourth row is read
+        pageBuilder.declarePosition();
+        BIGINT.writeLong(pageBuilder.getBlockBuilder(0), 3);
+        pageBuilder.appendColumn(VARCHAR);
+        assertEquals(pageBuilder.getNullPrefix(1), 3);
+        VARCHAR.writeSlice(pageBuilder.getBlockBuilder(1), utf8Slice("value3"));
+        assertEquals(pageBuilder.getPositionCount(1), 4);
+
+        pageBuilder.declarePosition();
+        BIGINT.writeLong(pageBuilder.getBlockBuilder(0), 4);
+        pageBuilder.getBlockBuilder(1).appendNull();
+
+        Page page = pageBuilder.build();
+        assertEquals(page.getPositionCount(), 5);
+        Block block = page.getBlock(1);
+        assertEquals(block.getPositionCount(), 5);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(block.isNull(i));
+        }
+        assertEquals(VARCHAR.getSlice(block, 3).toStringUtf8(), "value3");
+        assertTrue(block.isNull(4));
+    }
+
+    @Test
+    public void testBuildWithNullPrefixHasNoSideEffects()
+    {
+        PageBuilder pageBuilder = new PageBuilder(ImmutableList.of(BIGINT));
+        for (int i = 0; i < 3; i++) {
+            pageBuilder.declarePosition();
+            BIGINT.writeLong(pageBuilder.getBlockBuilder(0), i);
+        }
+        pageBuilder.declarePosition();
+        BIGINT.writeLong(pageBuilder.getBlockBuilder(0), 3);
+        pageBuilder.appendColumn(VARCHAR);
+        VARCHAR.writeSlice(pageBuilder.getBlockBuilder(1), utf8Slice("value3"));
+        long sizeInBytes = pageBuilder.getBlockBuilder(1).getSizeInBytes();
+
+        // the table size history reads the builder after the page is built, and the page may be built again
+        Page first = pageBuilder.build();
+        assertEquals(pageBuilder.getBlockBuilder(1).getPositionCount(), 1);
+        assertEquals(pageBuilder.getBlockBuilder(1).getSizeInBytes(), sizeInBytes);
+
+        Page second = pageBuilder.build();
+        for (Page page : ImmutableList.of(first, second)) {
+            assertEquals(page.getPositionCount(), 4);
+            Block block = page.getBlock(1);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(block.isNull(i));
+            }
+            assertEquals(VARCHAR.getSlice(block, 3).toStringUtf8(), "value3");
+        }
+    }
+
+    @Test
+    public void testNewPageBuilderWithChannels()
+    {
+        PageBuilder pageBuilder = new PageBuilder(ImmutableList.of(BIGINT, VARCHAR));
+        for (int i = 0; i < 2; i++) {
+            pageBuilder.declarePosition();
+            BIGINT.writeLong(pageBuilder.getBlockBuilder(0), i);
+            VARCHAR.writeSlice(pageBuilder.getBlockBuilder(1), utf8Slice("value" + i));
+        }
+
+        PageBuilder reordered = pageBuilder.newPageBuilderWithChannels(ImmutableList.of(VARCHAR, BIGINT, VARCHAR), new int[] {1, -1, 0});
+        reordered.declarePosition();
+        VARCHAR.writeSlice(reordered.getBlockBuilder(0), utf8Slice("value2"));
+        reordered.getBlockBuilder(1).appendNull();
+        reordered.getBlockBuilder(2).appendNull();
+
+        Page page = reordered.build();
+        assertEquals(page.getPositionCount(), 3);
+        assertEquals(VARCHAR.getSlice(page.getBlock(0), 2).toStringUtf8(), "value2");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(page.getBlock(1).isNull(i));
+        }
+        assertFalse(page.getBlock(2).isNull(0));
+        assertEquals(BIGINT.getLong(page.getBlock(2), 1), 1);
+        assertTrue(page.getBlock(2).isNull(2));
+    }
+
+    @Test
+    public void testDictionaryEncoding()
+    {
+        PageBuilder pageBuilder = new PageBuilder(ImmutableList.of(VARCHAR, VARCHAR));
+        for (int i = 0; i < 1000; i++) {
+            pageBuilder.declarePosition();
+            if (i % 10 == 0) {
+                pageBuilder.getBlockBuilder(0).appendNull();
+            }
+            else {
+                VARCHAR.writeSlice(pageBuilder.getBlockBuilder(0), utf8Slice("platform" + (i % 4)));
+            }
+            VARCHAR.writeSlice(pageBuilder.getBlockBuilder(1), utf8Slice("user" + i));
+        }
+
+        Page page = pageBuilder.build();
+        assertTrue(page.getBlock(0) instanceof DictionaryBlock);
+        assertFalse(page.getBlock(1) instanceof DictionaryBlock);
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+                assertTrue(page.getBlock(0).isNull(i));
+            }
+            else {
+                assertEquals(VARCHAR.getSlice(page.getBlock(0), i).toStringUtf8(), "platform" + (i % 4));
+            }
+            assertEquals(VARCHAR.getSlice(page.getBlock(1), i).toStringUtf8(), "user" + i);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.google.common.collect.ImmutableMap;
+import io.rakam.presto.kafka.TopicAffinityAssignor;
+import org.apache.kafka.clients.consumer.internals.PartitionAssignor.Subscription;
+import org.apache.kafka.common.TopicPartition;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestTopicAffinityAssignor
+{
+    private static final int TOPIC_COUNT = 30;
+    private static final int PARTITION_COUNT = 4;
+
+    @Test
+    public void testAllPartitionsAssignedOnce()
+    {
+        Map<String, List<TopicPartition>> assignment = assign(topics(), "node1", "node2", "node3");
+
+        Set<TopicPartition> assigned = new HashSet<>();
+        int capacity = (TOPIC_COUNT * PARTITION_COUNT + 2) / 3;
+        for (List<TopicPartition> partitions : assignment.values()) {
+            assertTrue(partitions.size() <= capacity, "node is over its fair share: " + partitions.size());
+            for (TopicPartition partition : partitions) {
+                assertTrue(assigned.add(partition), "assigned twice: " + partition);
+            }
+        }
+        assertEquals(assigned.size(), TOPIC_COUNT * PARTITION_COUNT);
+    }
+
+    @Test
+    public void testTopicsStayTogether()
+    {
+        Map<String, List<TopicPartition>> assignment = assign(topics(), "node1", "node2", "node3");
+
+        Map<String, Set<String>> nodesOfTopic = new HashMap<>();
+        assignment.forEach((node, partitions) -> partitions.forEach(partition ->
+                nodesOfTopic.computeIfAbsent(partition.topic(), topic -> new HashSet<>()).add(node)));
+
+        // a topic is only split when its node reaches its fair share, which happens once per node
+        long splitTopics = nodesOfTopic.values().stream().filter(nodes -> nodes.size() > 1).count();
+        assertTrue(splitTopics <= 3, "split topics: " + splitTopics);
+    }
+
+    @Test
+    public void testStableAcrossRejoins()
+    {
+        // member ids change every time a consumer joins the group, the instance ids do not
+        assertEquals(assign(topics(), "node1", "node2", "node3"), assign(topics(), "node1", "node2", "node3"));
+    }
+
+    @Test
+    public void testNodeJoinMovesFewTopics()
+    {
+        Map<String, List<TopicPartition>> before = assign(topics(), "node1", "node2", "node3");
+        Map<String, List<TopicPartition>> after = assign(topics(), "node1", "node2", "node3", "node4");
+
+        int moved = 0;
+        for (String node : new String[] {"node1", "node2", "node3"}) {
+            Set<TopicPartition> partitions = new HashSet<>(before.get(node));
+            partitions.removeAll(after.get(node));
+            moved += partitions.size();
+        }
+        assertTrue(moved <= TOPIC_COUNT * PARTITION_COUNT / 2, "moved partitions: " + moved);
+        assertTrue(!after.get("node4").isEmpty());
+    }
+
+    private static Map<String, Integer> topics()
+    {
+        ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+        for (int i = 0; i < TOPIC_COUNT; i++) {
+            builder.put("project.collection" + i, PARTITION_COUNT);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Runs a group of in-process collector instances: every instance builds its subscription with its own
+     * assignor and the group leader computes the assignment. The result is keyed by the instance id.
+     */
+    private static Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic, String... instanceIds)
+    {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        Map<String, String> instanceOfMember = new HashMap<>();
+        TopicAffinityAssignor leader = null;
+        for (String instanceId : instanceIds) {
+            TopicAffinityAssignor assignor = new TopicAffinityAssignor();
+            assignor.configure(ImmutableMap.of(TopicAffinityAssignor.INSTANCE_ID_CONFIG, instanceId));
+            String memberId = "consumer-" + instanceId + "-" + UUID.randomUUID();
+            subscriptions.put(memberId, assignor.subscription(partitionsPerTopic.keySet()));
+            instanceOfMember.put(memberId, instanceId);
+            if (leader == null) {
+                leader = assignor;
+            }
+        }
+
+        Map<String, List<TopicPartition>> assignment = new HashMap<>();
+        leader.assign(partitionsPerTopic, subscriptions)
+                .forEach((memberId, partitions) -> assignment.put(instanceOfMember.get(memberId), partitions));
+        return assignment;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Rakam Incorporation
+ */
+
+package io.rakam.presto;
+
+import com.facebook.presto.spi.ColumnMetadata;
+import com.facebook.presto.spi.Page;
+import com.facebook.presto.spi.block.BlockBuilder;
+import com.facebook.presto.spi.block.BlockBuilderStatus;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Table;
+import com.google.common.io.Files;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+import io.rakam.presto.deserialization.TableData;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static com.facebook.presto.spi.type.BigintType.BIGINT;
+import static com.facebook.presto.spi.type.VarcharType.VARCHAR;
+import static io.airlift.slice.Slices.utf8Slice;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestWriteAheadLog
+{
+    private final MiddlewarePageSerde pageSerde = MiddlewarePageSerde.createStandalone();
+    private File directory;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        directory = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReplay()
+            throws Exception
+    {
+        try (WriteAheadLog log = open()) {
+            log.append(ImmutableMap.of("shard-1", "10/0"), createTable(0, 100));
+            log.append(ImmutableMap.of("shard-1", "20/0"), createTable(100, 50));
+        }
+
+        try (WriteAheadLog log = open()) {
+            List<WriteAheadLog.Entry> entries = log.readRecovered();
+            assertEquals(entries.size(), 2);
+            assertEquals(entries.get(0).getPositions(), ImmutableMap.of("shard-1", "10/0"));
+            assertEquals(entries.get(1).getPositions(), ImmutableMap.of("shard-1", "20/0"));
+            assertTable(entries.get(0).getTable(), 0, 100);
+            assertTable(entries.get(1).getTable(), 100, 50);
+
+            log.deleteRecovered();
+        }
+
+        try (WriteAheadLog log = open()) {
+            assertTrue(log.readRecovered().isEmpty());
+        }
+    }
+
+    @Test
+    public void testSegmentIsTruncatedWhenReleased()
+            throws Exception
+    {
+        try (WriteAheadLog log = open()) {
+            long first = log.append(ImmutableMap.of(), createTable(0, 10));
+            long second = log.append(ImmutableMap.of(), createTable(10, 10));
+            log.release(first);
+            log.release(second);
+            long third = log.append(ImmutableMap.of(), createTable(20, 10));
+            log.append(ImmutableMap.of(), createTable(30, 10));
+            log.release(third);
+        }
+
+        try (WriteAheadLog log = open()) {
+            List<WriteAheadLog.Entry> entries = log.readRecovered();
+            // the segment is truncated when all of its entries are released, the third entry has a tombstone
+            assertEquals(entries.size(), 1);
+            assertTable(entries.get(0).getTable(), 30, 10);
+        }
+    }
+
+    @Test
+    public void testReleasedEntriesAreNotReplayed()
+            throws Exception
+    {
+        try (WriteAheadLog log = open()) {
+            long first = log.append(ImmutableMap.of("shard-1", "10/0"), createTable(0, 10));
+            log.append(ImmutableMap.of("shard-1", "20/0"), createTable(10, 10));
+            long third = log.append(ImmutableMap.of("shard-1", "30/0"), createTable(20, 10));
+            log.release(third);
+            log.release(first);
+        }
+
+        try (WriteAheadLog log = open()) {
+            List<WriteAheadLog.Entry> entries = log.readRecovered();
+            assertEquals(entries.size(), 1);
+            assertEquals(entries.get(0).getPositions(), ImmutableMap.of("shard-1", "20/0"));
+            assertTable(entries.get(0).getTable(), 10, 10);
+        }
+    }
+
+    @Test
+    public void testDeadLettersAreNotReplayed()
+            throws Exception
+    {
+        try (WriteAheadLog log = open()) {
+            long entryId = log.append(ImmutableMap.of("shard-1", "10/0"), createTable(0, 10));
+            log.appendDeadLetter(ImmutableMap.of("shard-1", "10/0"), createTable(0, 10));
+            log.release(entryId);
+        }
+
+        try (WriteAheadLog log = open()) {
+            assertTrue(log.readRecovered().isEmpty());
+            log.deleteRecovered();
+            log.appendDeadLetter(ImmutableMap.of("shard-2", "20/0"), createTable(10, 5));
+        }
+
+        // the dead letters of all the processes are kept in the same file
+        try (WriteAheadLog log = open()) {
+            List<WriteAheadLog.Entry> deadLetters = log.readDeadLetters();
+            assertEquals(deadLetters.size(), 2);
+            assertEquals(deadLetters.get(0).getPositions(), ImmutableMap.of("shard-1", "10/0"));
+            assertTable(deadLetters.get(0).getTable(), 0, 10);
+            assertEquals(deadLetters.get(1).getPositions(), ImmutableMap.of("shard-2", "20/0"));
+            assertTable(deadLetters.get(1).getTable(), 10, 5);
+        }
+    }
+
+    @Test
+    public void testSegmentIsDeletedWhenReleased()
+            throws Exception
+    {
+        try (WriteAheadLog log = new WriteAheadLog(directory, pageSerde, Duration.valueOf("0s"), new DataSize(1, DataSize.Unit.BYTE))) {
+            long first = log.append(ImmutableMap.of(), createTable(0, 10));
+            long second = log.append(ImmutableMap.of(), createTable(10, 10));
+            assertEquals(directory.listFiles().length, 2);
+
+            log.release(first);
+            assertEquals(directory.listFiles().length, 1);
+            log.release(second);
+            assertEquals(directory.listFiles()[0].length(), 0);
+        }
+    }
+
+    @Test
+    public void testIncompleteEntryIsSkipped()
+            throws Exception
+    {
+        try (WriteAheadLog log = open()) {
+            log.append(ImmutableMap.of(), createTable(0, 10));
+            log.append(ImmutableMap.of(), createTable(10, 10));
+        }
+
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        try (WriteAheadLog log = open()) {
+            List<WriteAheadLog.Entry> entries = log.readRecovered();
+            assertEquals(entries.size(), 1);
+            assertTable(entries.get(0).getTable(), 0, 10);
+        }
+    }
+
+    private WriteAheadLog open()
+            throws Exception
+    {
+        return new WriteAheadLog(directory, pageSerde, Duration.valueOf("1s"), new DataSize(64, DataSize.Unit.MEGABYTE));
+    }
+
+    private static Table<String, String, TableData> createTable(int start, int positionCount)
+    {
+        BlockBuilder ids = BIGINT.createBlockBuilder(new BlockBuilderStatus(), positionCount);
+        BlockBuilder names = VARCHAR.createBlockBuilder(new BlockBuilderStatus(), positionCount, 32);
+        for (int i = start; i < start + positionCount; i++) {
+            BIGINT.writeLong(ids, i);
+            VARCHAR.writeSlice(names, utf8Slice("value" + i));
+        }
+
+        Table<String, String, TableData> table = HashBasedTable.create();
+        table.put("project", "collection", new TableData(new Page(ids.build(), names.build()),
+                ImmutableList.of(new ColumnMetadata("id", BIGINT), new ColumnMetadata("name", VARCHAR))));
+        return table;
+    }
+
+    private static void assertTable(Table<String, String, TableData> table, int start, int positionCount)
+    {
+        TableData data = table.get("project", "collection");
+        assertEquals(data.metadata, ImmutableList.of(new ColumnMetadata("id", BIGINT), new ColumnMetadata("name", VARCHAR)));
+        assertEquals(data.page.getPositionCount(), positionCount);
+        for (int i = 0; i < positionCount; i++) {
+            assertEquals(BIGINT.getLong(data.page.getBlock(0), i), start + i);
+            assertEquals(VARCHAR.getSlice(data.page.getBlock(1), i).toStringUtf8(), "value" + (start + i));
+        }
+    }
+}